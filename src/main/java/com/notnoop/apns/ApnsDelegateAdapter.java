@@ -3,7 +3,7 @@ package com.notnoop.apns;
 /**
  * A NOOP delegate that does nothing!
  */
-public class ApnsDelegateAdapter implements ApnsDelegate {
+public class ApnsDelegateAdapter implements ApnsDelegate, ConnectionListener {
 
     public void messageSent(ApnsNotification message, boolean resent) {
     }
@@ -19,4 +19,7 @@ public class ApnsDelegateAdapter implements ApnsDelegate {
 
     public void notificationsResent(int resendCount) {
     }
+
+    public void connectionEstablished(long connectNanos, long handshakeNanos) {
+    }
 }
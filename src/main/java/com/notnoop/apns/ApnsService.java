@@ -33,6 +33,7 @@ package com.notnoop.apns;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import com.notnoop.exceptions.NetworkIOException;
 
@@ -116,6 +117,33 @@ public interface ApnsService {
     Collection<? extends ApnsNotification> push(Collection<byte[]> deviceTokens, byte[] payload) throws NetworkIOException;
     Collection<? extends EnhancedApnsNotification> push(Collection<byte[]> deviceTokens, byte[] payload, int expiry) throws NetworkIOException;
 
+    /**
+     * Sends a push notification with the provided {@code payload} to the
+     * device of {@code deviceToken}, like {@link #push(String, String)}
+     * but without decoding the token.
+     *
+     * @param deviceToken   the destination device token
+     * @param payload       The payload message
+     * @throws NetworkIOException if a network error occurred while
+     *      attempting to send the message
+     */
+    EnhancedApnsNotification push(DeviceToken deviceToken, String payload) throws NetworkIOException;
+
+    EnhancedApnsNotification push(DeviceToken deviceToken, byte[] payload, int expiry) throws NetworkIOException;
+
+    /**
+     * Sends a bulk push notification with the provided {@code payload}
+     * to the devices of {@code deviceTokens}, like
+     * {@link #push(Collection, String)} but without decoding the tokens.
+     *
+     * @param deviceTokens  the destination device tokens
+     * @param payload       The payload message
+     * @throws NetworkIOException if a network error occurred while
+     *      attempting to send the message
+     */
+    Collection<? extends EnhancedApnsNotification> pushToDevices(Collection<DeviceToken> deviceTokens, String payload) throws NetworkIOException;
+    Collection<? extends EnhancedApnsNotification> pushToDevices(Collection<DeviceToken> deviceTokens, byte[] payload, int expiry) throws NetworkIOException;
+
     /**
      * Sends the provided notification {@code message} to the desired
      * destination.
@@ -124,6 +152,62 @@ public interface ApnsService {
      */
     void push(ApnsNotification message) throws NetworkIOException;
 
+    /**
+     * Sends the provided notification {@code messages} as a batch, which
+     * the service, its queue and its connections handle as a whole: each
+     * connection writes its share of the batch in as few socket writes
+     * as possible.  The service doesn't keep {@code messages} after
+     * returning.
+     *
+     * @throws NetworkIOException if a network error occured while
+     *      attempting to send the messages
+     */
+    void push(Iterable<? extends ApnsNotification> messages) throws NetworkIOException;
+
+    /**
+     * Sends the provided notification {@code message} to the desired
+     * destination, returning a future of its outcome instead of throwing.
+     *
+     * The future fails with the {@link DeliveryError} of an error
+     * response, or with the network error if the message couldn't be
+     * sent, and is otherwise presumed delivered once the message leaves
+     * the resend window of its connection.  See {@link PushFuture}.
+     *
+     * Pending futures are completed by the connections, without a thread
+     * per notification.  Only notifications with distinct identifiers,
+     * like {@link EnhancedApnsNotification}s created with
+     * {@link EnhancedApnsNotification#INCREMENT_ID()}, can be told apart
+     * by error responses.
+     *
+     * @param message   the notification to send
+     * @return  the future of the delivery
+     */
+    PushFuture pushAsync(ApnsNotification message);
+
+    /**
+     * Sends a push notification with the provided {@code payload} to the
+     * iPhone of {@code deviceToken}, like {@link #push(String, String)},
+     * returning a future of its outcome instead of throwing.
+     *
+     * @param deviceToken   the destination iPhone device token
+     * @param payload       The payload message
+     * @return  the future of the delivery
+     * @see #pushAsync(ApnsNotification)
+     */
+    PushFuture pushAsync(String deviceToken, String payload);
+
+    /**
+     * Writes out the notifications that the service buffered for write
+     * coalescing.
+     *
+     * This only has an effect when the service was built with
+     * {@link ApnsServiceBuilder#withWriteCoalescing(int, long, java.util.concurrent.TimeUnit)}.
+     *
+     * @throws NetworkIOException if a network error occurred while
+     *      writing the notifications
+     */
+    void flush() throws NetworkIOException;
+
     /**
      * Starts the service.
      *
@@ -160,6 +244,29 @@ public interface ApnsService {
      */
     Map<String, Date> getInactiveDevices() throws NetworkIOException;
 
+    /**
+     * Passes the devices that reported failed-delivery attempts to the
+     * Apple Feedback services on to {@code listener} one at a time, as
+     * they are read, instead of collecting them into a map like
+     * {@link #getInactiveDevices()}.  The memory used doesn't grow with
+     * the number of devices.
+     *
+     * @throws NetworkIOException if a network error occurred
+     *      while retrieving invalid device connection
+     */
+    void getInactiveDevices(FeedbackListener listener) throws NetworkIOException;
+
+    /**
+     * Returns the list of devices that reported failed-delivery
+     * attempts to the Apple Feedback services, like
+     * {@link #getInactiveDevices()}, without blocking the calling thread.
+     *
+     * The feedback service is queried in the background, retrying
+     * failed attempts with an exponential backoff.  The future fails
+     * with the last error if all the attempts failed.
+     */
+    Future<Map<String, Date>> getInactiveDevicesAsync();
+
     /**
      * Test that the service is setup properly and the Apple servers
      * are reachable.
@@ -38,11 +38,16 @@ import java.net.Proxy;
 import java.net.Socket;
 
 import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocketFactory;
 
 import com.notnoop.apns.internal.*;
@@ -79,19 +84,53 @@ public class ApnsServiceBuilder {
 
     private String feedbackHost;
     private int feedbackPort;
+    private int feedbackReadTimeoutMillis;
+    private FeedbackListener feedbackPollListener;
+    private long feedbackPollIntervalNanos;
+    private long feedbackPollJitterNanos;
     private int pooledMax = 1;
+    private PoolBalancing poolBalancing = PoolBalancing.LEAST_OUTSTANDING;
+    private PoolSizing poolSizing;
+    private PoolSizeListener poolSizeListener;
     private int cacheLength = ApnsConnection.DEFAULT_CACHE_LENGTH;
     private boolean autoAdjustCacheLength = true;
+    private int cacheBytes;
+    private ResendWindow resendWindow;
+    private FlushPolicy flushPolicy = FlushPolicy.IMMEDIATE;
     private ExecutorService executor = null;
 
     private ReconnectPolicy reconnectPolicy = ReconnectPolicy.Provided.NEVER.newObject();
     private boolean isQueued = false;
+    private int queueCapacity = Integer.MAX_VALUE;
+    private QueueOverflowPolicy queueOverflowPolicy = QueueOverflowPolicy.BLOCK;
+    private long queueBlockTimeoutNanos = -1;
+    private int queueHighWatermark;
+    private int queueLowWatermark;
+    private QueueWatermarkListener queueWatermarkListener;
+    private int queueDrainers = 1;
+    private int queueMaxBatchSize = 1;
+    private int ringSize;
+    private int ringMaxBatchSize;
     
     private boolean isBatched = false;
     private int batchWaitTimeInSec;
     private int batchMaxWaitTimeInSec;
     private ThreadFactory batchThreadFactory;
+    private int batchMaxSize;
+    private long batchLingerMillis;
+    private int batchConnections;
     
+    private boolean isNonBlocking = false;
+    private boolean hasWriterThread = false;
+    private RetryBackoff retryBackoff = null;
+    private boolean warmUp = false;
+    private int selectorThreads;
+    private String[] tlsProtocols;
+    private String[] tlsCipherSuites;
+    private int sessionCacheSize = -1;
+    private int sessionTimeoutInSec;
+    private HandshakeStatistics handshakeStatistics;
+
     private ApnsDelegate delegate = ApnsDelegate.EMPTY;
     private Proxy proxy = null;
     private boolean errorDetection = true;
@@ -254,6 +293,74 @@ public class ApnsServiceBuilder {
         return this;
     }
 
+    /**
+     * Fails a feedback query whose connection stalls for longer than
+     * {@code timeout} in a read, so that it is retried instead of
+     * blocking forever.  The devices read before the stall are still
+     * returned.  By default reads aren't limited.
+     *
+     * @param timeout   the longest a single read may block, 0 for no limit
+     * @param unit      the time unit of {@code timeout}
+     * @return  this
+     */
+    public ApnsServiceBuilder withFeedbackReadTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout must not be negative: " + timeout);
+        }
+        this.feedbackReadTimeoutMillis = (int) Math.min(Integer.MAX_VALUE, unit.toMillis(timeout));
+        return this;
+    }
+
+    /**
+     * Polls the feedback service in the background while the service is
+     * started, and passes every inactive device on to {@code listener}.
+     * The interval is randomly moved by up to a tenth of it.
+     *
+     * @param interval  the time between two polls
+     * @param unit      the time unit of {@code interval}
+     * @param listener  the listener receiving the inactive devices
+     * @return  this
+     * @see #withFeedbackPolling(long, long, TimeUnit, FeedbackListener)
+     */
+    public ApnsServiceBuilder withFeedbackPolling(long interval, TimeUnit unit, FeedbackListener listener) {
+        return withFeedbackPolling(interval, interval / 10, unit, listener);
+    }
+
+    /**
+     * Polls the feedback service in the background while the service is
+     * started, and passes every inactive device on to {@code listener}.
+     *
+     * The polls run on a thread of their own, without holding up the
+     * notifications being sent.  A device is passed on only once, unless
+     * it is reported again with a newer timestamp.  A failed poll is
+     * retried with the next one.
+     *
+     * Note: The feedback service reports every device only once, so the
+     * devices returned by {@link ApnsService#getInactiveDevices()} aren't
+     * passed on to {@code listener}.
+     *
+     * @param interval  the time between two polls
+     * @param jitter    the most each interval is randomly shortened or
+     *                  lengthened by, less than {@code interval}
+     * @param unit      the time unit of {@code interval} and {@code jitter}
+     * @param listener  the listener receiving the inactive devices
+     * @return  this
+     */
+    public ApnsServiceBuilder withFeedbackPolling(long interval, long jitter, TimeUnit unit,
+            FeedbackListener listener) {
+        if (interval <= 0 || jitter < 0 || jitter >= interval) {
+            throw new IllegalArgumentException("interval must be positive and jitter between 0 and interval: "
+                    + interval + ", " + jitter);
+        }
+        if (listener == null) {
+            throw new IllegalArgumentException("listener must not be null");
+        }
+        this.feedbackPollIntervalNanos = unit.toNanos(interval);
+        this.feedbackPollJitterNanos = unit.toNanos(jitter);
+        this.feedbackPollListener = listener;
+        return this;
+    }
+
     /**
      * Specify to use Apple servers as iPhone gateway and feedback servers.
      *
@@ -384,6 +491,75 @@ public class ApnsServiceBuilder {
         return this;
     }
 
+    /**
+     * Keeps sent notifications for resending for a period of time rather
+     * than by count, replacing the auto-adjustment of the cache length.
+     *
+     * The window starts at {@code window} and is then tuned to a few
+     * times the measured latency between sending a notification and
+     * receiving its error response, between 100 milliseconds and one
+     * minute; an error for a notification that already left the window
+     * doubles it.  Regardless of their age, at most {@code maxBytes} of
+     * marshalled notifications are kept per connection.  Adjustments are
+     * reported through {@link ApnsDelegate#cacheLengthExceeded(int)},
+     * with the number of notifications the new window is expected to
+     * hold at the measured send rate.
+     *
+     * @param window    the initial resend window
+     * @param unit      the time unit of {@code window}
+     * @param maxBytes  the most bytes of notifications kept per connection
+     * @return  this
+     */
+    public ApnsServiceBuilder withResendWindow(long window, TimeUnit unit, int maxBytes) {
+        this.resendWindow = new ResendWindow(window, unit, maxBytes);
+        return this;
+    }
+
+    /**
+     * Keeps the notification cache off the heap: only the marshalled
+     * notifications are cached, packed into a direct buffer of
+     * {@code maxBytes} bytes per connection.  The oldest notifications
+     * are evicted once either the buffer or the cache length is full.
+     *
+     * Cached notifications are rebuilt from their wire format when they
+     * are reported to the delegate or resent after an error.
+     *
+     * @param maxBytes  size of the direct buffer of each connection
+     * @return  this
+     */
+    public ApnsServiceBuilder withOffHeapCache(int maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        }
+        this.cacheBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * Enables write coalescing: instead of writing and flushing every
+     * notification on its own, notifications are packed into a buffer
+     * of {@code bufferSize} bytes which is written out once it is full,
+     * once {@code linger} has passed since the first notification was
+     * buffered, or when {@link ApnsService#flush()} is called.
+     *
+     * This saves a TLS record and usually a TCP segment per
+     * notification, at the cost of up to {@code linger} of latency.
+     * The delegate is notified that a message was sent once it was
+     * written out, and that it failed if the buffer couldn't be written.
+     *
+     * Note: This option is not supported by non-blocking
+     * connections, which always write as much as the socket accepts.
+     *
+     * @param bufferSize    number of bytes to buffer before writing
+     * @param linger        maximum time a notification stays buffered
+     * @param unit          the time unit of {@code linger}
+     * @return  this
+     */
+    public ApnsServiceBuilder withWriteCoalescing(int bufferSize, long linger, TimeUnit unit) {
+        this.flushPolicy = new FlushPolicy(bufferSize, linger, unit);
+        return this;
+    }
+
     /**
      * Specify the socket to be used as underlying socket to connect
      * to the APN service.
@@ -406,7 +582,7 @@ public class ApnsServiceBuilder {
      * Apple servers recommend using a pooled connection up to
      * 15 concurrent persistent connections to the gateways.
      *
-     * Note: This option has no effect when using non-blocking
+     * Note: This option is not supported by non-blocking
      * connections.
      */
     public ApnsServiceBuilder asPool(int maxConnections) {
@@ -419,7 +595,7 @@ public class ApnsServiceBuilder {
      * Apple servers recommend using a pooled connection up to
      * 15 concurrent persistent connections to the gateways.
      *
-     * Note: This option has no effect when using non-blocking
+     * Note: This option is not supported by non-blocking
      * connections.
      *
      * Note: The maxConnections here is used as a hint to how many connections
@@ -431,6 +607,90 @@ public class ApnsServiceBuilder {
         return this;
     }
 
+    /**
+     * Constructs an elastic pool of connections to the notification
+     * servers, which opens between {@code minConnections} and
+     * {@code maxConnections} connections as needed.
+     *
+     * The pool adds a connection when 4 notifications per connection
+     * wait to be written, or writes take 50 milliseconds on average, and
+     * closes one after it had a connection too many for a minute.
+     *
+     * Note: This option is not supported by non-blocking
+     * connections.
+     *
+     * @param minConnections    the fewest connections, opened first
+     * @param maxConnections    the most connections
+     * @return  this
+     */
+    public ApnsServiceBuilder asElasticPool(int minConnections, int maxConnections) {
+        return asElasticPool(minConnections, maxConnections, 4, 50, 60000, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Constructs an elastic pool of connections to the notification
+     * servers, which opens between {@code minConnections} and
+     * {@code maxConnections} connections as needed.
+     *
+     * The pool is sampled periodically, and adds a connection when the
+     * backlog or the write latency reach their thresholds.  It closes a
+     * connection only after it had one more than the backlog needed for
+     * {@code shrinkIdle}, one connection per such period.
+     *
+     * Note: This option is not supported by non-blocking
+     * connections.
+     *
+     * @param minConnections    the fewest connections, opened first
+     * @param maxConnections    the most connections
+     * @param growBacklog       the number of notifications waiting to be
+     *                          written per connection that adds a connection
+     * @param growLatency       the average write latency that adds a
+     *                          connection
+     * @param shrinkIdle        how long a connection must have been
+     *                          unneeded to be closed
+     * @param unit              the time unit of {@code growLatency} and
+     *                          {@code shrinkIdle}
+     * @return  this
+     */
+    public ApnsServiceBuilder asElasticPool(int minConnections, int maxConnections,
+            int growBacklog, long growLatency, long shrinkIdle, TimeUnit unit) {
+        this.poolSizing = new PoolSizing(minConnections, maxConnections, growBacklog,
+                growLatency, shrinkIdle, unit);
+        return asPool(maxConnections);
+    }
+
+    /**
+     * Notifies {@code listener} when an elastic pool adds or closes a
+     * connection.
+     *
+     * Note: This option only has an effect on elastic pools.
+     *
+     * @param listener  the listener to notify
+     * @return  this
+     */
+    public ApnsServiceBuilder withPoolSizeListener(PoolSizeListener listener) {
+        this.poolSizeListener = listener;
+        return this;
+    }
+
+    /**
+     * Sets how a pool of connections picks the connection for each
+     * notification.  The default is
+     * {@link PoolBalancing#LEAST_OUTSTANDING}.
+     *
+     * Note: This option only has an effect on pooled connections.
+     *
+     * @param balancing the selection of pooled connections
+     * @return  this
+     */
+    public ApnsServiceBuilder withPoolBalancing(PoolBalancing balancing) {
+        if (balancing == null) {
+            throw new IllegalArgumentException("balancing must not be null");
+        }
+        this.poolBalancing = balancing;
+        return this;
+    }
+
     /**
      * Constructs a new thread with a processing queue to process
      * notification requests.
@@ -441,6 +701,141 @@ public class ApnsServiceBuilder {
         this.isQueued = true;
         return this;
     }
+
+    /**
+     * Constructs a new thread with a bounded processing queue to process
+     * notification requests.
+     *
+     * A push to a full queue is handled according to
+     * {@code overflowPolicy}; {@link QueueOverflowPolicy#BLOCK} waits
+     * indefinitely for room.
+     *
+     * @param capacity          the most notifications queued
+     * @param overflowPolicy    what to do with a push to a full queue
+     * @return  this
+     */
+    public ApnsServiceBuilder asQueued(int capacity, QueueOverflowPolicy overflowPolicy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("overflowPolicy must not be null");
+        }
+        this.isQueued = true;
+        this.queueCapacity = capacity;
+        this.queueOverflowPolicy = overflowPolicy;
+        this.queueBlockTimeoutNanos = -1;
+        return this;
+    }
+
+    /**
+     * Constructs a new thread with a bounded processing queue to process
+     * notification requests.
+     *
+     * A push to a full queue blocks until there is room, for up to
+     * {@code blockTimeout}, after which it throws a
+     * {@link com.notnoop.exceptions.QueueOverflowException}.
+     *
+     * @param capacity      the most notifications queued
+     * @param blockTimeout  how long a push waits for room
+     * @param unit          the time unit of {@code blockTimeout}
+     * @return  this
+     */
+    public ApnsServiceBuilder asQueued(int capacity, long blockTimeout, TimeUnit unit) {
+        if (blockTimeout < 0) {
+            throw new IllegalArgumentException("blockTimeout must not be negative: " + blockTimeout);
+        }
+        asQueued(capacity, QueueOverflowPolicy.BLOCK);
+        this.queueBlockTimeoutNanos = unit.toNanos(blockTimeout);
+        return this;
+    }
+
+    /**
+     * Constructs a new thread with a pre-allocated ring buffer to process
+     * notification requests, as an alternative to {@link #asQueued()} for
+     * bursts of many notifications pushed by several threads.
+     *
+     * Pushing a notification claims a slot of the ring without taking a
+     * lock or allocating a queue node.  The consumer thread pushes the
+     * notifications in batches of up to 64, flushing the connection after
+     * each batch.  Pushes wait while the ring is full.
+     *
+     * @param ringSize  the number of slots, rounded up to a power of two
+     * @return  this
+     */
+    public ApnsServiceBuilder asRingBufferQueued(int ringSize) {
+        return asRingBufferQueued(ringSize, 64);
+    }
+
+    /**
+     * Constructs a new thread with a pre-allocated ring buffer to process
+     * notification requests, see {@link #asRingBufferQueued(int)}.
+     *
+     * @param ringSize      the number of slots, rounded up to a power of two
+     * @param maxBatchSize  the most notifications pushed before a flush
+     * @return  this
+     */
+    public ApnsServiceBuilder asRingBufferQueued(int ringSize, int maxBatchSize) {
+        if (ringSize <= 0 || maxBatchSize <= 0) {
+            throw new IllegalArgumentException("ringSize and maxBatchSize must be positive: "
+                    + ringSize + ", " + maxBatchSize);
+        }
+        this.ringSize = ringSize;
+        this.ringMaxBatchSize = maxBatchSize;
+        return this;
+    }
+
+    /**
+     * Takes the notifications off the queue of a queued service with
+     * {@code drainers} threads, each taking up to {@code maxBatchSize}
+     * queued notifications at once, pushing them and then flushing the
+     * connection once for the whole batch.
+     *
+     * Notifications are pushed in the order they were queued only with
+     * a single drainer.  Several drainers are best combined with a pool
+     * of as many connections, see {@link #asPool(int)}.
+     *
+     * Note: This option only has an effect on queued services.
+     *
+     * @param drainers      the number of threads taking notifications off
+     *                      the queue
+     * @param maxBatchSize  the most notifications a thread takes at once
+     * @return  this
+     */
+    public ApnsServiceBuilder withQueueDrainers(int drainers, int maxBatchSize) {
+        if (drainers <= 0 || maxBatchSize <= 0) {
+            throw new IllegalArgumentException("drainers and maxBatchSize must be positive: "
+                    + drainers + ", " + maxBatchSize);
+        }
+        this.queueDrainers = drainers;
+        this.queueMaxBatchSize = maxBatchSize;
+        return this;
+    }
+
+    /**
+     * Notifies {@code listener} when the queue of a queued service fills
+     * up to {@code high} notifications, and when it drains back down to
+     * {@code low}, so that the producers can pause and resume.
+     *
+     * Note: This option only has an effect on queued services.
+     *
+     * @param high      the queue size that pauses the producers
+     * @param low       the queue size that resumes them, below {@code high}
+     * @param listener  the listener to notify
+     * @return  this
+     */
+    public ApnsServiceBuilder withQueueWatermarks(int high, int low, QueueWatermarkListener listener) {
+        if (low < 0 || low >= high) {
+            throw new IllegalArgumentException("Watermarks must satisfy 0 <= low < high: " + low + ", " + high);
+        }
+        if (listener == null) {
+            throw new IllegalArgumentException("listener must not be null");
+        }
+        this.queueHighWatermark = high;
+        this.queueLowWatermark = low;
+        this.queueWatermarkListener = listener;
+        return this;
+    }
     
     /**
      * Construct service which will process notification requests in batch.
@@ -494,16 +889,227 @@ public class ApnsServiceBuilder {
         this.batchWaitTimeInSec = waitTimeInSec;
         this.batchMaxWaitTimeInSec = maxWaitTimeInSec;
         this.batchThreadFactory = threadFactory;
+        this.batchConnections = 0;
+        return this;
+    }
+
+    /**
+     * Construct service which will process notification requests in batch
+     * over connections that are kept open.
+     *
+     * A batch is sent once it holds <code>maxBatchSize</code> notifications,
+     * or <code>linger</code> after its first notification.  It is split
+     * across <code>connections</code> connections, which send their parts
+     * in parallel, so the notifications of a batch may arrive out of order.
+     *
+     * Note: It is not recommended to use pooled connection
+     *
+     * @param maxBatchSize
+     *            number of notifications sending a batch right away
+     * @param linger
+     *            time after the first notification of a batch it is sent
+     * @param unit
+     *            the time unit of <code>linger</code>
+     * @param connections
+     *            number of connections sending a batch in parallel
+     */
+    public ApnsServiceBuilder asBatched(int maxBatchSize, long linger, TimeUnit unit, int connections) {
+        if (maxBatchSize <= 0 || linger < 0 || connections <= 0) {
+            throw new IllegalArgumentException(
+                    "maxBatchSize and connections must be positive, and linger not negative");
+        }
+        this.isBatched = true;
+        this.batchMaxSize = maxBatchSize;
+        this.batchLingerMillis = unit.toMillis(linger);
+        this.batchConnections = connections;
+        this.batchThreadFactory = Executors.defaultThreadFactory();
         return this;
     }
     
     
+    /**
+     * Constructs a non-blocking connection to the notification servers,
+     * built on a {@code SocketChannel} and an {@code SSLEngine}.
+     *
+     * Pushing a notification only queues it; the writes, the error
+     * responses and the reconnects are all handled by a small set of
+     * selector threads shared by every non-blocking service of the
+     * process, so many services (e.g. one per application certificate)
+     * don't need a thread per connection.  Delivery failures are only
+     * reported through the delegate.
+     *
+     * Note: Proxies, pools, writer threads, asynchronous retries and
+     * write coalescing are not supported by non-blocking connections.
+     *
+     * @return  this
+     */
+    public ApnsServiceBuilder asNonBlocking() {
+        this.isNonBlocking = true;
+        this.selectorThreads = 0;
+        return this;
+    }
+
+    /**
+     * Constructs a non-blocking connection to the notification servers,
+     * like {@link #asNonBlocking()}, but served by a dedicated set of
+     * {@code selectorThreads} selector threads that are stopped along
+     * with the service.
+     *
+     * @param selectorThreads   number of selector threads of the service
+     * @return  this
+     */
+    public ApnsServiceBuilder asNonBlocking(int selectorThreads) {
+        if (selectorThreads < 1) {
+            throw new IllegalArgumentException("selectorThreads must be positive");
+        }
+        this.isNonBlocking = true;
+        this.selectorThreads = selectorThreads;
+        return this;
+    }
+
+    /**
+     * Gives every gateway connection a dedicated writer thread: pushing a
+     * notification only adds it to a lock-free queue, so callers never
+     * wait for other senders, socket writes or reconnects.  The writer
+     * sends the queued notifications in bulk and flushes the connection
+     * whenever the queue runs empty.  Delivery failures are only reported
+     * through the delegate.
+     *
+     * Note: This option is not supported by non-blocking
+     * connections, whose senders never block anyway.
+     *
+     * @return  this
+     */
+    public ApnsServiceBuilder withWriterThread() {
+        this.hasWriterThread = true;
+        return this;
+    }
+
+    /**
+     * Retries failed sends in the background instead of sleeping in the
+     * sending thread: once a send failed, it is retried on a shared retry
+     * pool, first right away, then with an exponential, jittered backoff
+     * starting at one second, for up to five attempts.  Notifications
+     * pushed in the meantime are queued behind it.  Delivery failures are
+     * then only reported through the delegate.
+     *
+     * Note: This option is not supported by non-blocking
+     * connections, which always retry in the background.
+     *
+     * @return  this
+     */
+    public ApnsServiceBuilder withAsyncRetries() {
+        this.retryBackoff = RetryBackoff.DEFAULT;
+        return this;
+    }
+
+    /**
+     * Retries failed sends in the background like
+     * {@link #withAsyncRetries()}, and failed feedback queries of
+     * {@link ApnsService#getInactiveDevicesAsync()}, with the given
+     * backoff.  {@link ApnsService#getInactiveDevices()} still makes up
+     * to three attempts a second apart in the calling thread.
+     *
+     * @param attempts      total number of attempts per notification
+     * @param initialDelay  delay before the first backed-off retry
+     * @param maxDelay      upper bound of the (doubling) delay
+     * @param unit          the time unit of the delays
+     * @return  this
+     */
+    public ApnsServiceBuilder withAsyncRetries(int attempts, long initialDelay,
+            long maxDelay, TimeUnit unit) {
+        this.retryBackoff = new RetryBackoff(attempts, initialDelay, maxDelay, unit);
+        return this;
+    }
+
+    /**
+     * Opens the gateway connections when the service is started, instead
+     * of on the first notification sent through each of them.  Pooled
+     * connections are opened in parallel.  The connect and handshake
+     * times of every connection are reported to a delegate that is also
+     * a {@link ConnectionListener}.
+     *
+     * A connection that can't be opened at start is only logged; it is
+     * opened again on demand.
+     *
+     * Note: This option has no effect on batched services without
+     * persistent connections, which open a connection per batch.
+     *
+     * @return  this
+     */
+    public ApnsServiceBuilder withWarmUp() {
+        this.warmUp = true;
+        return this;
+    }
+
+    /**
+     * Restricts the TLS protocols the connections offer, e.g. to
+     * {@code "TLSv1.2"}.  Protocols not supported by the
+     * {@code SSLContext} are rejected when the service is built.
+     *
+     * @param protocols the protocols to enable
+     * @return  this
+     */
+    public ApnsServiceBuilder withTlsProtocols(String... protocols) {
+        this.tlsProtocols = protocols.clone();
+        return this;
+    }
+
+    /**
+     * Restricts the cipher suites the connections offer, in order of
+     * preference.  Preferring suites with a cheap key exchange, such as
+     * ECDHE over DHE, reduces the cost of every full handshake.  Suites
+     * not supported by the {@code SSLContext} are rejected when the
+     * service is built.
+     *
+     * @param cipherSuites  the cipher suites to enable, most preferred first
+     * @return  this
+     */
+    public ApnsServiceBuilder withTlsCipherSuites(String... cipherSuites) {
+        this.tlsCipherSuites = cipherSuites.clone();
+        return this;
+    }
+
+    /**
+     * Sizes the client session cache of the {@code SSLContext}, which is
+     * shared by all the gateway and feedback connections created from
+     * it.  Reconnects and feedback queries resume a cached session with
+     * an abbreviated handshake instead of a full one, as long as the
+     * session hasn't expired.
+     *
+     * Note that this changes the {@code SSLContext} itself, so it applies
+     * to every service sharing it.
+     *
+     * @param size      maximum number of cached sessions, 0 for no limit
+     * @param timeout   how long a session may be resumed, 0 for no limit
+     * @param unit      the time unit of {@code timeout}
+     * @return  this
+     */
+    public ApnsServiceBuilder withTlsSessionCache(int size, long timeout, TimeUnit unit) {
+        if (size < 0 || timeout < 0) {
+            throw new IllegalArgumentException("invalid session cache: " + size + ", " + timeout);
+        }
+        this.sessionCacheSize = size;
+        this.sessionTimeoutInSec = (int) Math.min(Integer.MAX_VALUE, unit.toSeconds(timeout));
+        return this;
+    }
+
+    /**
+     * Records the TLS handshakes of the gateway and feedback connections
+     * in the given statistics, telling full handshakes apart from
+     * resumed sessions.
+     *
+     * @param statistics    the statistics to update
+     * @return  this
+     */
+    public ApnsServiceBuilder withHandshakeStatistics(HandshakeStatistics statistics) {
+        this.handshakeStatistics = statistics;
+        return this;
+    }
+
     /**
      * Sets the delegate of the service, that gets notified of the
      * status of message delivery.
-     *
-     * Note: This option has no effect when using non-blocking
-     * connections.
      */
     public ApnsServiceBuilder withDelegate(ApnsDelegate delegate) {
         this.delegate = delegate == null ? ApnsDelegate.EMPTY : delegate;
@@ -535,24 +1141,68 @@ public class ApnsServiceBuilder {
         checkInitialization();
         ApnsService service;
 
-        SSLSocketFactory sslFactory = sslContext.getSocketFactory();
-        ApnsFeedbackConnection feedback = new ApnsFeedbackConnection(sslFactory, feedbackHost, feedbackPort, proxy);
+        if (sessionCacheSize >= 0) {
+            SSLSessionContext sessions = sslContext.getClientSessionContext();
+            sessions.setSessionCacheSize(sessionCacheSize);
+            sessions.setSessionTimeout(sessionTimeoutInSec);
+        }
+        TlsSettings tls = new TlsSettings(tlsProtocols, tlsCipherSuites, handshakeStatistics);
+        SSLSocketFactory sslFactory = tls.wrap(sslContext.getSocketFactory());
+        ApnsFeedbackConnection feedback = new ApnsFeedbackConnection(sslFactory, feedbackHost, feedbackPort, proxy,
+                retryBackoff == null ? RetryBackoff.DEFAULT : retryBackoff, feedbackReadTimeoutMillis);
 
-        ApnsConnection conn = new ApnsConnectionImpl(sslFactory, gatewayHost, 
-                gatewaPort, proxy, reconnectPolicy, 
-                delegate, errorDetection, cacheLength, autoAdjustCacheLength);
-        if (pooledMax != 1) {
-            conn = new ApnsPooledConnection(conn, pooledMax, executor);
+        // every service tunes its own window
+        ResendWindow window = resendWindow == null ? null : resendWindow.copy();
+        ApnsConnection conn;
+        if (isNonBlocking) {
+            if (selectorThreads > 0) {
+                conn = new ApnsNioConnection(sslContext, gatewayHost, gatewaPort,
+                        delegate, errorDetection, cacheLength, autoAdjustCacheLength,
+                        cacheBytes, new SelectorLoopGroup(selectorThreads), true, tls,
+                        window);
+            } else {
+                conn = new ApnsNioConnection(sslContext, gatewayHost, gatewaPort,
+                        delegate, errorDetection, cacheLength, autoAdjustCacheLength,
+                        cacheBytes, SelectorLoopGroup.shared(), false, tls,
+                        window);
+            }
+        } else {
+            conn = new ApnsConnectionImpl(sslFactory, gatewayHost, 
+                    gatewaPort, proxy, reconnectPolicy, 
+                    delegate, errorDetection, cacheLength, autoAdjustCacheLength,
+                    flushPolicy, cacheBytes, retryBackoff, window);
+            if (hasWriterThread) {
+                conn = new ApnsWriterConnection(conn, delegate);
+            }
+            if (pooledMax != 1 || poolSizing != null) {
+                conn = new ApnsPooledConnection(conn, pooledMax, executor, poolBalancing,
+                        poolSizing == null ? null : poolSizing.copy(), poolSizeListener);
+            }
         }
 
-        service = new ApnsServiceImpl(conn, feedback);
+        service = new ApnsServiceImpl(conn, feedback, warmUp);
 
         if (isQueued) {
-            service = new QueuedApnsService(service);
+            service = new QueuedApnsService(service, queueCapacity, queueOverflowPolicy,
+                    queueBlockTimeoutNanos, delegate, queueHighWatermark, queueLowWatermark,
+                    queueWatermarkListener, queueDrainers, queueMaxBatchSize);
+        } else if (ringSize > 0) {
+            service = new RingBufferApnsService(service, ringSize, ringMaxBatchSize, delegate);
         }
         
         if (isBatched) {
-            service = new BatchApnsService(conn, feedback, batchWaitTimeInSec, batchMaxWaitTimeInSec, batchThreadFactory);
+            if (batchConnections > 0) {
+                service = new BatchApnsService(conn, feedback, batchMaxSize, batchLingerMillis,
+                        batchConnections, batchThreadFactory, warmUp);
+            } else {
+                service = new BatchApnsService(conn, feedback, batchWaitTimeInSec, batchMaxWaitTimeInSec, batchThreadFactory);
+            }
+        }
+
+        if (feedbackPollListener != null) {
+            service = new FeedbackPollingApnsService(service, new FeedbackPoller(feedback,
+                    feedbackPollListener, feedbackPollIntervalNanos, feedbackPollJitterNanos,
+                    TimeUnit.NANOSECONDS));
         }
 
         service.start();
@@ -570,5 +1220,38 @@ public class ApnsServiceBuilder {
                     "The Destination APNS server is not stated\n"
                     + "Use .withDestination(), withSandboxDestination(), "
                     + "or withProductionDestination().");
+        if (isNonBlocking && proxy != null)
+            throw new IllegalStateException(
+                    "Proxies are not supported by non-blocking connections");
+        if (isNonBlocking && (pooledMax != 1 || poolSizing != null))
+            throw new IllegalArgumentException(
+                    "Pools are not supported by non-blocking connections");
+        if (isNonBlocking && hasWriterThread)
+            throw new IllegalArgumentException(
+                    "Writer threads are not supported by non-blocking connections");
+        if (isNonBlocking && retryBackoff != null)
+            throw new IllegalArgumentException(
+                    "Asynchronous retries are not supported by non-blocking connections");
+        if (isNonBlocking && flushPolicy != FlushPolicy.IMMEDIATE)
+            throw new IllegalArgumentException(
+                    "Write coalescing is not supported by non-blocking connections");
+        if (isQueued && ringSize > 0)
+            throw new IllegalStateException(
+                    "Use either .asQueued() or .asRingBufferQueued(), not both");
+        SSLParameters supported = sslContext.getSupportedSSLParameters();
+        assertSupported("protocol", tlsProtocols, supported.getProtocols());
+        assertSupported("cipher suite", tlsCipherSuites, supported.getCipherSuites());
+    }
+
+    private static void assertSupported(String kind, String[] requested, String[] supported) {
+        if (requested == null) {
+            return;
+        }
+        List<String> available = Arrays.asList(supported);
+        for (String r : requested) {
+            if (!available.contains(r)) {
+                throw new IllegalArgumentException("Unsupported TLS " + kind + ": " + r);
+            }
+        }
     }
 }
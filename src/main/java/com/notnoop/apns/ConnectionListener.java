@@ -0,0 +1,20 @@
+package com.notnoop.apns;
+
+/**
+ * Gets notified of every new connection to the Apple servers.  A
+ * delegate passed to {@link ApnsServiceBuilder#withDelegate(ApnsDelegate)}
+ * that also implements this interface receives these calls too;
+ * {@link ApnsDelegateAdapter} does.
+ */
+public interface ConnectionListener {
+
+    /**
+     * Called whenever a new connection to the Apple servers is ready to
+     * send notifications, whether it was opened on demand, by a reconnect
+     * or by the warm-up at start.
+     *
+     * @param connectNanos      time taken to open the TCP connection
+     * @param handshakeNanos    time taken by the TLS handshake
+     */
+    void connectionEstablished(long connectNanos, long handshakeNanos);
+}
@@ -0,0 +1,130 @@
+package com.notnoop.apns;
+
+import java.nio.ByteBuffer;
+
+import com.notnoop.apns.internal.Utilities;
+
+/**
+ * A device token of {@link #LENGTH} bytes, the length of the tokens
+ * APNS hands out.
+ *
+ * The token is kept in four {@code long} fields rather than an array,
+ * so that comparing and hashing tokens is a handful of arithmetic
+ * operations.  Tokens are immutable, and can be used as map keys.
+ */
+public final class DeviceToken {
+
+    /**
+     * The length of a device token in bytes.
+     */
+    public static final int LENGTH = 32;
+
+    private final long t0, t1, t2, t3;
+
+    private DeviceToken(long t0, long t1, long t2, long t3) {
+        this.t0 = t0;
+        this.t1 = t1;
+        this.t2 = t2;
+        this.t3 = t3;
+    }
+
+    /**
+     * Parses the hex representation of a token, skipping spaces and
+     * dashes.
+     *
+     * @throws IllegalArgumentException if {@code hex} doesn't hold exactly
+     *      {@code 2 * LENGTH} hex digits
+     */
+    public static DeviceToken fromHex(String hex) {
+        long t0 = 0, t1 = 0, t2 = 0, word = 0;
+        int digits = 0;
+        for (int i = 0; i < hex.length(); i++) {
+            char c = hex.charAt(i);
+            if (c == ' ' || c == '-') {
+                continue;
+            }
+            if (digits == 2 * LENGTH) {
+                throw new IllegalArgumentException("Device token is longer than " + LENGTH + " bytes: " + hex);
+            }
+            int value;
+            try {
+                value = Utilities.hexValue(c);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Invalid device token: " + hex, e);
+            }
+            word = word << 4 | value;
+            digits++;
+            // every 16 digits complete a long
+            if (digits == 16) {
+                t0 = word;
+            } else if (digits == 32) {
+                t1 = word;
+            } else if (digits == 48) {
+                t2 = word;
+            }
+        }
+        if (digits != 2 * LENGTH) {
+            throw new IllegalArgumentException("Device token is shorter than " + LENGTH + " bytes: " + hex);
+        }
+        return new DeviceToken(t0, t1, t2, word);
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code bytes} doesn't hold
+     *      exactly {@link #LENGTH} bytes
+     */
+    public static DeviceToken fromBytes(byte[] bytes) {
+        if (bytes.length != LENGTH) {
+            throw new IllegalArgumentException("Device token must be " + LENGTH + " bytes: " + bytes.length);
+        }
+        return new DeviceToken(getLong(bytes, 0), getLong(bytes, 8),
+                getLong(bytes, 16), getLong(bytes, 24));
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = value << 8 | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the binary representation of the token.
+     */
+    public byte[] toBytes() {
+        byte[] bytes = new byte[LENGTH];
+        writeTo(ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    /**
+     * Writes the binary representation of the token at the position of
+     * {@code dst}, and advances it.
+     */
+    public void writeTo(ByteBuffer dst) {
+        dst.putLong(t0).putLong(t1).putLong(t2).putLong(t3);
+    }
+
+    @Override
+    public int hashCode() {
+        long h = ((t0 * 31 + t1) * 31 + t2) * 31 + t3;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof DeviceToken))
+            return false;
+        DeviceToken o = (DeviceToken) obj;
+        return t0 == o.t0 && t1 == o.t1 && t2 == o.t2 && t3 == o.t3;
+    }
+
+    /**
+     * Returns the hex representation of the token.
+     */
+    @Override
+    public String toString() {
+        return Utilities.encodeHex(toBytes());
+    }
+}
@@ -30,22 +30,29 @@
  */
 package com.notnoop.apns;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Date;
 
+import com.notnoop.apns.internal.FrameEncoder;
 import com.notnoop.apns.internal.Utilities;
 
 /**
  * Represents an APNS notification to be sent to Apple service.
+ *
+ * The notification keeps only its encoded frame: {@link #marshall()}
+ * returns it as is, and the device token and payload are read out of
+ * it, either as copies or as read-only views.
  */
 public class EnhancedApnsNotification implements ApnsNotification {
 
     private final static byte COMMAND = 1;
+    // command, identifier, expiry and token length
+    private final static int TOKEN_OFFSET = 1 + 4 + 4 + 2;
     private static int nextId = 0;
     private final int identifier;
     private final int expiry;
-    private final byte[] deviceToken;
-    private final byte[] payload;
+    private final byte[] frame;
 
     public static int INCREMENT_ID() {
         return ++nextId;
@@ -72,10 +79,7 @@ public class EnhancedApnsNotification implements ApnsNotification {
     public EnhancedApnsNotification(
             int identifier, int expiryTime,
             String dtoken, String payload) {
-        this.identifier = identifier;
-        this.expiry = expiryTime;
-        this.deviceToken = Utilities.decodeHex(dtoken);
-        this.payload = Utilities.toUTF8Bytes(payload);
+        this(identifier, expiryTime, Utilities.decodeHex(dtoken), Utilities.toUTF8Bytes(payload));
     }
 
     /**
@@ -89,8 +93,22 @@ public class EnhancedApnsNotification implements ApnsNotification {
             byte[] dtoken, byte[] payload) {
         this.identifier = identifier;
         this.expiry = expiryTime;
-        this.deviceToken = Utilities.copyOf(dtoken);
-        this.payload = Utilities.copyOf(payload);
+        this.frame = Utilities.marshallEnhanced(COMMAND, identifier, expiryTime, dtoken, payload);
+    }
+
+    /**
+     * Constructs an instance of {@code ApnsNotification}.
+     *
+     * @param dtoken    The destination device token
+     * @param payload   The binary representation of the payload to be sent
+     */
+    public EnhancedApnsNotification(
+            int identifier, int expiryTime,
+            DeviceToken dtoken, byte[] payload) {
+        this.identifier = identifier;
+        this.expiry = expiryTime;
+        this.frame = new byte[1 + 4 + 4 + 2 + DeviceToken.LENGTH + 2 + payload.length];
+        FrameEncoder.encodeEnhanced(ByteBuffer.wrap(frame), identifier, expiryTime, dtoken, payload);
     }
 
     /**
@@ -98,7 +116,7 @@ public class EnhancedApnsNotification implements ApnsNotification {
      *
      */
     public byte[] getDeviceToken() {
-        return Utilities.copyOf(deviceToken);
+        return Utilities.copyOfRange(frame, TOKEN_OFFSET, TOKEN_OFFSET + tokenLength());
     }
 
     /**
@@ -106,7 +124,33 @@ public class EnhancedApnsNotification implements ApnsNotification {
      *
      */
     public byte[] getPayload() {
-        return Utilities.copyOf(payload);
+        return Utilities.copyOfRange(frame, payloadOffset(), frame.length);
+    }
+
+    /**
+     * Returns a read-only view of the device token, without copying it.
+     */
+    public ByteBuffer getDeviceTokenView() {
+        return view(TOKEN_OFFSET, tokenLength());
+    }
+
+    /**
+     * Returns a read-only view of the payload, without copying it.
+     */
+    public ByteBuffer getPayloadView() {
+        return view(payloadOffset(), frame.length - payloadOffset());
+    }
+
+    private ByteBuffer view(int offset, int length) {
+        return ByteBuffer.wrap(frame, offset, length).slice().asReadOnlyBuffer();
+    }
+
+    private int tokenLength() {
+        return ((frame[TOKEN_OFFSET - 2] & 0xFF) << 8) | (frame[TOKEN_OFFSET - 1] & 0xFF);
+    }
+
+    private int payloadOffset() {
+        return TOKEN_OFFSET + tokenLength() + 2;
     }
 
     public int getIdentifier() {
@@ -117,7 +161,6 @@ public class EnhancedApnsNotification implements ApnsNotification {
         return expiry;
     }
 
-    private byte[] marshall = null;
     /**
      * Returns the binary representation of the message as expected by the
      * APNS server.
@@ -126,11 +169,7 @@ public class EnhancedApnsNotification implements ApnsNotification {
      * (on the wire/socket) without any modification.
      */
     public byte[] marshall() {
-        if (marshall == null) {
-            marshall = Utilities.marshallEnhanced(COMMAND, identifier,
-                    expiry, deviceToken, payload);
-        }
-        return marshall;
+        return frame;
     }
 
     /**
@@ -141,18 +180,12 @@ public class EnhancedApnsNotification implements ApnsNotification {
      * @return length of encoded message in bytes
      */
     public int length() {
-        int length = 1 + 4 + 4 + 2 + deviceToken.length + 2 + payload.length;
-        assert marshall().length == length;
-        return length;
+        return frame.length;
     }
 
     @Override
     public int hashCode() {
-        return (21
-               + 31 * identifier
-               + 31 * expiry
-               + 31 * Arrays.hashCode(deviceToken)
-               + 31 * Arrays.hashCode(payload));
+        return Arrays.hashCode(frame);
     }
 
     @Override
@@ -160,18 +193,16 @@ public class EnhancedApnsNotification implements ApnsNotification {
         if (!(obj instanceof EnhancedApnsNotification))
             return false;
         EnhancedApnsNotification o = (EnhancedApnsNotification)obj;
-        return (identifier == o.identifier
-                && expiry == o.expiry
-                && Arrays.equals(this.deviceToken, o.deviceToken)
-                && Arrays.equals(this.payload, o.payload));
+        // the frame holds the identifier, expiry, token and payload
+        return Arrays.equals(this.frame, o.frame);
     }
 
     @Override
     public String toString() {
         String payloadString = "???";
         try {
-            payloadString = new String(payload, "UTF-8");
+            payloadString = new String(frame, payloadOffset(), frame.length - payloadOffset(), "UTF-8");
         } catch (Exception _) {}        
-        return "Message(Id="+identifier+"; Token="+Utilities.encodeHex(deviceToken)+"; Payload="+payloadString+")";
+        return "Message(Id="+identifier+"; Token="+Utilities.encodeHex(getDeviceToken())+"; Payload="+payloadString+")";
     }
 }
@@ -0,0 +1,23 @@
+package com.notnoop.apns;
+
+/**
+ * Receives the devices reported by the Apple Feedback service one at a
+ * time, as they are read off the connection, so that even a huge
+ * feedback set is never held in memory at once.
+ *
+ * @see ApnsService#getInactiveDevices(FeedbackListener)
+ */
+public interface FeedbackListener {
+
+    /**
+     * Called for each device reported by the feedback service, in the
+     * order they are read.
+     *
+     * @param deviceToken   the binary device token, which the listener
+     *                      may keep
+     * @param timestamp     when APNs determined that the application no
+     *                      longer exists on the device, in seconds since
+     *                      the epoch
+     */
+    void inactiveDevice(byte[] deviceToken, int timestamp);
+}
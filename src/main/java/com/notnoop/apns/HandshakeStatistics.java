@@ -0,0 +1,80 @@
+package com.notnoop.apns;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the TLS handshakes of the gateway and feedback connections of a
+ * service, telling full handshakes apart from abbreviated ones that
+ * resumed a cached session.
+ *
+ * An instance is passed to
+ * {@link ApnsServiceBuilder#withHandshakeStatistics(HandshakeStatistics)}
+ * and may be shared by several services.  It is safe to read while the
+ * connections update it.
+ */
+public class HandshakeStatistics {
+    private final AtomicLong fullHandshakes = new AtomicLong();
+    private final AtomicLong fullHandshakeNanos = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakeNanos = new AtomicLong();
+
+    /**
+     * Records a completed handshake.
+     *
+     * @param nanos     the duration of the handshake
+     * @param resumed   whether the handshake resumed a cached session
+     */
+    public void handshakeCompleted(long nanos, boolean resumed) {
+        if (resumed) {
+            resumedHandshakes.incrementAndGet();
+            resumedHandshakeNanos.addAndGet(nanos);
+        } else {
+            fullHandshakes.incrementAndGet();
+            fullHandshakeNanos.addAndGet(nanos);
+        }
+    }
+
+    /**
+     * Returns the number of handshakes that negotiated a new session.
+     */
+    public long getFullHandshakes() {
+        return fullHandshakes.get();
+    }
+
+    /**
+     * Returns the total time spent in handshakes that negotiated a new
+     * session, in nanoseconds.
+     */
+    public long getFullHandshakeNanos() {
+        return fullHandshakeNanos.get();
+    }
+
+    /**
+     * Returns the number of handshakes that resumed a cached session.
+     */
+    public long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
+
+    /**
+     * Returns the total time spent in handshakes that resumed a cached
+     * session, in nanoseconds.
+     */
+    public long getResumedHandshakeNanos() {
+        return resumedHandshakeNanos.get();
+    }
+
+    /**
+     * Returns the total number of handshakes.
+     */
+    public long getHandshakes() {
+        return getFullHandshakes() + getResumedHandshakes();
+    }
+
+    @Override
+    public String toString() {
+        return "HandshakeStatistics[full=" + getFullHandshakes()
+                + " (" + getFullHandshakeNanos() / 1000 + "us), resumed="
+                + getResumedHandshakes() + " (" + getResumedHandshakeNanos() / 1000 + "us)]";
+    }
+}
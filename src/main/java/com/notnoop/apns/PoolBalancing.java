@@ -0,0 +1,26 @@
+package com.notnoop.apns;
+
+/**
+ * How a pool of connections picks the connection for each notification,
+ * see {@link ApnsServiceBuilder#withPoolBalancing(PoolBalancing)}.
+ */
+public enum PoolBalancing {
+    /**
+     * Picks the connection with the fewest notifications waiting to be
+     * written, so a slow or reconnecting connection gets fewer.
+     */
+    LEAST_OUTSTANDING,
+
+    /**
+     * Picks the connections in turn.
+     */
+    ROUND_ROBIN,
+
+    /**
+     * Picks the connection by a hash of the device token, and writes the
+     * notifications of each connection one at a time, so the
+     * notifications of a device arrive in the order they were pushed.
+     * The devices are spread across all the connections.
+     */
+    TOKEN_HASH
+}
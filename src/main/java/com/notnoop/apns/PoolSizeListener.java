@@ -0,0 +1,31 @@
+package com.notnoop.apns;
+
+/**
+ * Gets notified of the sizing decisions of an elastic pool of
+ * connections, see
+ * {@link ApnsServiceBuilder#asElasticPool(int, int, int, long, long, java.util.concurrent.TimeUnit)}.
+ *
+ * The calls are made by a shared timer thread, so they should return
+ * quickly.
+ */
+public interface PoolSizeListener {
+
+    /**
+     * Called when the pool added a connection.
+     *
+     * @param size              the new number of connections
+     * @param peakOutstanding   the most notifications waiting to be
+     *                          written at once since the last decision
+     * @param writeLatencyNanos the average time a write took
+     */
+    void poolGrown(int size, int peakOutstanding, long writeLatencyNanos);
+
+    /**
+     * Called when the pool closed a connection it didn't need.
+     *
+     * @param size          the new number of connections
+     * @param idleNanos     how long the pool had more connections than it
+     *                      needed
+     */
+    void poolShrunk(int size, long idleNanos);
+}
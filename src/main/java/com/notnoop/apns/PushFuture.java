@@ -0,0 +1,39 @@
+package com.notnoop.apns;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/**
+ * The outcome of a notification pushed with
+ * {@link ApnsService#pushAsync(ApnsNotification)}.
+ *
+ * APNS only reports failures, so a notification is presumed delivered
+ * once it leaves the resend window of its connection without an error
+ * response: when newer notifications evicted it from the cache, when an
+ * error response for a later notification arrived, or when the
+ * connection was closed.  The future then returns the notification.
+ *
+ * If APNS rejected the notification the future fails with an
+ * {@link com.notnoop.exceptions.ApnsDeliveryErrorException} holding the
+ * {@link DeliveryError}; if it couldn't be sent it fails with the network
+ * error.
+ */
+public interface PushFuture extends Future<ApnsNotification> {
+
+    /**
+     * Returns the pushed notification.
+     */
+    ApnsNotification getNotification();
+
+    /**
+     * Runs {@code listener} on {@code executor} once the future is
+     * completed, or right away if it already is.
+     *
+     * Futures are completed by the connection threads, so listeners
+     * should be handed to an executor unless they are very cheap.
+     *
+     * @param listener  the listener to run
+     * @param executor  the executor to run it on
+     */
+    void addListener(Runnable listener, Executor executor);
+}
@@ -0,0 +1,36 @@
+package com.notnoop.apns;
+
+/**
+ * What a bounded queued service does with a notification pushed while
+ * its queue is full, see
+ * {@link ApnsServiceBuilder#asQueued(int, QueueOverflowPolicy)}.
+ *
+ * Notifications that are dropped are reported to
+ * {@link ApnsDelegate#messageSendFailed(ApnsNotification, Throwable)} with
+ * a {@link com.notnoop.exceptions.QueueOverflowException}; a rejected push
+ * throws it instead.
+ */
+public enum QueueOverflowPolicy {
+    /**
+     * Blocks the pushing thread until there is room in the queue, or the
+     * block timeout passed, after which the push is rejected.
+     */
+    BLOCK,
+
+    /**
+     * Rejects the push right away.
+     */
+    REJECT,
+
+    /**
+     * Drops the oldest queued notification to make room.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Drops the queued notifications whose expiry has passed, rejecting
+     * the push if none had.  Expired notifications are also dropped when
+     * they are taken off the queue, instead of being sent.
+     */
+    DROP_EXPIRED
+}
@@ -0,0 +1,30 @@
+package com.notnoop.apns;
+
+/**
+ * Gets notified when the queue of a queued service fills up to its high
+ * watermark, and when it drains back down to its low watermark, so that
+ * the producers of the notifications can pause and resume.
+ *
+ * The two calls alternate, starting with
+ * {@link #highWatermarkReached(int)}.  They are made by the threads
+ * pushing and sending the notifications, so they should return quickly.
+ *
+ * @see ApnsServiceBuilder#withQueueWatermarks(int, int, QueueWatermarkListener)
+ */
+public interface QueueWatermarkListener {
+
+    /**
+     * Called when the queue reached the high watermark.
+     *
+     * @param size  the number of queued notifications
+     */
+    void highWatermarkReached(int size);
+
+    /**
+     * Called when the queue drained to the low watermark after reaching
+     * the high one.
+     *
+     * @param size  the number of queued notifications
+     */
+    void lowWatermarkReached(int size);
+}
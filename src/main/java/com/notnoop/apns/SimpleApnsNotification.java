@@ -30,6 +30,7 @@
  */
 package com.notnoop.apns;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import com.notnoop.apns.internal.Utilities;
@@ -37,12 +38,15 @@ import com.notnoop.apns.internal.Utilities;
 
 /**
  * Represents an APNS notification to be sent to Apple service.
+ *
+ * Like {@link EnhancedApnsNotification}, it keeps only its encoded frame.
  */
 public class SimpleApnsNotification implements ApnsNotification {
 
     private final static byte COMMAND = 0;
-    private final byte[] deviceToken;
-    private final byte[] payload;
+    // command and token length
+    private final static int TOKEN_OFFSET = 1 + 2;
+    private final byte[] frame;
 
     /**
      * Constructs an instance of {@code ApnsNotification}.
@@ -53,8 +57,7 @@ public class SimpleApnsNotification implements ApnsNotification {
      * @param payload   The payload message to be sent
      */
     public SimpleApnsNotification(String dtoken, String payload) {
-        this.deviceToken = Utilities.decodeHex(dtoken);
-        this.payload = Utilities.toUTF8Bytes(payload);
+        this(Utilities.decodeHex(dtoken), Utilities.toUTF8Bytes(payload));
     }
 
     /**
@@ -64,8 +67,7 @@ public class SimpleApnsNotification implements ApnsNotification {
      * @param payload   The binary representation of the payload to be sent
      */
     public SimpleApnsNotification(byte[] dtoken, byte[] payload) {
-        this.deviceToken = Utilities.copyOf(dtoken);
-        this.payload = Utilities.copyOf(payload);
+        this.frame = Utilities.marshall(COMMAND, dtoken, payload);
     }
 
     /**
@@ -73,7 +75,7 @@ public class SimpleApnsNotification implements ApnsNotification {
      *
      */
     public byte[] getDeviceToken() {
-        return Utilities.copyOf(deviceToken);
+        return Utilities.copyOfRange(frame, TOKEN_OFFSET, TOKEN_OFFSET + tokenLength());
     }
 
     /**
@@ -81,10 +83,35 @@ public class SimpleApnsNotification implements ApnsNotification {
      *
      */
     public byte[] getPayload() {
-        return Utilities.copyOf(payload);
+        return Utilities.copyOfRange(frame, payloadOffset(), frame.length);
+    }
+
+    /**
+     * Returns a read-only view of the device token, without copying it.
+     */
+    public ByteBuffer getDeviceTokenView() {
+        return view(TOKEN_OFFSET, tokenLength());
+    }
+
+    /**
+     * Returns a read-only view of the payload, without copying it.
+     */
+    public ByteBuffer getPayloadView() {
+        return view(payloadOffset(), frame.length - payloadOffset());
+    }
+
+    private ByteBuffer view(int offset, int length) {
+        return ByteBuffer.wrap(frame, offset, length).slice().asReadOnlyBuffer();
+    }
+
+    private int tokenLength() {
+        return ((frame[TOKEN_OFFSET - 2] & 0xFF) << 8) | (frame[TOKEN_OFFSET - 1] & 0xFF);
+    }
+
+    private int payloadOffset() {
+        return TOKEN_OFFSET + tokenLength() + 2;
     }
 
-    private byte[] marshall = null;
     /**
      * Returns the binary representation of the message as expected by the
      * APNS server.
@@ -93,9 +120,7 @@ public class SimpleApnsNotification implements ApnsNotification {
      * (on the wire/socket) without any modification.
      */
     public byte[] marshall() {
-        if (marshall == null)
-            marshall = Utilities.marshall(COMMAND, deviceToken, payload);
-        return marshall;
+        return frame;
     }
 
     /**
@@ -106,16 +131,12 @@ public class SimpleApnsNotification implements ApnsNotification {
      * @return length of encoded message in bytes
      */
     public int length() {
-        int length = 1 + 2 + deviceToken.length + 2 + payload.length;
-        assert marshall().length == length;
-        return length;
+        return frame.length;
     }
 
     @Override
     public int hashCode() {
-        return 21
-               + 31 * Arrays.hashCode(deviceToken)
-               + 31 * Arrays.hashCode(payload);
+        return Arrays.hashCode(frame);
     }
 
     @Override
@@ -123,8 +144,7 @@ public class SimpleApnsNotification implements ApnsNotification {
         if (!(obj instanceof SimpleApnsNotification))
             return false;
         SimpleApnsNotification o = (SimpleApnsNotification)obj;
-        return Arrays.equals(this.deviceToken, o.deviceToken)
-                && Arrays.equals(this.payload, o.payload);
+        return Arrays.equals(this.frame, o.frame);
     }
 
     public int getIdentifier() {
@@ -139,8 +159,8 @@ public class SimpleApnsNotification implements ApnsNotification {
     public String toString() {
         String payloadString = "???";
         try {
-            payloadString = new String(payload, "UTF-8");
+            payloadString = new String(frame, payloadOffset(), frame.length - payloadOffset(), "UTF-8");
         } catch (Exception _) {}        
-        return "Message(Token="+Utilities.encodeHex(deviceToken)+"; Payload="+payloadString+")";
+        return "Message(Token="+Utilities.encodeHex(getDeviceToken())+"; Payload="+payloadString+")";
     }
 }
@@ -35,11 +35,15 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.notnoop.apns.ApnsNotification;
 import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.DeviceToken;
 import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.FeedbackListener;
+import com.notnoop.apns.PushFuture;
 import com.notnoop.exceptions.NetworkIOException;
 
 abstract class AbstractApnsService implements ApnsService {
@@ -86,8 +90,8 @@ abstract class AbstractApnsService implements ApnsService {
             EnhancedApnsNotification notification =
                 new EnhancedApnsNotification(c.incrementAndGet(), EnhancedApnsNotification.MAXIMUM_EXPIRY, dtbytes, messageBytes);
             notifications.add(notification);
-            push(notification);
         }
+        push(notifications);
         return notifications;
     }
 
@@ -99,8 +103,8 @@ abstract class AbstractApnsService implements ApnsService {
             EnhancedApnsNotification notification =
                 new EnhancedApnsNotification(c.incrementAndGet(), (int)(expiry.getTime() / 1000), dtbytes, messageBytes);
             notifications.add(notification);
-            push(notification);
         }
+        push(notifications);
         return notifications;
     }
 
@@ -110,8 +114,8 @@ abstract class AbstractApnsService implements ApnsService {
             EnhancedApnsNotification notification =
                 new EnhancedApnsNotification(c.incrementAndGet(), EnhancedApnsNotification.MAXIMUM_EXPIRY, deviceToken, payload);
             notifications.add(notification);
-            push(notification);
         }
+        push(notifications);
         return notifications;
     }
 
@@ -121,14 +125,73 @@ abstract class AbstractApnsService implements ApnsService {
             EnhancedApnsNotification notification =
                 new EnhancedApnsNotification(c.incrementAndGet(), expiry, deviceToken, payload);
             notifications.add(notification);
-            push(notification);
         }
+        push(notifications);
+        return notifications;
+    }
+
+    public EnhancedApnsNotification push(DeviceToken deviceToken, String payload) throws NetworkIOException {
+        return push(deviceToken, Utilities.toUTF8Bytes(payload), EnhancedApnsNotification.MAXIMUM_EXPIRY);
+    }
+
+    public EnhancedApnsNotification push(DeviceToken deviceToken, byte[] payload, int expiry) throws NetworkIOException {
+        EnhancedApnsNotification notification =
+            new EnhancedApnsNotification(c.incrementAndGet(), expiry, deviceToken, payload);
+        push(notification);
+        return notification;
+    }
+
+    public Collection<EnhancedApnsNotification> pushToDevices(Collection<DeviceToken> deviceTokens, String payload) throws NetworkIOException {
+        return pushToDevices(deviceTokens, Utilities.toUTF8Bytes(payload), EnhancedApnsNotification.MAXIMUM_EXPIRY);
+    }
+
+    public Collection<EnhancedApnsNotification> pushToDevices(Collection<DeviceToken> deviceTokens, byte[] payload, int expiry) throws NetworkIOException {
+        List<EnhancedApnsNotification> notifications = new ArrayList<EnhancedApnsNotification>(deviceTokens.size());
+        for (DeviceToken deviceToken : deviceTokens) {
+            EnhancedApnsNotification notification =
+                new EnhancedApnsNotification(c.incrementAndGet(), expiry, deviceToken, payload);
+            notifications.add(notification);
+        }
+        push(notifications);
         return notifications;
     }
 
     public abstract void push(ApnsNotification message) throws NetworkIOException;
 
+    /**
+     * Pushes the messages one by one; services that can pass a batch on
+     * as a whole override this.
+     */
+    public void push(Iterable<? extends ApnsNotification> messages) throws NetworkIOException {
+        for (ApnsNotification message : messages) {
+            push(message);
+        }
+    }
+
+    public PushFuture pushAsync(ApnsNotification message) {
+        AsyncNotification notification = new AsyncNotification(message);
+        try {
+            push(notification);
+        } catch (RuntimeException e) {
+            notification.setException(e);
+        }
+        return notification;
+    }
+
+    public PushFuture pushAsync(String deviceToken, String payload) {
+        return pushAsync(new EnhancedApnsNotification(c.incrementAndGet(),
+                EnhancedApnsNotification.MAXIMUM_EXPIRY, deviceToken, payload));
+    }
+
     public Map<String, Date> getInactiveDevices() throws NetworkIOException {
         return feedback.getInactiveDevices();
     }
+
+    public void getInactiveDevices(FeedbackListener listener) throws NetworkIOException {
+        feedback.getInactiveDevices(listener);
+    }
+
+    public Future<Map<String, Date>> getInactiveDevicesAsync() {
+        return feedback.getInactiveDevicesAsync();
+    }
 }
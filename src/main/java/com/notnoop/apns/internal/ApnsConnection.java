@@ -42,8 +42,30 @@ public interface ApnsConnection extends Closeable {
 
     void sendMessage(ApnsNotification m) throws NetworkIOException;
 
+    /**
+     * Sends the notifications as a whole, e.g. packed into a single
+     * write, rather than one by one.  The connection doesn't keep
+     * {@code messages} after returning, so callers may reuse it.
+     */
+    void sendMessages(Iterable<? extends ApnsNotification> messages) throws NetworkIOException;
+
+    /**
+     * Writes out any notifications the connection buffered, see
+     * {@link FlushPolicy}.
+     */
+    void flush() throws NetworkIOException;
+
     void testConnection() throws NetworkIOException;
 
+    /**
+     * Opens the connection and completes the TLS handshake now rather
+     * than on the first notification.  Pools open all their connections
+     * in parallel.
+     *
+     * @throws NetworkIOException if a connection couldn't be opened
+     */
+    void warmUp() throws NetworkIOException;
+
     ApnsConnection copy();
     
     void setCacheLength(int cacheLength);
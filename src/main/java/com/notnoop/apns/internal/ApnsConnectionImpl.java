@@ -44,18 +44,25 @@ import org.slf4j.LoggerFactory;
 
 import com.notnoop.apns.ApnsDelegate;
 import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ConnectionListener;
 import com.notnoop.apns.DeliveryError;
 import com.notnoop.apns.ReconnectPolicy;
 import com.notnoop.apns.SimpleApnsNotification;
 import com.notnoop.exceptions.ApnsDeliveryErrorException;
 import com.notnoop.exceptions.NetworkIOException;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.LinkedList;
-import java.util.Queue;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class ApnsConnectionImpl implements ApnsConnection {
 
     private static final Logger logger = LoggerFactory.getLogger(ApnsConnectionImpl.class);
+
+    private static final long CLOSE_FLUSH_TIMEOUT_IN_MS = 5000;
     
     private final SocketFactory factory;
     private final String host;
@@ -66,7 +73,26 @@ public class ApnsConnectionImpl implements ApnsConnection {
     private int cacheLength;
     private final boolean errorDetection;
     private final boolean autoAdjustCacheLength;
-    private final ConcurrentLinkedQueue<ApnsNotification> cachedNotifications, notificationsBuffer;
+    private final ResendCache cachedNotifications;
+    private final ConcurrentLinkedQueue<ApnsNotification> notificationsBuffer;
+    private final int cacheBytes;
+    private final RetryBackoff retryBackoff;
+    private final LinkedList<ApnsNotification> retrying;
+    // the first notifications being retried are resent ones
+    private int retryingResent;
+    private boolean retryPending;
+    private int retryAttempts;
+    private final FlushPolicy flushPolicy;
+    private final CoalescingWriter writer;
+    // The notifications whose frames the writer holds, reported as sent
+    // once they were written out
+    private final List<ApnsNotification> unflushed = new ArrayList<ApnsNotification>();
+    private BitSet unflushedResent = new BitSet();
+    private int flushed;
+    private boolean reporting;
+    private boolean flushScheduled;
+    private final ResendWindow resendWindow;
+    private boolean expiryScheduled;
 
     public ApnsConnectionImpl(SocketFactory factory, String host, int port) {
         this(factory, host, port, new ReconnectPolicies.Never(), ApnsDelegate.EMPTY);
@@ -90,21 +116,135 @@ public class ApnsConnectionImpl implements ApnsConnection {
             int port, Proxy proxy,
             ReconnectPolicy reconnectPolicy, ApnsDelegate delegate,
             boolean errorDetection, int cacheLength, boolean autoAdjustCacheLength) {
+        this(factory, host, port, proxy, reconnectPolicy, delegate,
+                errorDetection, cacheLength, autoAdjustCacheLength, FlushPolicy.IMMEDIATE);
+    }
+
+    public ApnsConnectionImpl(SocketFactory factory, String host,
+            int port, Proxy proxy,
+            ReconnectPolicy reconnectPolicy, ApnsDelegate delegate,
+            boolean errorDetection, int cacheLength, boolean autoAdjustCacheLength,
+            FlushPolicy flushPolicy) {
+        this(factory, host, port, proxy, reconnectPolicy, delegate,
+                errorDetection, cacheLength, autoAdjustCacheLength, flushPolicy, 0);
+    }
+
+    /**
+     * @param cacheBytes    if positive, the resend cache keeps only the
+     *                      marshalled notifications in a direct buffer of
+     *                      that many bytes
+     */
+    public ApnsConnectionImpl(SocketFactory factory, String host,
+            int port, Proxy proxy,
+            ReconnectPolicy reconnectPolicy, ApnsDelegate delegate,
+            boolean errorDetection, int cacheLength, boolean autoAdjustCacheLength,
+            FlushPolicy flushPolicy, int cacheBytes) {
+        this(factory, host, port, proxy, reconnectPolicy, delegate,
+                errorDetection, cacheLength, autoAdjustCacheLength, flushPolicy,
+                cacheBytes, null);
+    }
+
+    /**
+     * @param retryBackoff  if not null, sends are retried in the background
+     *                      with this backoff instead of sleeping in the
+     *                      sending thread
+     */
+    public ApnsConnectionImpl(SocketFactory factory, String host,
+            int port, Proxy proxy,
+            ReconnectPolicy reconnectPolicy, ApnsDelegate delegate,
+            boolean errorDetection, int cacheLength, boolean autoAdjustCacheLength,
+            FlushPolicy flushPolicy, int cacheBytes, RetryBackoff retryBackoff) {
+        this(factory, host, port, proxy, reconnectPolicy, delegate,
+                errorDetection, cacheLength, autoAdjustCacheLength, flushPolicy,
+                cacheBytes, retryBackoff, null);
+    }
+
+    /**
+     * @param resendWindow  if not null, notifications are cached for the
+     *                      time and up to the bytes of this window, and
+     *                      the window replaces the count based
+     *                      auto-adjustment; {@code cacheLength} is then
+     *                      only the initial capacity of the cache
+     */
+    public ApnsConnectionImpl(SocketFactory factory, String host,
+            int port, Proxy proxy,
+            ReconnectPolicy reconnectPolicy, ApnsDelegate delegate,
+            boolean errorDetection, int cacheLength, boolean autoAdjustCacheLength,
+            FlushPolicy flushPolicy, int cacheBytes, RetryBackoff retryBackoff,
+            ResendWindow resendWindow) {
         this.factory = factory;
         this.host = host;
         this.port = port;
         this.reconnectPolicy = reconnectPolicy;
-        this.delegate = delegate == null ? ApnsDelegate.EMPTY : delegate;
+        this.delegate = AsyncDelegate.wrap(delegate);
         this.proxy = proxy;
         this.errorDetection = errorDetection;
         this.cacheLength = cacheLength;
         this.autoAdjustCacheLength = autoAdjustCacheLength;
-        cachedNotifications = new ConcurrentLinkedQueue<ApnsNotification>();
+        this.cacheBytes = cacheBytes;
+        cachedNotifications = cacheBytes > 0
+                ? new DirectFrameCache(cacheBytes, cacheLength, !AsyncDelegate.isEmpty(delegate))
+                : new NotificationRingBuffer(cacheLength);
         notificationsBuffer = new ConcurrentLinkedQueue<ApnsNotification>();
+        this.retryBackoff = retryBackoff;
+        this.retrying = new LinkedList<ApnsNotification>();
+        this.flushPolicy = flushPolicy;
+        // large enough for a whole chunk of bulk sent or resent notifications
+        this.writer = new CoalescingWriter(Math.max(flushPolicy.getBufferSize(), RESEND_CHUNK_SIZE));
+        this.resendWindow = resendWindow;
     }
 
     public synchronized void close() {
+        retryPending = false;
+        retryingResent = 0;
+        ApnsNotification m;
+        while ((m = retrying.poll()) != null) {
+            delegate.messageSendFailed(m, new NetworkIOException("Connection closed before the message could be sent"));
+        }
+        if (socket != null && !writer.isEmpty()) {
+            // a blocking write has no timeout of its own: a peer that
+            // stopped reading would keep close() from ever returning
+            final Socket flushed = socket;
+            ScheduledFuture<?> watchdog = SharedScheduler.retries().schedule(new Runnable() {
+                public void run() {
+                    logger.info("Flushing on close timed out, dropping the buffered notifications");
+                    Utilities.close(flushed);
+                }
+            }, CLOSE_FLUSH_TIMEOUT_IN_MS, TimeUnit.MILLISECONDS);
+            try {
+                flushBuffer();
+            } catch (IOException e) {
+                logger.info("Couldn't flush buffered notifications on close", e);
+                failBuffered(e);
+            } finally {
+                watchdog.cancel(false);
+            }
+        }
+        if (!unflushed.isEmpty()) {
+            // buffered for a connection that was dropped
+            failBuffered(new NetworkIOException("Connection closed before the message could be sent"));
+        }
         Utilities.close(socket);
+        // no error response can arrive for them any more
+        synchronized (cachedNotifications) {
+            cachedNotifications.clear();
+        }
+    }
+
+    // Called with the connection lock held
+    private void requeueBuffered(Socket monitored) {
+        if (socket != monitored) {
+            // already replaced: the buffer belongs to the new socket
+            return;
+        }
+        // Everything still buffered comes after the failed notification,
+        // so it is resent along with the cached notifications after it
+        notificationsBuffer.addAll(unflushed);
+        writer.discard();
+        unflushed.clear();
+        unflushedResent.clear();
+        // the next send reconnects, the monitor closes this one
+        socket = null;
     }
 
     private void monitorSocket(final Socket socket) {
@@ -112,7 +252,6 @@ public class ApnsConnectionImpl implements ApnsConnection {
 
             @Override
             public void run() {
-
                 try {
                     InputStream in = socket.getInputStream();
 
@@ -130,41 +269,39 @@ public class ApnsConnectionImpl implements ApnsConnection {
 
                         int id = Utilities.parseBytes(bytes[2], bytes[3], bytes[4], bytes[5]);
 
-                        Queue<ApnsNotification> tempCache = new LinkedList<ApnsNotification>();
-                        ApnsNotification notification = null;
-                        boolean foundNotification = false;
-
-                        while (!cachedNotifications.isEmpty()) {
-                            notification = cachedNotifications.poll();
-
-                            if (notification.getIdentifier() == id) {
-                                foundNotification = true;
-                                break;
+                        ApnsNotification notification;
+                        boolean found;
+                        int resendSize;
+                        int adjustedLength = -1;
+                        // Taking the connection lock first waits for a write
+                        // in progress, whose notifications are only cached
+                        // once it succeeded
+                        synchronized (ApnsConnectionImpl.this) {
+                            synchronized (cachedNotifications) {
+                                notification = cachedNotifications.get(id);
+                                found = cachedNotifications.contains(id);
+                                long latency = System.nanoTime() - cachedNotifications.addedAt(id);
+                                resendSize = cachedNotifications.drainAfter(id, notificationsBuffer);
+                                if (resendWindow != null) {
+                                    adjustedLength = resendWindow.errorReceived(found, latency, resendSize);
+                                } else if (!found && autoAdjustCacheLength) {
+                                    cacheLength = cacheLength + (resendSize / 2);
+                                    cachedNotifications.setCapacity(cacheLength);
+                                    adjustedLength = cacheLength;
+                                }
                             }
-                            tempCache.add(notification);
+                            requeueBuffered(socket);
                         }
 
-                        if (foundNotification) {
-                            delegate.messageSendFailed(notification, new ApnsDeliveryErrorException(e));
-                        } else {
-                            cachedNotifications.addAll(tempCache);
-                            int resendSize = tempCache.size();
+                        if (!found) {
                             logger.warn("Received error for message "
                                     + "that wasn't in the cache...");
-                            if (autoAdjustCacheLength) {
-                                cacheLength = cacheLength + (resendSize / 2);
-                                delegate.cacheLengthExceeded(cacheLength);
-                            }
-                            delegate.messageSendFailed(null, new ApnsDeliveryErrorException(e));
                         }
-
-                        int resendSize = 0;
-
-                        while (!cachedNotifications.isEmpty()) {
-                            resendSize++;
-                            notificationsBuffer.add(cachedNotifications.poll());
+                        if (adjustedLength >= 0) {
+                            delegate.cacheLengthExceeded(adjustedLength);
                         }
-                        
+                        delegate.messageSendFailed(notification, new ApnsDeliveryErrorException(e));
+
                         delegate.notificationsResent(resendSize);
                         delegate.connectionClosed(e, id);
                     }
@@ -176,7 +313,9 @@ public class ApnsConnectionImpl implements ApnsConnection {
                     logger.info("Exception while waiting for error code", e);
                     delegate.connectionClosed(DeliveryError.UNKNOWN, -1);
                 } finally {
-                    close();
+                    // a dropped connection leaves the buffered
+                    // notifications to the next socket
+                    Utilities.close(socket);
                     drainBuffer();
                 }
             }
@@ -191,12 +330,12 @@ public class ApnsConnectionImpl implements ApnsConnection {
 
     private synchronized Socket socket() throws NetworkIOException {
         if (reconnectPolicy.shouldReconnect()) {
-            Utilities.close(socket);
-            socket = null;
+            reconnect();
         }
 
         if (socket == null || socket.isClosed()) {
             try {
+                long start = System.nanoTime();
                 if (proxy == null) {
                     socket = factory.createSocket(host, port);
                 } else if (proxy.type() == Proxy.Type.HTTP) {
@@ -217,12 +356,21 @@ public class ApnsConnectionImpl implements ApnsConnection {
                     }
                 }
 
+                long connected = System.nanoTime();
+                long handshakeNanos = TlsSettings.handshake(factory, socket);
+
+                writer.setOutput(socket.getOutputStream());
+
                 if (errorDetection) {
                     monitorSocket(socket);
                 }
 
                 reconnectPolicy.reconnected();
-                logger.debug("Made a new connection to APNS");
+                logger.debug("Made a new connection to APNS (connect: {}us, handshake: {}us)",
+                        (connected - start) / 1000, handshakeNanos / 1000);
+                if (delegate instanceof ConnectionListener) {
+                    ((ConnectionListener) delegate).connectionEstablished(connected - start, handshakeNanos);
+                }
             } catch (IOException e) {
                 logger.error("Couldn't connect to APNS server", e);
                 throw new NetworkIOException(e);
@@ -230,6 +378,14 @@ public class ApnsConnectionImpl implements ApnsConnection {
         }
         return socket;
     }
+
+    // Unlike close(), leaves the retried and cached notifications alone:
+    // the bytes still buffered are written to the new socket
+    private void reconnect() {
+        Utilities.close(socket);
+        socket = null;
+    }
+
     int DELAY_IN_MS = 1000;
     private static final int RETRIES = 3;
 
@@ -238,19 +394,27 @@ public class ApnsConnectionImpl implements ApnsConnection {
     }
 
     public synchronized void sendMessage(ApnsNotification m, boolean fromBuffer) throws NetworkIOException {
+        if (retryPending) {
+            // Keep the order: queue up behind the notification being retried
+            retrying.add(m);
+            return;
+        }
 
         int attempts = 0;
+        boolean buffered = false;
         while (true) {
             try {
                 attempts++;
-                Socket socket = socket();
-                socket.getOutputStream().write(m.marshall());
-                socket.getOutputStream().flush();
-                cacheNotification(m);
-
-                delegate.messageSent(m, fromBuffer);
-
-                logger.debug("Message \"{}\" sent", m);
+                socket();
+                if (!buffered) {
+                    buffer(m, fromBuffer);
+                    buffered = true;
+                }
+                if (flushPolicy.shouldFlush(writer.size())) {
+                    flushBuffer();
+                } else {
+                    scheduleFlush();
+                }
 
                 attempts = 0;
                 drainBuffer();
@@ -258,13 +422,27 @@ public class ApnsConnectionImpl implements ApnsConnection {
             } catch (Exception e) {
                 Utilities.close(socket);
                 socket = null;
-                if (attempts >= RETRIES) {
-                    logger.error("Couldn't send message after " + RETRIES + " retries." + m, e);
-                    delegate.messageSendFailed(m, e);
+                int maxAttempts = retryBackoff != null ? retryBackoff.getAttempts() : RETRIES;
+                if (attempts >= maxAttempts) {
+                    logger.error("Couldn't send message after " + maxAttempts + " retries." + m, e);
+                    failBuffered(e);
+                    if (!buffered) {
+                        delegate.messageSendFailed(m, e);
+                    }
                     Utilities.wrapAndThrowAsRuntimeException(e);
                 }
-                // The first failure might be due to closed connection
-                // don't delay quite yet
+                // Even reconnecting after a dropped connection would block
+                // the caller on the handshake
+                if (retryBackoff != null) {
+                    logger.debug("Failed to send message " + m + "... retrying in the background", e);
+                    if (!buffered) {
+                        retrying.add(m);
+                    }
+                    retryPending = true;
+                    retryAttempts = attempts;
+                    scheduleRetry();
+                    return;
+                }
                 if (attempts != 1) {
                     // Do not spam the log files when the APNS server closed the socket (due to a
                     // bad token, for example), only log when on the second retry.
@@ -275,23 +453,395 @@ public class ApnsConnectionImpl implements ApnsConnection {
         }
     }
 
-    private void drainBuffer() {
-        if (!notificationsBuffer.isEmpty()) {
-            sendMessage(notificationsBuffer.poll(), true);
+    /**
+     * Sends the notifications packed into as few writes as possible, the
+     * way notifications are resent after an error, rather than one by one.
+     *
+     * @throws NetworkIOException if some of the notifications couldn't be
+     *      sent, which were reported to the delegate
+     */
+    public synchronized void sendMessages(Iterable<? extends ApnsNotification> messages) throws NetworkIOException {
+        if (retryPending) {
+            // Keep the order: queue up behind the notification being retried
+            for (ApnsNotification m : messages) {
+                retrying.add(m);
+            }
+            return;
+        }
+
+        int failed = 0;
+        int bytes = 0;
+        for (ApnsNotification m : messages) {
+            int length = m.marshall().length;
+            if (!chunk.isEmpty() && bytes + length > RESEND_CHUNK_SIZE) {
+                failed += writeChunk(false);
+                bytes = 0;
+            }
+            if (retryPending) {
+                // a chunk was handed off to the background retries
+                retrying.add(m);
+                continue;
+            }
+            chunk.add(m);
+            bytes += length;
+        }
+        if (!chunk.isEmpty()) {
+            failed += writeChunk(false);
+        }
+        drainBuffer();
+        if (failed > 0) {
+            throw new NetworkIOException("Couldn't send " + failed + " messages");
+        }
+    }
+
+    private void scheduleRetry() {
+        // The first failure might be due to closed connection:
+        // don't delay quite yet
+        long delay = retryAttempts == 1 ? 0 : retryBackoff.delayInNanos(retryAttempts - 1);
+        SharedScheduler.retries().schedule(new Runnable() {
+            public void run() {
+                retry();
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private synchronized void retry() {
+        if (!retryPending) {
+            // failed by close() in the meantime
+            return;
+        }
+        retryAttempts++;
+        try {
+            socket();
+            ApnsNotification m;
+            while ((m = retrying.peek()) != null) {
+                buffer(m, retryingResent > 0);
+                retrying.poll();
+                if (retryingResent > 0) {
+                    retryingResent--;
+                }
+            }
+            if (flushPolicy.shouldFlush(writer.size())) {
+                flushBuffer();
+            } else {
+                scheduleFlush();
+            }
+        } catch (Exception e) {
+            Utilities.close(socket);
+            socket = null;
+            if (retryAttempts >= retryBackoff.getAttempts()) {
+                logger.error("Couldn't send " + (unflushed.size() + retrying.size()) + " messages after "
+                        + retryAttempts + " attempts.", e);
+                retryPending = false;
+                retryingResent = 0;
+                failBuffered(e);
+                ApnsNotification m;
+                while ((m = retrying.poll()) != null) {
+                    delegate.messageSendFailed(m, e);
+                }
+            } else {
+                logger.info("Failed to send messages... retrying in the background", e);
+                scheduleRetry();
+            }
+            return;
+        }
+        retryPending = false;
+        drainBuffer();
+    }
+
+    /**
+     * Writes out the notifications buffered according to the
+     * {@link FlushPolicy}, retrying like {@link #sendMessage(ApnsNotification)}.
+     */
+    public synchronized void flush() throws NetworkIOException {
+        if (retryPending) {
+            // written out by the background retry
+            return;
+        }
+        int attempts = 0;
+        while (!writer.isEmpty()) {
+            try {
+                attempts++;
+                currentSocket();
+                flushBuffer();
+            } catch (Exception e) {
+                Utilities.close(socket);
+                socket = null;
+                int maxAttempts = retryBackoff != null ? retryBackoff.getAttempts() : RETRIES;
+                if (attempts >= maxAttempts) {
+                    logger.error("Couldn't flush notifications after " + maxAttempts + " retries.", e);
+                    failBuffered(e);
+                    Utilities.wrapAndThrowAsRuntimeException(e);
+                }
+                if (retryBackoff != null) {
+                    logger.debug("Failed to flush notifications... retrying in the background", e);
+                    retryPending = true;
+                    retryAttempts = attempts;
+                    scheduleRetry();
+                    return;
+                }
+                if (attempts != 1) {
+                    logger.info("Failed to flush notifications... trying again after delay", e);
+                    Utilities.sleep(DELAY_IN_MS);
+                }
+            }
+        }
+    }
+
+    // Flushing shouldn't trigger the reconnect policy, so only
+    // reconnect if the connection was dropped
+    private Socket currentSocket() throws NetworkIOException {
+        if (socket == null || socket.isClosed()) {
+            return socket();
+        }
+        return socket;
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled) {
+            return;
+        }
+        flushScheduled = true;
+        // Not on the shared timer: waiting for the connection lock, held
+        // by a sender sleeping between retries, would hold up its other tasks
+        SharedScheduler.retries().schedule(new Runnable() {
+            public void run() {
+                lingerFlush();
+            }
+        }, flushPolicy.getLingerInNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    private synchronized void lingerFlush() {
+        flushScheduled = false;
+        if (writer.isEmpty()) {
+            return;
+        }
+        // A single attempt, and no reconnect: a dropped connection is
+        // reconnected by the next send or flush, which writes the bytes
+        // still buffered
+        if (socket == null || socket.isClosed()) {
+            return;
+        }
+        try {
+            flushBuffer();
+        } catch (Exception e) {
+            logger.info("Failed to flush buffered notifications", e);
+            Utilities.close(socket);
+            socket = null;
+        }
+    }
+
+    // Resent notifications are written in chunks of about this size
+    private static final int RESEND_CHUNK_SIZE = 64 * 1024;
+    // the notifications of the chunk being written, reused across chunks
+    private final List<ApnsNotification> chunk = new ArrayList<ApnsNotification>();
+
+    /**
+     * Resends the notifications following a rejected one.  They are
+     * packed into large writes instead of going through
+     * {@link #sendMessage(ApnsNotification, boolean)} one by one.
+     */
+    private synchronized void drainBuffer() {
+        // while retrying in the background, the retry drains it afterwards
+        while (!retryPending && !notificationsBuffer.isEmpty()) {
+            ApnsNotification m;
+            int bytes = 0;
+            while ((m = notificationsBuffer.peek()) != null
+                    && (chunk.isEmpty() || bytes < RESEND_CHUNK_SIZE)) {
+                notificationsBuffer.poll();
+                bytes += m.marshall().length;
+                chunk.add(m);
+            }
+            if (writeChunk(true) > 0) {
+                // The rest is retried along with the next notification
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes the notifications of {@link #chunk} in a single flush, and
+     * clears it.  The frames are copied straight into the writer's
+     * buffer, which is sized to hold a whole chunk.  With a
+     * {@link RetryBackoff}, a failed chunk is handed off to the background
+     * retries instead.
+     *
+     * @return the number of notifications that couldn't be sent
+     */
+    private int writeChunk(boolean resent) {
+        int size = chunk.size();
+        int attempts = 0;
+        // the frames buffered so far survive a failed attempt
+        int buffered = 0;
+        while (true) {
+            try {
+                attempts++;
+                socket();
+                for (; buffered < size; buffered++) {
+                    buffer(chunk.get(buffered), resent);
+                }
+                flushBuffer();
+                break;
+            } catch (Exception e) {
+                Utilities.close(socket);
+                socket = null;
+                int maxAttempts = retryBackoff != null ? retryBackoff.getAttempts() : RETRIES;
+                if (attempts >= maxAttempts) {
+                    logger.error("Couldn't send " + (unflushed.size() + size - buffered)
+                            + " messages after " + maxAttempts + " retries.", e);
+                    int failed = failBuffered(e);
+                    for (int i = buffered; i < size; i++) {
+                        delegate.messageSendFailed(chunk.get(i), e);
+                    }
+                    chunk.clear();
+                    return failed + size - buffered;
+                }
+                if (retryBackoff != null) {
+                    logger.debug("Failed to send messages... retrying in the background", e);
+                    // the frames buffered so far are written by the retry
+                    // too, ahead of the rest of the chunk
+                    List<ApnsNotification> rest = chunk.subList(buffered, size);
+                    if (resent) {
+                        retrying.addAll(retryingResent, rest);
+                        retryingResent += rest.size();
+                    } else {
+                        retrying.addAll(rest);
+                    }
+                    chunk.clear();
+                    retryPending = true;
+                    retryAttempts = attempts;
+                    scheduleRetry();
+                    return 0;
+                }
+                if (attempts != 1) {
+                    logger.info("Failed to send messages... trying again after delay", e);
+                    Utilities.sleep(DELAY_IN_MS);
+                }
+            }
+        }
+        chunk.clear();
+        return 0;
+    }
+
+    /**
+     * Adds the frame of the notification to the writer, writing out the
+     * frames buffered before if there is no room left for it.
+     */
+    private void buffer(ApnsNotification m, boolean resent) throws IOException {
+        byte[] frame = m.marshall();
+        if (!writer.fits(frame.length)) {
+            flushBuffer();
+        }
+        writer.write(frame);
+        unflushedResent.set(unflushed.size(), resent);
+        unflushed.add(m);
+    }
+
+    /**
+     * Writes out the buffered frames, then caches their notifications
+     * and reports them as sent.
+     */
+    private void flushBuffer() throws IOException {
+        writer.flush();
+        flushed = unflushed.size();
+        if (reporting) {
+            // sent by the delegate, the outer call reports them
+            return;
+        }
+        reporting = true;
+        try {
+            for (int i = 0; i < flushed; i++) {
+                ApnsNotification m = unflushed.get(i);
+                cacheNotification(m);
+                delegate.messageSent(m, unflushedResent.get(i));
+                logger.debug("Message \"{}\" sent", m);
+            }
+        } finally {
+            reporting = false;
+        }
+        removeBuffered(flushed);
+    }
+
+    /**
+     * Drops the buffered frames and reports their notifications as
+     * failed.
+     *
+     * @return the number of notifications that failed
+     */
+    private int failBuffered(Exception e) {
+        writer.discard();
+        int failed = unflushed.size();
+        for (int i = 0; i < failed; i++) {
+            delegate.messageSendFailed(unflushed.get(i), e);
+        }
+        removeBuffered(failed);
+        return failed;
+    }
+
+    // the delegate may have buffered more in the meantime
+    private void removeBuffered(int count) {
+        if (count == unflushed.size()) {
+            unflushed.clear();
+            unflushedResent.clear();
+        } else {
+            unflushed.subList(0, count).clear();
+            unflushedResent = unflushedResent.get(count, Math.max(count, unflushedResent.length()));
         }
+        flushed = 0;
     }
 
     private void cacheNotification(ApnsNotification notification) {
-        cachedNotifications.add(notification);
-        while (cachedNotifications.size() > cacheLength) {
-            cachedNotifications.poll();
-            logger.debug("Removing notification from cache " + notification);
+        if (!errorDetection) {
+            // nothing is ever resent, and no error reported
+            AsyncNotification.presumeDelivered(notification);
+            return;
+        }
+        int evicted = 0;
+        synchronized (cachedNotifications) {
+            if (resendWindow != null) {
+                evicted += expire();
+                if (cachedNotifications.size() == cachedNotifications.capacity()) {
+                    // the window decides what is cached, not the count
+                    cachedNotifications.setCapacity(Math.max(1, cachedNotifications.capacity() * 2));
+                }
+            }
+            evicted += cachedNotifications.add(notification);
+            if (resendWindow != null && !expiryScheduled) {
+                expiryScheduled = true;
+                scheduleExpiry();
+            }
         }
+        if (evicted > 0) {
+            logger.debug("Removed {} notifications from cache", evicted);
+        }
+    }
+
+    private int expire() {
+        return cachedNotifications.expire(System.nanoTime() - resendWindow.windowNanos(),
+                resendWindow.maxBytes());
+    }
+
+    // Notifications leave the window even when nothing else is sent, so
+    // that their futures are completed
+    private void scheduleExpiry() {
+        SharedScheduler.get().schedule(new Runnable() {
+            public void run() {
+                synchronized (cachedNotifications) {
+                    expire();
+                    if (cachedNotifications.isEmpty()) {
+                        expiryScheduled = false;
+                    } else {
+                        scheduleExpiry();
+                    }
+                }
+            }
+        }, resendWindow.windowNanos(), TimeUnit.NANOSECONDS);
     }
 
     public ApnsConnectionImpl copy() {
         return new ApnsConnectionImpl(factory, host, port, proxy, reconnectPolicy.copy(),
-                delegate, errorDetection, cacheLength, autoAdjustCacheLength);
+                delegate, errorDetection, cacheLength, autoAdjustCacheLength, flushPolicy,
+                cacheBytes, retryBackoff, resendWindow == null ? null : resendWindow.copy());
     }
 
     public void testConnection() throws NetworkIOException {
@@ -306,8 +856,21 @@ public class ApnsConnectionImpl implements ApnsConnection {
         }
     }
 
+    public synchronized void warmUp() throws NetworkIOException {
+        try {
+            currentSocket();
+        } catch (RuntimeException e) {
+            Utilities.close(socket);
+            socket = null;
+            throw e;
+        }
+    }
+
     public void setCacheLength(int cacheLength) {
-        this.cacheLength = cacheLength;
+        synchronized (cachedNotifications) {
+            this.cacheLength = cacheLength;
+            cachedNotifications.setCapacity(cacheLength);
+        }
     }
 
     public int getCacheLength() {
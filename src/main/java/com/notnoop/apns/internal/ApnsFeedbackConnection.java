@@ -36,11 +36,15 @@ import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.Socket;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLSocketFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.notnoop.apns.FeedbackListener;
 import com.notnoop.exceptions.NetworkIOException;
 
 public class ApnsFeedbackConnection {
@@ -50,6 +54,8 @@ public class ApnsFeedbackConnection {
     private final String host;
     private final int port;
     private final Proxy proxy;
+    private final RetryBackoff retryBackoff;
+    private final int readTimeoutMillis;
 
     public ApnsFeedbackConnection(final SocketFactory factory, final String host, final int port) {
         this(factory, host, port, null);
@@ -57,24 +63,75 @@ public class ApnsFeedbackConnection {
 
     public ApnsFeedbackConnection(final SocketFactory factory, final String host, final int port,
             final Proxy proxy) {
+        this(factory, host, port, proxy, RetryBackoff.DEFAULT);
+    }
+
+    /**
+     * @param retryBackoff  the retries of {@link #getInactiveDevicesAsync()}
+     */
+    public ApnsFeedbackConnection(final SocketFactory factory, final String host, final int port,
+            final Proxy proxy, final RetryBackoff retryBackoff) {
+        this(factory, host, port, proxy, retryBackoff, 0);
+    }
+
+    /**
+     * @param readTimeoutMillis how long a read from the feedback service
+     *                          may block before the attempt fails, 0 for
+     *                          no limit
+     */
+    public ApnsFeedbackConnection(final SocketFactory factory, final String host, final int port,
+            final Proxy proxy, final RetryBackoff retryBackoff, final int readTimeoutMillis) {
+        if (readTimeoutMillis < 0) {
+            throw new IllegalArgumentException("readTimeoutMillis must not be negative: " + readTimeoutMillis);
+        }
         this.factory = factory;
         this.host = host;
         this.port = port;
         this.proxy = proxy;
+        this.retryBackoff = retryBackoff;
+        this.readTimeoutMillis = readTimeoutMillis;
     }
 
     int DELAY_IN_MS = 1000;
     private static final int RETRIES = 3;
 
+    /**
+     * Returns the inactive devices.  If every attempt failed, the devices
+     * read before the failures are returned, as the feedback service
+     * doesn't report them again; only if there are none the last error
+     * is thrown.
+     */
     public Map<String, Date> getInactiveDevices() throws NetworkIOException {
+        final Map<String, Date> result = new HashMap<String, Date>();
+        try {
+            getInactiveDevices(Utilities.inactiveDevicesCollector(result));
+        } catch (final RuntimeException e) {
+            if (result.isEmpty()) {
+                throw e;
+            }
+            logger.warn("Returning the {} inactive devices read before the feedback connection failed",
+                    result.size());
+        }
+        return result;
+    }
+
+    /**
+     * Passes the inactive devices on to {@code listener} as they are
+     * read, retrying like {@link #getInactiveDevices()}.  The devices
+     * read before a failed attempt were passed on already; the feedback
+     * service doesn't report them again.
+     *
+     * The retries block the calling thread: up to three attempts are
+     * made, a second apart.  Only {@link #getInactiveDevicesAsync()}
+     * backs off according to the {@link RetryBackoff}.
+     */
+    public void getInactiveDevices(final FeedbackListener listener) throws NetworkIOException {
         int attempts = 0;
         while (true) {
             try {
                 attempts++;
-                final Map<String, Date> result = getInactiveDevicesImpl();
-
-                attempts = 0;
-                return result;
+                readInactiveDevices(listener);
+                return;
             } catch (final Exception e) {
                 logger.warn("Failed to retreive invalid devices", e);
                 if (attempts >= RETRIES) {
@@ -86,7 +143,54 @@ public class ApnsFeedbackConnection {
         }
     }
 
+    /**
+     * Retrieves the inactive devices in the background, retrying with
+     * backoff instead of sleeping in the calling thread.  Like
+     * {@link #getInactiveDevices()}, the future only fails if no device
+     * was read.
+     */
+    public Future<Map<String, Date>> getInactiveDevicesAsync() {
+        SettableFuture<Map<String, Date>> result = new SettableFuture<Map<String, Date>>();
+        fetchInactiveDevices(result, new HashMap<String, Date>(), 0, 0);
+        return result;
+    }
+
+    // the attempts run one after another, so the map needs no locking
+    private void fetchInactiveDevices(final SettableFuture<Map<String, Date>> result,
+            final Map<String, Date> devices, final int failed, long delayInNanos) {
+        SharedScheduler.retries().schedule(new Runnable() {
+            public void run() {
+                if (result.isCancelled()) {
+                    return;
+                }
+                try {
+                    readInactiveDevices(Utilities.inactiveDevicesCollector(devices));
+                    result.set(devices);
+                } catch (Exception e) {
+                    logger.warn("Failed to retreive invalid devices", e);
+                    int attempts = failed + 1;
+                    if (attempts < retryBackoff.getAttempts()) {
+                        fetchInactiveDevices(result, devices, attempts, retryBackoff.delayInNanos(attempts));
+                    } else if (!devices.isEmpty()) {
+                        logger.warn("Returning the {} inactive devices read before the feedback connection failed",
+                                devices.size());
+                        result.set(devices);
+                    } else {
+                        logger.error("Couldn't get feedback connection", e);
+                        result.setException(e);
+                    }
+                }
+            }
+        }, delayInNanos, TimeUnit.NANOSECONDS);
+    }
+
     public Map<String, Date> getInactiveDevicesImpl() throws IOException {
+        final Map<String, Date> result = new HashMap<String, Date>();
+        readInactiveDevices(Utilities.inactiveDevicesCollector(result));
+        return result;
+    }
+
+    private void readInactiveDevices(final FeedbackListener listener) throws IOException {
         Socket proxySocket = null;
         Socket socket = null;
         try {
@@ -100,9 +204,13 @@ public class ApnsFeedbackConnection {
                 proxySocket.connect(new InetSocketAddress(host, port));
                 socket = ((SSLSocketFactory) factory).createSocket(proxySocket, host, port, false);
             }
-            
+            TlsSettings.handshake(factory, socket);
+
+            if (readTimeoutMillis > 0) {
+                socket.setSoTimeout(readTimeoutMillis);
+            }
             final InputStream stream = socket.getInputStream();
-            return Utilities.parseFeedbackStream(stream);
+            Utilities.parseFeedbackStream(stream, listener);
         } finally {
             Utilities.close(socket);
             Utilities.close(proxySocket);
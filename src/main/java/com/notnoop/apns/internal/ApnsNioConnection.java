@@ -0,0 +1,844 @@
+package com.notnoop.apns.internal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ConnectionListener;
+import com.notnoop.apns.DeliveryError;
+import com.notnoop.exceptions.ApnsDeliveryErrorException;
+import com.notnoop.exceptions.NetworkIOException;
+
+/**
+ * A gateway connection built on a non-blocking {@code SocketChannel} and
+ * an {@code SSLEngine}.
+ *
+ * Unlike {@link ApnsConnectionImpl}, {@link #sendMessage(ApnsNotification)}
+ * never blocks: notifications are queued and written by a
+ * {@link SelectorLoop} thread, which also reads the error responses and
+ * reconnects when needed.  A handful of loop threads can therefore serve
+ * hundreds of connections.
+ *
+ * Failures are only reported through the {@link ApnsDelegate}.
+ */
+public class ApnsNioConnection implements ApnsConnection {
+    private static final Logger logger = LoggerFactory.getLogger(ApnsNioConnection.class);
+
+    private static final int RETRIES = 3;
+    private static final int ERROR_RESPONSE_LENGTH = 6;
+    private static final long CLOSE_TIMEOUT_IN_MS = 10000;
+    private static final long FINISH_CLOSE_TIMEOUT_IN_MS = 1000;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private enum State { DISCONNECTED, CONNECTING, HANDSHAKING, READY, CLOSED }
+
+    private final SSLContext sslContext;
+    private final TlsSettings tls;
+    private final ResendWindow resendWindow;
+    private boolean expiryScheduled;
+    private final String host;
+    private final int port;
+    private final ApnsDelegate delegate;
+    private final boolean errorDetection;
+    private final boolean autoAdjustCacheLength;
+    private volatile int cacheLength;
+
+    private final SelectorLoopGroup group;
+    private final boolean ownsGroup;
+    private final SelectorLoop loop;
+
+    int DELAY_IN_MS = 1000;
+
+    // Shared between the producers and the loop thread
+    private final ConcurrentLinkedQueue<ApnsNotification> pending;
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    private final CountDownLatch closeLatch = new CountDownLatch(1);
+    private volatile boolean closed;
+
+    // Only touched from the loop thread
+    private final int cacheBytes;
+    private final ResendCache cachedNotifications;
+    private final LinkedList<ApnsNotification> notificationsBuffer;
+    private int bufferedResends;
+    // Encoded but not completely written out yet, reported as sent once
+    // the socket took all their bytes
+    private final LinkedList<ApnsNotification> unwritten = new LinkedList<ApnsNotification>();
+    private int unwrittenResends;
+    private long wrappedBytes;
+    private State state = State.DISCONNECTED;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private SSLEngine engine;
+    private ByteBuffer appOut, netOut, appIn, netIn;
+    private int attempts;
+    private boolean reconnectScheduled;
+    private boolean closing;
+    private long connectStarted, handshakeStarted, handshakeStartedMillis;
+    private final List<SettableFuture<Void>> warmUps = new ArrayList<SettableFuture<Void>>();
+
+    public ApnsNioConnection(SSLContext sslContext, String host, int port,
+            ApnsDelegate delegate, boolean errorDetection, int cacheLength,
+            boolean autoAdjustCacheLength, int cacheBytes,
+            SelectorLoopGroup group, boolean ownsGroup, TlsSettings tls,
+            ResendWindow resendWindow) {
+        this.sslContext = sslContext;
+        this.tls = tls;
+        this.resendWindow = resendWindow;
+        this.host = host;
+        this.port = port;
+        this.delegate = AsyncDelegate.wrap(delegate);
+        this.errorDetection = errorDetection;
+        this.cacheLength = cacheLength;
+        this.autoAdjustCacheLength = autoAdjustCacheLength;
+        this.group = group;
+        this.ownsGroup = ownsGroup;
+        this.loop = group.next();
+        pending = new ConcurrentLinkedQueue<ApnsNotification>();
+        this.cacheBytes = cacheBytes;
+        cachedNotifications = cacheBytes > 0
+                ? new DirectFrameCache(cacheBytes, cacheLength, !AsyncDelegate.isEmpty(delegate))
+                : new NotificationRingBuffer(cacheLength);
+        notificationsBuffer = new LinkedList<ApnsNotification>();
+    }
+
+    public void sendMessage(ApnsNotification m) throws NetworkIOException {
+        if (closed) {
+            throw new IllegalStateException("connection was closed");
+        }
+        pending.add(m);
+        if (writeScheduled.compareAndSet(false, true)) {
+            loop.execute(writeTask);
+        }
+    }
+
+    /**
+     * Queues the notifications with a single wake up of the selector
+     * thread, which writes them out together.
+     */
+    public void sendMessages(Iterable<? extends ApnsNotification> messages) throws NetworkIOException {
+        if (closed) {
+            throw new IllegalStateException("connection was closed");
+        }
+        for (ApnsNotification m : messages) {
+            pending.add(m);
+        }
+        if (writeScheduled.compareAndSet(false, true)) {
+            loop.execute(writeTask);
+        }
+    }
+
+    /**
+     * Does nothing: the selector thread writes out queued notifications
+     * as fast as the socket accepts them.
+     */
+    public void flush() throws NetworkIOException {
+    }
+
+    private final Runnable writeTask = new Runnable() {
+        public void run() {
+            writeScheduled.set(false);
+            if (state == State.DISCONNECTED) {
+                if (!reconnectScheduled) {
+                    connect();
+                }
+            } else if (state == State.READY) {
+                try {
+                    write();
+                } catch (IOException e) {
+                    disconnected(e);
+                }
+            }
+        }
+    };
+
+    private final SelectorLoop.Handler handler = new SelectorLoop.Handler() {
+        public void ready(SelectionKey k) {
+            try {
+                if (k.isConnectable()) {
+                    channel.finishConnect();
+                    k.interestOps(SelectionKey.OP_READ);
+                    startHandshake();
+                }
+                if (k.isValid() && k.isReadable()) {
+                    read();
+                }
+                if (k.isValid() && k.isWritable()) {
+                    if (state == State.HANDSHAKING) {
+                        handshake();
+                    } else if (state == State.READY) {
+                        write();
+                    }
+                }
+            } catch (IOException e) {
+                disconnected(e);
+            }
+        }
+    };
+
+    // Resolving the host may block, so it is done on a retry thread
+    // rather than on the loop shared by other connections
+    private void connect() {
+        state = State.CONNECTING;
+        connectStarted = System.nanoTime();
+        SharedScheduler.retries().execute(new Runnable() {
+            public void run() {
+                final InetSocketAddress address = new InetSocketAddress(host, port);
+                loop.execute(new Runnable() {
+                    public void run() {
+                        if (state != State.CONNECTING) {
+                            // closed in the meantime
+                            return;
+                        }
+                        if (address.isUnresolved()) {
+                            connectFailed(new UnknownHostException(host));
+                        } else {
+                            connect(address);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void connect(InetSocketAddress address) {
+        try {
+            engine = sslContext.createSSLEngine(host, port);
+            engine.setUseClientMode(true);
+            tls.configure(engine);
+            SSLSession session = engine.getSession();
+            appOut = ByteBuffer.allocate(session.getApplicationBufferSize());
+            appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+            netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+            netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            if (channel.connect(address)) {
+                key = loop.register(channel, SelectionKey.OP_READ, handler);
+                startHandshake();
+            } else {
+                key = loop.register(channel, SelectionKey.OP_CONNECT, handler);
+            }
+        } catch (IOException e) {
+            connectFailed(e);
+        }
+    }
+
+    private void startHandshake() throws IOException {
+        state = State.HANDSHAKING;
+        handshakeStarted = System.nanoTime();
+        handshakeStartedMillis = System.currentTimeMillis();
+        engine.beginHandshake();
+        handshake();
+    }
+
+    private void handshake() throws IOException {
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+            case NEED_WRAP:
+                wrap(EMPTY);
+                if (!flushNetwork()) {
+                    return;
+                }
+                break;
+            case NEED_UNWRAP:
+                if (!unwrapHandshake()) {
+                    return;
+                }
+                break;
+            case NEED_TASK:
+                runDelegatedTasks();
+                break;
+            default:
+                if (!flushNetwork()) {
+                    return;
+                }
+                state = State.READY;
+                attempts = 0;
+                long now = System.nanoTime();
+                logger.debug("Made a new connection to APNS (connect: {}us, handshake: {}us)",
+                        (handshakeStarted - connectStarted) / 1000, (now - handshakeStarted) / 1000);
+                tls.handshakeCompleted(engine.getSession(), handshakeStartedMillis, now - handshakeStarted);
+                if (delegate instanceof ConnectionListener) {
+                    ((ConnectionListener) delegate).connectionEstablished(handshakeStarted - connectStarted, now - handshakeStarted);
+                }
+                for (SettableFuture<Void> warmUp : warmUps) {
+                    warmUp.set(null);
+                }
+                warmUps.clear();
+                write();
+                return;
+            }
+        }
+    }
+
+    private boolean unwrapHandshake() throws IOException {
+        netIn.flip();
+        SSLEngineResult result = engine.unwrap(netIn, appIn);
+        netIn.compact();
+        switch (result.getStatus()) {
+        case BUFFER_UNDERFLOW:
+            if (!netIn.hasRemaining()) {
+                netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+            }
+            int read = channel.read(netIn);
+            if (read < 0) {
+                throw new EOFException("Connection closed during the TLS handshake");
+            }
+            return read > 0;
+        case BUFFER_OVERFLOW:
+            appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+            return true;
+        case CLOSED:
+            throw new SSLException("TLS engine closed during the handshake");
+        default:
+            return true;
+        }
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private void wrap(ByteBuffer src) throws IOException {
+        while (true) {
+            SSLEngineResult result = engine.wrap(src, netOut);
+            switch (result.getStatus()) {
+            case BUFFER_OVERFLOW:
+                netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+                break;
+            case CLOSED:
+                if (!closing) {
+                    throw new SSLException("TLS engine closed");
+                }
+                return;
+            default:
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes out the encrypted bytes, returns true if nothing is left
+     * to be written.
+     */
+    private boolean flushNetwork() throws IOException {
+        netOut.flip();
+        while (netOut.hasRemaining() && channel.write(netOut) > 0) {
+            // keep writing until the socket buffer is full
+        }
+        boolean flushed = !netOut.hasRemaining();
+        netOut.compact();
+        key.interestOps(flushed ? SelectionKey.OP_READ
+                : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        if (flushed) {
+            reportWritten();
+        }
+        return flushed;
+    }
+
+    // Everything encrypted so far was written, so were the frames whose
+    // bytes were all consumed by the engine
+    private void reportWritten() {
+        ApnsNotification m;
+        while ((m = unwritten.peek()) != null && m.marshall().length <= wrappedBytes) {
+            wrappedBytes -= m.marshall().length;
+            unwritten.poll();
+            reportSent(m);
+        }
+    }
+
+    private void reportSent(ApnsNotification m) {
+        boolean resent = unwrittenResends > 0;
+        if (resent) {
+            unwrittenResends--;
+        }
+        cacheNotification(m);
+
+        delegate.messageSent(m, resent);
+        logger.debug("Message \"{}\" sent", m);
+    }
+
+    private void write() throws IOException {
+        while (true) {
+            if (netOut.position() > 0 && !flushNetwork()) {
+                return;
+            }
+            if (!fill()) {
+                if (closing) {
+                    finishClose();
+                }
+                return;
+            }
+            appOut.flip();
+            int remaining = appOut.remaining();
+            wrap(appOut);
+            wrappedBytes += remaining - appOut.remaining();
+            appOut.compact();
+        }
+    }
+
+    /**
+     * Moves queued notifications into the plain-text buffer, returns true
+     * if there is anything to be encrypted.
+     */
+    private boolean fill() {
+        while (true) {
+            boolean fromBuffer = !notificationsBuffer.isEmpty();
+            ApnsNotification m = fromBuffer ? notificationsBuffer.peek() : pending.peek();
+            if (m == null) {
+                break;
+            }
+            int length = m.marshall().length;
+            if (length > appOut.remaining()) {
+                if (appOut.position() > 0) {
+                    break;
+                }
+                appOut = enlarge(appOut, length);
+            }
+            FrameEncoder.encode(appOut, m);
+            if (fromBuffer) {
+                notificationsBuffer.poll();
+            } else {
+                pending.poll();
+            }
+            // the resent notifications always come first
+            if (fromBuffer && bufferedResends > 0) {
+                bufferedResends--;
+                unwrittenResends++;
+            }
+            unwritten.add(m);
+        }
+        return appOut.position() > 0;
+    }
+
+    private void read() throws IOException {
+        if (state == State.HANDSHAKING) {
+            handshake();
+            return;
+        }
+        if (state != State.READY) {
+            return;
+        }
+
+        boolean eof = channel.read(netIn) < 0;
+        netIn.flip();
+        while (netIn.hasRemaining()) {
+            SSLEngineResult result = engine.unwrap(netIn, appIn);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                break;
+            } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+            } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                eof = true;
+                break;
+            }
+
+            // Post-handshake messages, e.g. session tickets or key updates
+            if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+            }
+            if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                wrap(EMPTY);
+                flushNetwork();
+            }
+        }
+        netIn.compact();
+        if (!netIn.hasRemaining()) {
+            netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+        }
+
+        if (readErrorResponse()) {
+            return;
+        }
+        if (eof) {
+            throw new EOFException("Connection closed by APNS server");
+        }
+    }
+
+    /**
+     * Parses an error response if a complete one was received, returns
+     * true if the connection was dropped because of it.
+     */
+    private boolean readErrorResponse() throws IOException {
+        appIn.flip();
+        try {
+            if (appIn.remaining() < ERROR_RESPONSE_LENGTH) {
+                return false;
+            }
+            int command = appIn.get() & 0xFF;
+            if (command != 8) {
+                throw new IOException("Unexpected command byte " + command);
+            }
+            int statusCode = appIn.get() & 0xFF;
+            int id = appIn.getInt();
+            handleError(DeliveryError.ofCode(statusCode), id);
+            return true;
+        } finally {
+            appIn.compact();
+        }
+    }
+
+    private void handleError(DeliveryError e, int id) {
+        LinkedList<ApnsNotification> resend = new LinkedList<ApnsNotification>();
+        ApnsNotification notification = null;
+        int resendSize = 0;
+
+        if (errorDetection) {
+            reportReceived(id);
+            notification = cachedNotifications.get(id);
+            boolean found = cachedNotifications.contains(id);
+            long latency = System.nanoTime() - cachedNotifications.addedAt(id);
+            resendSize = cachedNotifications.drainAfter(id, resend);
+
+            int adjustedLength = -1;
+            if (resendWindow != null) {
+                adjustedLength = resendWindow.errorReceived(found, latency, resendSize);
+            } else if (!found && autoAdjustCacheLength) {
+                cacheLength = cacheLength + (resendSize / 2);
+                cachedNotifications.setCapacity(cacheLength);
+                adjustedLength = cacheLength;
+            }
+
+            if (!found) {
+                logger.warn("Received error for message that wasn't in the cache...");
+            }
+            if (adjustedLength >= 0) {
+                delegate.cacheLengthExceeded(adjustedLength);
+            }
+            delegate.messageSendFailed(notification, new ApnsDeliveryErrorException(e));
+        }
+
+        delegate.notificationsResent(resendSize);
+        delegate.connectionClosed(e, id);
+
+        closeChannel();
+        notificationsBuffer.addAll(0, resend);
+        bufferedResends += resend.size();
+        if (closing) {
+            finishClose();
+        } else if (hasWork()) {
+            connect();
+        }
+    }
+
+    // The server received the failed notification, and everything before
+    // it, even if the socket hasn't taken the bytes after it yet
+    private void reportReceived(int id) {
+        int received = 0;
+        for (ApnsNotification m : unwritten) {
+            received++;
+            if (m.getIdentifier() == id) {
+                for (int i = 0; i < received; i++) {
+                    reportSent(unwritten.poll());
+                }
+                return;
+            }
+        }
+    }
+
+    private void disconnected(IOException e) {
+        if (state == State.CONNECTING || state == State.HANDSHAKING) {
+            connectFailed(e);
+            return;
+        }
+        // An exception when reading the error code is non-critical, it will cause another retry
+        // sending the message. Other than providing a more stable network connection to the APNS
+        // server we can't do much about it - so let's not spam the application's error log.
+        logger.info("Connection to APNS dropped", e);
+        delegate.connectionClosed(DeliveryError.UNKNOWN, -1);
+        closeChannel();
+        if (closing) {
+            finishClose();
+        } else if (hasWork()) {
+            connect();
+        }
+    }
+
+    private void connectFailed(IOException e) {
+        closeChannel();
+        attempts++;
+        if (closing) {
+            finishClose();
+        } else if (attempts >= RETRIES) {
+            logger.error("Couldn't connect to APNS server after " + RETRIES + " retries", e);
+            attempts = 0;
+            failQueued(e);
+        } else {
+            logger.info("Failed to connect to APNS server... trying again after delay", e);
+            // The first failure might be due to closed connection
+            // don't delay quite yet
+            scheduleReconnect(attempts == 1 ? 0 : DELAY_IN_MS);
+        }
+    }
+
+    private void scheduleReconnect(long delayInMs) {
+        reconnectScheduled = true;
+        loop.schedule(new Runnable() {
+            public void run() {
+                reconnectScheduled = false;
+                if (state != State.DISCONNECTED) {
+                    return;
+                }
+                if (hasWork()) {
+                    connect();
+                } else if (closing) {
+                    finishClose();
+                }
+            }
+        }, delayInMs);
+    }
+
+    private boolean hasWork() {
+        return !notificationsBuffer.isEmpty() || !pending.isEmpty() || !warmUps.isEmpty();
+    }
+
+    private void failQueued(Exception e) {
+        bufferedResends = 0;
+        ApnsNotification m;
+        while ((m = notificationsBuffer.poll()) != null) {
+            delegate.messageSendFailed(m, e);
+        }
+        while ((m = pending.poll()) != null) {
+            delegate.messageSendFailed(m, e);
+        }
+        for (SettableFuture<Void> warmUp : warmUps) {
+            warmUp.setException(e);
+        }
+        warmUps.clear();
+    }
+
+    private void closeChannel() {
+        if (key != null) {
+            key.cancel();
+        }
+        Utilities.close(channel);
+        channel = null;
+        key = null;
+        engine = null;
+        state = State.DISCONNECTED;
+
+        // sent again on the next connection
+        notificationsBuffer.addAll(0, unwritten);
+        bufferedResends += unwrittenResends;
+        unwritten.clear();
+        unwrittenResends = 0;
+        wrappedBytes = 0;
+    }
+
+    private void cacheNotification(ApnsNotification notification) {
+        if (!errorDetection) {
+            AsyncNotification.presumeDelivered(notification);
+            return;
+        }
+        // setCacheLength may be called from any thread
+        if (cachedNotifications.capacity() != cacheLength) {
+            cachedNotifications.setCapacity(cacheLength);
+        }
+        int evicted = 0;
+        if (resendWindow != null) {
+            evicted += expire();
+            if (cachedNotifications.size() == cachedNotifications.capacity()) {
+                // the window decides what is cached, not the count
+                cacheLength = Math.max(1, cacheLength * 2);
+                cachedNotifications.setCapacity(cacheLength);
+            }
+            if (!expiryScheduled) {
+                expiryScheduled = true;
+                scheduleExpiry();
+            }
+        }
+        evicted += cachedNotifications.add(notification);
+        if (evicted > 0) {
+            logger.debug("Removed {} notifications from cache", evicted);
+        }
+    }
+
+    private int expire() {
+        return cachedNotifications.expire(System.nanoTime() - resendWindow.windowNanos(),
+                resendWindow.maxBytes());
+    }
+
+    // Notifications leave the window even when nothing else is sent, so
+    // that their futures are completed
+    private void scheduleExpiry() {
+        loop.schedule(new Runnable() {
+            public void run() {
+                expire();
+                if (cachedNotifications.isEmpty()) {
+                    expiryScheduled = false;
+                } else {
+                    scheduleExpiry();
+                }
+            }
+        }, Math.max(1, TimeUnit.NANOSECONDS.toMillis(resendWindow.windowNanos())));
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer buffer, int minimum) {
+        ByteBuffer larger = ByteBuffer.allocate(
+                Math.max(buffer.capacity() * 2, buffer.position() + minimum));
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        loop.execute(new Runnable() {
+            public void run() {
+                closing = true;
+                if (state == State.READY) {
+                    try {
+                        write();
+                    } catch (IOException e) {
+                        disconnected(e);
+                    }
+                } else if (state == State.DISCONNECTED && !reconnectScheduled) {
+                    if (hasWork()) {
+                        connect();
+                    } else {
+                        finishClose();
+                    }
+                }
+            }
+        });
+
+        if (!loop.inLoop()) {
+            try {
+                if (!closeLatch.await(CLOSE_TIMEOUT_IN_MS, TimeUnit.MILLISECONDS)) {
+                    logger.warn("Timed out while flushing the connection on close");
+                    loop.execute(new Runnable() {
+                        public void run() {
+                            finishClose();
+                        }
+                    });
+                    // finishClose fails the queued notifications, so the
+                    // loop must get to run it before it is shut down
+                    if (!closeLatch.await(FINISH_CLOSE_TIMEOUT_IN_MS, TimeUnit.MILLISECONDS)) {
+                        failPending(new IOException("Connection was closed before the message was sent"));
+                    }
+                }
+            } catch (InterruptedException e) {
+                logger.warn("connection close interrupted", e);
+                failPending(new IOException("Connection was closed before the message was sent"));
+            }
+        }
+        if (ownsGroup) {
+            group.shutdown();
+        }
+    }
+
+    // Safe from any thread, unlike failQueued: the notifications taken
+    // off pending by the loop are failed by the loop itself
+    private void failPending(Exception e) {
+        ApnsNotification m;
+        while ((m = pending.poll()) != null) {
+            delegate.messageSendFailed(m, e);
+        }
+    }
+
+    private void finishClose() {
+        if (state == State.CLOSED) {
+            return;
+        }
+        if (state == State.READY) {
+            try {
+                engine.closeOutbound();
+                wrap(EMPTY);
+                flushNetwork();
+            } catch (IOException e) {
+                logger.debug("error while sending close_notify", e);
+            }
+        }
+        closeChannel();
+        state = State.CLOSED;
+        failQueued(new IOException("Connection was closed before the message was sent"));
+        cachedNotifications.clear();
+        closeLatch.countDown();
+    }
+
+    public ApnsNioConnection copy() {
+        return new ApnsNioConnection(sslContext, host, port, delegate, errorDetection,
+                cacheLength, autoAdjustCacheLength, cacheBytes, group, false, tls,
+                resendWindow == null ? null : resendWindow.copy());
+    }
+
+    public void testConnection() throws NetworkIOException {
+        new ApnsConnectionImpl(tls.wrap(sslContext.getSocketFactory()), host, port).testConnection();
+    }
+
+    /**
+     * Connects on the selector thread and waits for the handshake, or for
+     * the connection attempts to fail.
+     */
+    public void warmUp() throws NetworkIOException {
+        if (closed) {
+            throw new IllegalStateException("connection was closed");
+        }
+        final SettableFuture<Void> ready = new SettableFuture<Void>();
+        loop.execute(new Runnable() {
+            public void run() {
+                if (state == State.READY) {
+                    ready.set(null);
+                    return;
+                }
+                if (state == State.CLOSED) {
+                    ready.setException(new IOException("connection was closed"));
+                    return;
+                }
+                warmUps.add(ready);
+                if (state == State.DISCONNECTED && !reconnectScheduled) {
+                    connect();
+                }
+            }
+        });
+        try {
+            ready.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NetworkIOException("Interrupted while connecting");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw new NetworkIOException((IOException) e.getCause());
+            }
+            throw new NetworkIOException(e.getCause().toString());
+        }
+    }
+
+    public void setCacheLength(int cacheLength) {
+        this.cacheLength = cacheLength;
+    }
+
+    public int getCacheLength() {
+        return cacheLength;
+    }
+}
@@ -1,69 +1,373 @@
 package com.notnoop.apns.internal;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
 
 import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.PoolBalancing;
+import com.notnoop.apns.PoolSizeListener;
+import com.notnoop.apns.SimpleApnsNotification;
 import com.notnoop.exceptions.NetworkIOException;
 
+/**
+ * A pool of copies of a prototype connection.
+ *
+ * Each notification is given to a pool member picked by the
+ * {@link PoolBalancing}, and written by one of the executor's threads;
+ * which thread runs the write doesn't matter, as the members serialize
+ * their own writes.  A member whose write fails, after the retries of the
+ * connection itself, is evicted and replaced by a fresh copy of the
+ * prototype; it is closed once its outstanding writes are done.
+ *
+ * With {@link PoolBalancing#TOKEN_HASH} every device token maps to one
+ * member, whose writes run one at a time in the order they were sent, so
+ * the notifications of a device arrive in order.  Replacing or resizing
+ * members moves tokens to other members, so a notification sent just
+ * then may overtake an earlier one.
+ *
+ * An elastic pool starts with the fewest connections of its
+ * {@link PoolSizing}, and is sampled on the {@link SharedScheduler} to
+ * add connections as the backlog or the write latency rise, and close
+ * them again after sustained idleness.
+ */
 public class ApnsPooledConnection implements ApnsConnection {
     private static final Logger logger = LoggerFactory.getLogger(ApnsPooledConnection.class);
 
     private final ApnsConnection prototype;
     private final int max;
+    private final PoolBalancing balancing;
 
     private final ExecutorService executors;
-    private final ConcurrentLinkedQueue<ApnsConnection> prototypes;
+    // replaced as a whole, so that the members can be read without a lock
+    private volatile Member[] members;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicLong replacements = new AtomicLong();
+
+    private final PoolSizing sizing;
+    private final PoolSizeListener sizeListener;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger peakOutstanding = new AtomicInteger();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong writeNanos = new AtomicLong();
+    private final ScheduledFuture<?> sampler;
 
     public ApnsPooledConnection(ApnsConnection prototype, int max) {
         this(prototype, max, Executors.newFixedThreadPool(max));
     }
 
     public ApnsPooledConnection(ApnsConnection prototype, int max, ExecutorService executors) {
+        this(prototype, max, executors, PoolBalancing.LEAST_OUTSTANDING);
+    }
+
+    public ApnsPooledConnection(ApnsConnection prototype, int max, ExecutorService executors,
+            PoolBalancing balancing) {
+        this(prototype, max, executors, balancing, null, null);
+    }
+
+    /**
+     * @param sizing        the sizing of an elastic pool, whose maximum
+     *                      overrides {@code max}, or {@code null} for a
+     *                      fixed size
+     * @param sizeListener  notified of the sizing decisions, or
+     *                      {@code null}
+     */
+    public ApnsPooledConnection(ApnsConnection prototype, int max, ExecutorService executors,
+            PoolBalancing balancing, PoolSizing sizing, PoolSizeListener sizeListener) {
+        if (max <= 0) {
+            throw new IllegalArgumentException("max must be positive: " + max);
+        }
         this.prototype = prototype;
-        this.max = max;
+        this.max = sizing == null ? max : sizing.max();
+        this.balancing = balancing;
+        this.sizing = sizing;
+        this.sizeListener = sizeListener;
 
         this.executors = executors;
-        this.prototypes = new ConcurrentLinkedQueue<ApnsConnection>();
+        int size = sizing == null ? max : sizing.min();
+        Member[] initial = new Member[size];
+        for (int i = 0; i < size; i++) {
+            initial[i] = newMember();
+        }
+        this.members = initial;
+
+        if (sizing == null) {
+            this.sampler = null;
+        } else {
+            this.sampler = SharedScheduler.get().scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    try {
+                        sample(System.nanoTime());
+                    } catch (RuntimeException e) {
+                        // keeps the sampling scheduled
+                        logger.warn("Couldn't resize the pool", e);
+                    }
+                }
+            }, sizing.sampleNanos(), sizing.sampleNanos(), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public void sendMessage(ApnsNotification m) throws NetworkIOException {
+        submit(acquire(m, 1), m, null);
     }
 
-    private final ThreadLocal<ApnsConnection> uniquePrototype =
-        new ThreadLocal<ApnsConnection>() {
-        protected ApnsConnection initialValue() {
-            ApnsConnection newCopy = prototype.copy();
-            prototypes.add(newCopy);
-            return newCopy;
+    /**
+     * Splits the notifications into a part per member, by device token
+     * when sharding and evenly otherwise, and hands each part to its
+     * member as a whole.
+     */
+    public void sendMessages(Iterable<? extends ApnsNotification> messages) throws NetworkIOException {
+        List<ApnsNotification> all = new ArrayList<ApnsNotification>();
+        for (ApnsNotification m : messages) {
+            all.add(m);
         }
-    };
+        if (all.isEmpty()) {
+            return;
+        }
+        int count = members.length;
+        List<List<ApnsNotification>> parts = new ArrayList<List<ApnsNotification>>(count);
+        if (balancing == PoolBalancing.TOKEN_HASH) {
+            for (int i = 0; i < count; i++) {
+                parts.add(new ArrayList<ApnsNotification>());
+            }
+            for (ApnsNotification m : all) {
+                parts.get(shard(m, count)).add(m);
+            }
+        } else {
+            int partCount = Math.min(count, all.size());
+            int partSize = (all.size() + partCount - 1) / partCount;
+            for (int from = 0; from < all.size(); from += partSize) {
+                parts.add(all.subList(from, Math.min(all.size(), from + partSize)));
+            }
+        }
+        for (List<ApnsNotification> part : parts) {
+            if (!part.isEmpty()) {
+                submit(acquire(part.get(0), part.size()), null, part);
+            }
+        }
+    }
 
-    public void sendMessage(final ApnsNotification m) throws NetworkIOException {
-        executors.execute(new Runnable() {
+    /**
+     * Writes {@code m}, or the {@code batch}, on the member's lane when
+     * sharding and on any pool thread otherwise.
+     */
+    private void submit(final Member member, final ApnsNotification m,
+            final List<ApnsNotification> batch) {
+        final int count = batch == null ? 1 : batch.size();
+        Runnable write = new Runnable() {
             public void run() {
-                uniquePrototype.get().sendMessage(m);
+                long start = System.nanoTime();
+                try {
+                    if (batch == null) {
+                        member.connection.sendMessage(m);
+                    } else {
+                        member.connection.sendMessages(batch);
+                    }
+                    member.sent.addAndGet(count);
+                    writes.incrementAndGet();
+                    writeNanos.addAndGet(System.nanoTime() - start);
+                } catch (RuntimeException e) {
+                    // the connection already reported the notifications
+                    // as failed to the delegate
+                    member.failed.addAndGet(count);
+                    evict(member, e);
+                } finally {
+                    member.release(count);
+                    outstanding.addAndGet(-count);
+                }
+            }
+        };
+        if (balancing == PoolBalancing.TOKEN_HASH) {
+            member.lane.execute(write);
+        } else {
+            executors.execute(write);
+        }
+    }
+
+    /**
+     * Picks a member and counts {@code count} notifications as
+     * outstanding on it.
+     */
+    private Member acquire(ApnsNotification m, int count) {
+        while (true) {
+            Member[] current = members;
+            Member member = select(current, m);
+            member.outstanding.addAndGet(count);
+            if (!member.evicted.get()) {
+                updatePeak(outstanding.addAndGet(count));
+                return member;
+            }
+            // lost a race with its eviction
+            member.release(count);
+        }
+    }
+
+    private Member newMember() {
+        return new Member(prototype.copy(), new SerialExecutor(executors));
+    }
+
+    private void updatePeak(int count) {
+        int peak;
+        while (count > (peak = peakOutstanding.get())
+                && !peakOutstanding.compareAndSet(peak, count)) {
+            // retry
+        }
+    }
+
+    /**
+     * Resizes an elastic pool from the backlog and the write latency
+     * since the last sample.
+     */
+    void sample(long now) {
+        int peak = peakOutstanding.getAndSet(outstanding.get());
+        long count = writes.getAndSet(0);
+        long nanos = writeNanos.getAndSet(0);
+        long latency = count == 0 ? 0 : nanos / count;
+
+        int size = members.length;
+        long idle = sizing.underusedNanos(now);
+        int newSize = sizing.resize(size, peak, latency, now);
+        if (newSize > size) {
+            grow();
+            logger.info("Grew the pool to {} connections at a backlog of {} and {}us writes",
+                    new Object[] { newSize, peak, latency / 1000 });
+            if (sizeListener != null) {
+                sizeListener.poolGrown(newSize, peak, latency);
+            }
+        } else if (newSize < size) {
+            shrink();
+            logger.info("Shrank the pool to {} connections", newSize);
+            if (sizeListener != null) {
+                sizeListener.poolShrunk(newSize, idle);
+            }
+        }
+    }
+
+    private synchronized void grow() {
+        Member[] grown = new Member[members.length + 1];
+        System.arraycopy(members, 0, grown, 0, members.length);
+        grown[members.length] = newMember();
+        members = grown;
+    }
+
+    // the last member is closed once its outstanding writes are done
+    private synchronized void shrink() {
+        final Member last = members[members.length - 1];
+        Member[] shrunk = new Member[members.length - 1];
+        System.arraycopy(members, 0, shrunk, 0, shrunk.length);
+        members = shrunk;
+        last.evicted.set(true);
+        if (last.outstanding.get() == 0) {
+            // not on the sampling timer: closing may wait for a handshake
+            // or for a writer thread to finish
+            SharedScheduler.retries().execute(new Runnable() {
+                public void run() {
+                    last.close();
+                }
+            });
+        }
+    }
+
+    private static int shard(ApnsNotification m, int count) {
+        int h = tokenHash(AsyncNotification.unwrap(m));
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % count;
+    }
+
+    // Arrays.hashCode of the token, read in place where the notification allows
+    private static int tokenHash(ApnsNotification m) {
+        ByteBuffer token;
+        if (m instanceof EnhancedApnsNotification) {
+            token = ((EnhancedApnsNotification) m).getDeviceTokenView();
+        } else if (m instanceof SimpleApnsNotification) {
+            token = ((SimpleApnsNotification) m).getDeviceTokenView();
+        } else {
+            return Arrays.hashCode(m.getDeviceToken());
+        }
+        int h = 1;
+        for (int i = 0; i < token.limit(); i++) {
+            h = 31 * h + token.get(i);
+        }
+        return h;
+    }
+
+    private Member select(Member[] current, ApnsNotification m) {
+        if (balancing == PoolBalancing.TOKEN_HASH) {
+            return current[shard(m, current.length)];
+        }
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % current.length;
+        if (balancing == PoolBalancing.ROUND_ROBIN) {
+            return current[start];
+        }
+        // ties go to the next member in turn
+        Member best = current[start];
+        for (int i = 1; i < current.length && best.outstanding.get() > 0; i++) {
+            Member candidate = current[(start + i) % current.length];
+            if (candidate.outstanding.get() < best.outstanding.get()) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    private void evict(Member member, RuntimeException cause) {
+        synchronized (this) {
+            if (!member.evicted.compareAndSet(false, true)) {
+                return;
+            }
+            Member[] replaced = members.clone();
+            for (int i = 0; i < replaced.length; i++) {
+                if (replaced[i] == member) {
+                    replaced[i] = newMember();
+                }
             }
-        });
+            members = replaced;
+        }
+        replacements.incrementAndGet();
+        logger.warn("Replaced a pooled connection after " + member.sent.get()
+                + " sent and " + member.failed.get() + " failed notifications", cause);
+    }
+
+    public void flush() throws NetworkIOException {
+        for (Member member : members) {
+            member.connection.flush();
+        }
     }
 
     public ApnsConnection copy() {
         // TODO: Should copy executor properly.... What should copy do
         // really?!
-        return new ApnsPooledConnection(prototype, max);
+        return new ApnsPooledConnection(prototype, max, Executors.newFixedThreadPool(max), balancing,
+                sizing == null ? null : sizing.copy(), sizeListener);
     }
 
     public void close() {
+        if (sampler != null) {
+            sampler.cancel(false);
+        }
         executors.shutdown();
         try {
             executors.awaitTermination(10, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
             logger.warn("pool termination interrupted", e);
         }
-        for (ApnsConnection conn : prototypes) {
-            Utilities.close(conn);
+        for (Member member : members) {
+            member.evicted.set(true);
+            member.close();
         }
         Utilities.close(prototype);
     }
@@ -72,13 +376,117 @@ public class ApnsPooledConnection implements ApnsConnection {
         prototype.testConnection();
     }
 
-    public synchronized void setCacheLength(int cacheLength) {  
-        for (ApnsConnection conn : prototypes) {
-            conn.setCacheLength(cacheLength);
+    /**
+     * Opens all the pooled connections in parallel on the pool threads.
+     */
+    public void warmUp() throws NetworkIOException {
+        long start = System.nanoTime();
+        Member[] current = members;
+        List<Future<?>> results = new ArrayList<Future<?>>(current.length);
+        for (final Member member : current) {
+            results.add(executors.submit(new Runnable() {
+                public void run() {
+                    member.connection.warmUp();
+                }
+            }));
+        }
+
+        RuntimeException failure = null;
+        for (Future<?> result : results) {
+            try {
+                result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new NetworkIOException("Interrupted while warming up connections");
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException
+                            ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
         }
+        logger.info("Warmed up {} connections in {}ms", current.length,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
     }
 
+    public synchronized void setCacheLength(int cacheLength) {
+        prototype.setCacheLength(cacheLength);
+        for (Member member : members) {
+            member.connection.setCacheLength(cacheLength);
+        }
+    }
+
+    /**
+     * Returns the longest cache length of the members, which adjust
+     * their cache lengths independently.
+     */
     public int getCacheLength() {
-        return prototypes.peek().getCacheLength();
+        int length = 0;
+        for (Member member : members) {
+            length = Math.max(length, member.connection.getCacheLength());
+        }
+        return length;
+    }
+
+    /**
+     * Returns the number of notifications waiting to be written by each
+     * member.
+     */
+    public int[] getOutstanding() {
+        Member[] current = members;
+        int[] outstanding = new int[current.length];
+        for (int i = 0; i < current.length; i++) {
+            outstanding[i] = current[i].outstanding.get();
+        }
+        return outstanding;
+    }
+
+    /**
+     * Returns the current number of connections.
+     */
+    public int size() {
+        return members.length;
+    }
+
+    /**
+     * Returns the number of members that were evicted and replaced.
+     */
+    public long getReplacements() {
+        return replacements.get();
+    }
+
+    /**
+     * A pooled connection with its health: the number of notifications
+     * it wrote, failed and has outstanding, and whether it was evicted.
+     */
+    private static class Member {
+        final ApnsConnection connection;
+        final AtomicInteger outstanding = new AtomicInteger();
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicBoolean evicted = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        // writes the notifications of its tokens in order, when sharded
+        final SerialExecutor lane;
+
+        Member(ApnsConnection connection, SerialExecutor lane) {
+            this.connection = connection;
+            this.lane = lane;
+        }
+
+        void release(int count) {
+            if (outstanding.addAndGet(-count) == 0 && evicted.get()) {
+                close();
+            }
+        }
+
+        void close() {
+            if (closed.compareAndSet(false, true)) {
+                Utilities.close(connection);
+            }
+        }
     }
 }
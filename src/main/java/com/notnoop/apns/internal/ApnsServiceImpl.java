@@ -30,15 +30,30 @@
  */
 package com.notnoop.apns.internal;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.notnoop.apns.ApnsNotification;
 import com.notnoop.exceptions.NetworkIOException;
 
 public class ApnsServiceImpl extends AbstractApnsService {
+    private static final Logger logger = LoggerFactory.getLogger(ApnsServiceImpl.class);
+
     private ApnsConnection connection;
+    private final boolean warmUp;
 
     public ApnsServiceImpl(ApnsConnection connection, ApnsFeedbackConnection feedback) {
+        this(connection, feedback, false);
+    }
+
+    /**
+     * @param warmUp    whether {@link #start()} opens the connections
+     */
+    public ApnsServiceImpl(ApnsConnection connection, ApnsFeedbackConnection feedback,
+            boolean warmUp) {
         super(feedback);
         this.connection = connection;
+        this.warmUp = warmUp;
     }
 
     @Override
@@ -46,7 +61,24 @@ public class ApnsServiceImpl extends AbstractApnsService {
         connection.sendMessage(msg);
     }
 
+    @Override
+    public void push(Iterable<? extends ApnsNotification> messages) throws NetworkIOException {
+        connection.sendMessages(messages);
+    }
+
+    public void flush() throws NetworkIOException {
+        connection.flush();
+    }
+
     public void start() {
+        if (warmUp) {
+            try {
+                connection.warmUp();
+            } catch (RuntimeException e) {
+                // Not fatal: sending reconnects on demand
+                logger.warn("Couldn't warm up the connection to APNS", e);
+            }
+        }
     }
 
     public void stop() {
@@ -0,0 +1,198 @@
+package com.notnoop.apns.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.exceptions.NetworkIOException;
+
+/**
+ * Hands notifications over to a dedicated writer thread through a
+ * lock-free queue, so that senders never wait for the connection lock,
+ * socket writes or TLS handshakes of the wrapped connection.
+ *
+ * The writer sends whatever accumulated in the queue in one go and
+ * flushes the wrapped connection once the queue runs empty.  Failures
+ * are only reported through the delegate.
+ */
+public class ApnsWriterConnection implements ApnsConnection {
+    private static final Logger logger = LoggerFactory.getLogger(ApnsWriterConnection.class);
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    // the most queued notifications handed to the connection at once
+    private static final int MAX_BATCH_SIZE = 1024;
+
+    private final ApnsConnection connection;
+    private final ApnsDelegate delegate;
+    private final ConcurrentLinkedQueue<ApnsNotification> queue;
+    private final Thread writer;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile boolean waiting;
+    private volatile boolean closed;
+    // set when close() gave up waiting for the writer
+    private volatile boolean abandoned;
+
+    long CLOSE_TIMEOUT_IN_MS = 10000;
+
+    public ApnsWriterConnection(ApnsConnection connection) {
+        this(connection, ApnsDelegate.EMPTY);
+    }
+
+    /**
+     * @param delegate  told about the notifications still queued when
+     *                  closing the connection times out
+     */
+    public ApnsWriterConnection(ApnsConnection connection, ApnsDelegate delegate) {
+        this.connection = connection;
+        this.delegate = AsyncDelegate.wrap(delegate);
+        this.queue = new ConcurrentLinkedQueue<ApnsNotification>();
+        this.writer = new Thread("apns-writer-" + threadCount.incrementAndGet()) {
+            public void run() {
+                write();
+            }
+        };
+        this.writer.setDaemon(true);
+    }
+
+    public void sendMessage(ApnsNotification m) throws NetworkIOException {
+        if (closed) {
+            throw new IllegalStateException("connection was closed");
+        }
+        if (!started.get() && started.compareAndSet(false, true)) {
+            writer.start();
+        }
+        queue.add(m);
+        if (waiting) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    public void sendMessages(Iterable<? extends ApnsNotification> messages) throws NetworkIOException {
+        if (closed) {
+            throw new IllegalStateException("connection was closed");
+        }
+        if (!started.get() && started.compareAndSet(false, true)) {
+            writer.start();
+        }
+        for (ApnsNotification m : messages) {
+            queue.add(m);
+        }
+        if (waiting) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void write() {
+        boolean sent = false;
+        List<ApnsNotification> batch = new ArrayList<ApnsNotification>();
+        while (!abandoned) {
+            ApnsNotification m;
+            while (batch.size() < MAX_BATCH_SIZE && (m = queue.poll()) != null) {
+                batch.add(m);
+            }
+            if (!batch.isEmpty()) {
+                try {
+                    connection.sendMessages(batch);
+                } catch (Exception e) {
+                    // the delegate was already told about the failure
+                    logger.debug("Failed to send " + batch.size() + " messages", e);
+                }
+                batch.clear();
+                sent = true;
+                continue;
+            }
+
+            if (sent) {
+                sent = false;
+                try {
+                    connection.flush();
+                } catch (Exception e) {
+                    logger.info("Failed to flush notifications", e);
+                }
+            }
+            if (closed && queue.isEmpty()) {
+                return;
+            }
+
+            // A sender either sees waiting set and unparks us, or added
+            // its notification before we check the queue again
+            waiting = true;
+            if (queue.isEmpty() && !closed) {
+                LockSupport.park(this);
+            }
+            waiting = false;
+        }
+    }
+
+    /**
+     * The writer flushes the wrapped connection whenever it runs out of
+     * queued notifications, so there is nothing for callers to flush.
+     */
+    public void flush() throws NetworkIOException {
+    }
+
+    public ApnsConnection copy() {
+        return new ApnsWriterConnection(connection.copy(), delegate);
+    }
+
+    /**
+     * Writes out the queued notifications, waiting up to ten seconds for
+     * the writer, and closes the wrapped connection.  If the writer takes
+     * longer it is interrupted, and the notifications it didn't get to
+     * are reported as failed.
+     */
+    public void close() {
+        closed = true;
+        if (started.get()) {
+            LockSupport.unpark(writer);
+            if (!join()) {
+                logger.warn("Timed out while writing the queued notifications on close");
+                // stops it from taking more, and cuts short a retry delay
+                abandoned = true;
+                writer.interrupt();
+                if (!join()) {
+                    logger.warn("Writer is still busy, closing the connection anyway");
+                }
+            }
+        }
+        NetworkIOException e = new NetworkIOException("Connection closed before the message could be sent");
+        ApnsNotification m;
+        while ((m = queue.poll()) != null) {
+            delegate.messageSendFailed(m, e);
+        }
+        Utilities.close(connection);
+    }
+
+    private boolean join() {
+        try {
+            writer.join(CLOSE_TIMEOUT_IN_MS);
+        } catch (InterruptedException e) {
+            logger.warn("writer termination interrupted", e);
+            Thread.currentThread().interrupt();
+        }
+        return !writer.isAlive();
+    }
+
+    public void testConnection() throws NetworkIOException {
+        connection.testConnection();
+    }
+
+    public void warmUp() throws NetworkIOException {
+        connection.warmUp();
+    }
+
+    public void setCacheLength(int cacheLength) {
+        connection.setCacheLength(cacheLength);
+    }
+
+    public int getCacheLength() {
+        return connection.getCacheLength();
+    }
+}
@@ -0,0 +1,70 @@
+package com.notnoop.apns.internal;
+
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ConnectionListener;
+import com.notnoop.apns.DeliveryError;
+
+/**
+ * Fails the futures of asynchronously pushed notifications, and passes
+ * the pushed notifications rather than their futures on to the
+ * application's delegate.
+ */
+public class AsyncDelegate implements ApnsDelegate, ConnectionListener {
+    private final ApnsDelegate delegate;
+
+    private AsyncDelegate(ApnsDelegate delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Wraps {@code delegate}, unless it is already wrapped.
+     */
+    public static ApnsDelegate wrap(ApnsDelegate delegate) {
+        if (delegate instanceof AsyncDelegate) {
+            return delegate;
+        }
+        return new AsyncDelegate(delegate == null ? ApnsDelegate.EMPTY : delegate);
+    }
+
+    /**
+     * Returns true if {@code delegate}, wrapped or not, is
+     * {@link ApnsDelegate#EMPTY}, which ignores the notifications passed
+     * to it.
+     */
+    public static boolean isEmpty(ApnsDelegate delegate) {
+        if (delegate instanceof AsyncDelegate) {
+            delegate = ((AsyncDelegate) delegate).delegate;
+        }
+        return delegate == null || delegate == ApnsDelegate.EMPTY;
+    }
+
+    public void messageSent(ApnsNotification message, boolean resent) {
+        delegate.messageSent(AsyncNotification.unwrap(message), resent);
+    }
+
+    public void messageSendFailed(ApnsNotification message, Throwable e) {
+        delegate.messageSendFailed(AsyncNotification.unwrap(message), e);
+        if (message instanceof AsyncNotification) {
+            ((AsyncNotification) message).setException(e);
+        }
+    }
+
+    public void connectionClosed(DeliveryError e, int messageIdentifier) {
+        delegate.connectionClosed(e, messageIdentifier);
+    }
+
+    public void cacheLengthExceeded(int newCacheLength) {
+        delegate.cacheLengthExceeded(newCacheLength);
+    }
+
+    public void notificationsResent(int resendCount) {
+        delegate.notificationsResent(resendCount);
+    }
+
+    public void connectionEstablished(long connectNanos, long handshakeNanos) {
+        if (delegate instanceof ConnectionListener) {
+            ((ConnectionListener) delegate).connectionEstablished(connectNanos, handshakeNanos);
+        }
+    }
+}
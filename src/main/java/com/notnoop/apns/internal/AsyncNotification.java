@@ -0,0 +1,126 @@
+package com.notnoop.apns.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.PushFuture;
+
+/**
+ * A notification pushed asynchronously, which is its own
+ * {@link PushFuture}: it travels through the connections in place of the
+ * pushed notification, and is completed by the resend cache when it
+ * leaves the resend window, or by {@link AsyncDelegate} when it fails.
+ */
+public class AsyncNotification extends SettableFuture<ApnsNotification>
+        implements ApnsNotification, PushFuture {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncNotification.class);
+
+    private final ApnsNotification notification;
+    private List<Runnable> listeners;
+
+    public AsyncNotification(ApnsNotification notification) {
+        this.notification = notification;
+    }
+
+    /**
+     * Completes {@code notification} as presumed delivered, if it was
+     * pushed asynchronously.
+     */
+    public static void presumeDelivered(ApnsNotification notification) {
+        if (notification instanceof AsyncNotification) {
+            AsyncNotification n = (AsyncNotification) notification;
+            n.set(n.notification);
+        }
+    }
+
+    /**
+     * Returns the pushed notification of an asynchronous push, or
+     * {@code notification} itself.
+     */
+    public static ApnsNotification unwrap(ApnsNotification notification) {
+        if (notification instanceof AsyncNotification) {
+            return ((AsyncNotification) notification).notification;
+        }
+        return notification;
+    }
+
+    public ApnsNotification getNotification() {
+        return notification;
+    }
+
+    public void addListener(Runnable listener, Executor executor) {
+        synchronized (this) {
+            if (!isDone()) {
+                if (listeners == null) {
+                    listeners = new ArrayList<Runnable>(1);
+                }
+                listeners.add(new Listener(listener, executor));
+                return;
+            }
+        }
+        executor.execute(listener);
+    }
+
+    @Override
+    protected void completed() {
+        List<Runnable> toRun;
+        synchronized (this) {
+            toRun = listeners;
+            listeners = null;
+        }
+        if (toRun != null) {
+            for (Runnable listener : toRun) {
+                listener.run();
+            }
+        }
+    }
+
+    public byte[] getDeviceToken() {
+        return notification.getDeviceToken();
+    }
+
+    public byte[] getPayload() {
+        return notification.getPayload();
+    }
+
+    public int getIdentifier() {
+        return notification.getIdentifier();
+    }
+
+    public int getExpiry() {
+        return notification.getExpiry();
+    }
+
+    public byte[] marshall() {
+        return notification.marshall();
+    }
+
+    @Override
+    public String toString() {
+        return notification.toString();
+    }
+
+    private static class Listener implements Runnable {
+        private final Runnable listener;
+        private final Executor executor;
+
+        Listener(Runnable listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+
+        public void run() {
+            try {
+                executor.execute(listener);
+            } catch (RuntimeException e) {
+                // a rejecting executor must not break the connection thread
+                logger.warn("Couldn't run listener " + listener, e);
+            }
+        }
+    }
+}
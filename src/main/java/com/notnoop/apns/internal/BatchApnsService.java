@@ -1,17 +1,38 @@
 package com.notnoop.apns.internal;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.notnoop.apns.ApnsNotification;
 import com.notnoop.exceptions.NetworkIOException;
 
+/**
+ * Collects the pushed notifications and sends them in batches.
+ *
+ * The original mode waits a number of seconds for more notifications, and
+ * sends each batch on a new connection that is closed afterwards.
+ *
+ * The persistent mode keeps a set of open connections.  A batch is sent
+ * once it holds {@code maxBatchSize} notifications, or once the linger
+ * time passed since its first notification; it is split across the
+ * connections, which write their parts in parallel and flush them.  The
+ * notifications of a batch aren't necessarily sent in order.
+ */
 public class BatchApnsService extends AbstractApnsService {
+	private static final Logger logger = LoggerFactory.getLogger(BatchApnsService.class);
 
 	/**
 	 * How many seconds to wait for more messages before batch is send.
@@ -38,6 +59,14 @@ public class BatchApnsService extends AbstractApnsService {
 	
 	private Runnable batchRunner = new SendMessagessBatch();
 
+	// the persistent mode, when connections isn't null
+	private ApnsConnection[] connections;
+	private int maxBatchSize;
+	private long lingerMillis;
+	private List<ApnsNotification> pending;
+	private final List<Future<?>> inFlight = new ArrayList<Future<?>>();
+	private boolean warmUp;
+
 	public BatchApnsService(ApnsConnection prototype, ApnsFeedbackConnection feedback, int batchWaitTimeInSec, int maxBachWaitTimeInSec, ThreadFactory tf) {
 		super(feedback);
 		this.prototype = prototype;
@@ -46,24 +75,139 @@ public class BatchApnsService extends AbstractApnsService {
 		this.scheduleService = new ScheduledThreadPoolExecutor(1, tf);
 	}
 
+	/**
+	 * Constructs a batching service that keeps {@code connections} copies
+	 * of {@code prototype} open.
+	 *
+	 * @param maxBatchSize	the number of notifications that sends a batch
+	 * 						right away
+	 * @param lingerMillis	how long after its first notification a batch
+	 * 						is sent
+	 * @param connections	the number of connections sending a batch in
+	 * 						parallel
+	 */
+	public BatchApnsService(ApnsConnection prototype, ApnsFeedbackConnection feedback, int maxBatchSize, long lingerMillis, int connections, ThreadFactory tf) {
+		this(prototype, feedback, maxBatchSize, lingerMillis, connections, tf, false);
+	}
+
+	/**
+	 * @param warmUp	whether {@link #start()} opens the connections
+	 */
+	public BatchApnsService(ApnsConnection prototype, ApnsFeedbackConnection feedback, int maxBatchSize, long lingerMillis, int connections, ThreadFactory tf, boolean warmUp) {
+		super(feedback);
+		if (maxBatchSize <= 0 || lingerMillis < 0 || connections <= 0) {
+			throw new IllegalArgumentException("maxBatchSize and connections must be positive, and lingerMillis not negative");
+		}
+		this.prototype = prototype;
+		this.maxBatchSize = maxBatchSize;
+		this.lingerMillis = lingerMillis;
+		this.connections = new ApnsConnection[connections];
+		for (int i = 0; i < connections; i++) {
+			this.connections[i] = prototype.copy();
+		}
+		this.pending = new ArrayList<ApnsNotification>(maxBatchSize);
+		// a timer thread and a writer per connection
+		this.scheduleService = new ScheduledThreadPoolExecutor(connections + 1, tf);
+		this.warmUp = warmUp;
+	}
+
+	/**
+	 * In the persistent mode, opens the connections in parallel if asked
+	 * to warm up.  The original mode opens a connection per batch, so
+	 * there is nothing to open in advance.
+	 */
 	public void start() {
-		// no code
+		if (!warmUp || connections == null) {
+			return;
+		}
+		List<Future<?>> results = new ArrayList<Future<?>>(connections.length);
+		for (final ApnsConnection connection : connections) {
+			results.add(scheduleService.submit(new Runnable() {
+				public void run() {
+					connection.warmUp();
+				}
+			}));
+		}
+		for (Future<?> result : results) {
+			try {
+				result.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				// Not fatal: sending reconnects on demand
+				logger.warn("Couldn't warm up a connection to APNS", e.getCause());
+			}
+		}
 	}
 
 	public void stop() {
+		if (connections != null) {
+			try {
+				flush();
+			} catch (RuntimeException e) {
+				logger.info("Couldn't send the last batch", e);
+			}
+			for (ApnsConnection connection : connections) {
+				Utilities.close(connection);
+			}
+		}
 		Utilities.close(prototype);
-		if (taskFuture != null) {
-			taskFuture.cancel(true);
+		synchronized (this) {
+			if (taskFuture != null) {
+				taskFuture.cancel(true);
+			}
 		}
 		scheduleService.shutdownNow();
 	}
 
+	/**
+	 * Does nothing in the original mode: every batch is flushed when its
+	 * connection is closed.  In the persistent mode, sends the pending
+	 * batch right away and waits for the batches being sent.
+	 */
+	public void flush() throws NetworkIOException {
+		if (connections == null) {
+			return;
+		}
+		List<Future<?>> waitFor;
+		synchronized (this) {
+			dispatch();
+			waitFor = new ArrayList<Future<?>>(inFlight);
+		}
+		for (Future<?> future : waitFor) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new NetworkIOException("Interrupted while flushing batches");
+			} catch (ExecutionException e) {
+				logger.warn("Failed to send a batch", e.getCause());
+			}
+		}
+	}
+
 	public void testConnection() throws NetworkIOException {
 		prototype.testConnection();
 	}
 
 	@Override
-	public void push(ApnsNotification message) throws NetworkIOException {
+	public synchronized void push(ApnsNotification message) throws NetworkIOException {
+		if (connections != null) {
+			pending.add(message);
+			if (pending.size() >= maxBatchSize) {
+				dispatch();
+			} else if (taskFuture == null) {
+				taskFuture = scheduleService.schedule(new Runnable() {
+					public void run() {
+						synchronized (BatchApnsService.this) {
+							dispatch();
+						}
+					}
+				}, lingerMillis, TimeUnit.MILLISECONDS);
+			}
+			return;
+		}
 		if (batch.isEmpty()) {
 			firstMessageArrivedTime = System.nanoTime();
 		}
@@ -81,6 +225,57 @@ public class BatchApnsService extends AbstractApnsService {
 		}
 	}
 
+	/**
+	 * Splits the pending batch across the connections; called with the
+	 * lock held.
+	 */
+	private void dispatch() {
+		if (taskFuture != null) {
+			taskFuture.cancel(false);
+			taskFuture = null;
+		}
+		for (Iterator<Future<?>> it = inFlight.iterator(); it.hasNext();) {
+			if (it.next().isDone()) {
+				it.remove();
+			}
+		}
+		if (pending.isEmpty()) {
+			return;
+		}
+		List<ApnsNotification> sending = pending;
+		pending = new ArrayList<ApnsNotification>(maxBatchSize);
+		int parts = Math.min(connections.length, sending.size());
+		int partSize = (sending.size() + parts - 1) / parts;
+		for (int i = 0; i < parts; i++) {
+			List<ApnsNotification> part = sending.subList(i * partSize,
+					Math.min(sending.size(), (i + 1) * partSize));
+			inFlight.add(scheduleService.submit(new SendPart(connections[i], part)));
+		}
+	}
+
+	private static class SendPart implements Runnable {
+		private final ApnsConnection connection;
+		private final List<ApnsNotification> part;
+
+		SendPart(ApnsConnection connection, List<ApnsNotification> part) {
+			this.connection = connection;
+			this.part = part;
+		}
+
+		public void run() {
+			try {
+				connection.sendMessages(part);
+			} catch (NetworkIOException e) {
+				// reported to the delegate by the connection
+			}
+			try {
+				connection.flush();
+			} catch (NetworkIOException e) {
+				// buffered notifications go out with the next batch
+			}
+		}
+	}
+
 	class SendMessagessBatch implements Runnable {
 		public void run() {
 			ApnsConnection newConnection = prototype.copy();
@@ -0,0 +1,81 @@
+package com.notnoop.apns.internal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Packs marshalled notifications into a reusable buffer so that many of
+ * them go out in a single socket write (and a single TLS record).
+ *
+ * The buffered bytes survive a failed write: once the writer is pointed
+ * at a new socket they are written there.  The class is not thread-safe;
+ * the owning connection serializes access to it.
+ */
+class CoalescingWriter {
+    private byte[] buffer;
+    private int count;
+    private OutputStream out;
+
+    CoalescingWriter(int capacity) {
+        this.buffer = new byte[capacity];
+    }
+
+    void setOutput(OutputStream out) {
+        this.out = out;
+    }
+
+    int size() {
+        return count;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Returns true if a frame of {@code length} bytes can be buffered
+     * without writing out the buffered bytes first.
+     */
+    boolean fits(int length) {
+        return count == 0 || count + length <= buffer.length;
+    }
+
+    /**
+     * Buffers the frame, writing out the previously buffered bytes first
+     * if it doesn't fit.  Frames larger than the buffer enlarge it.  If
+     * an exception is thrown the frame wasn't buffered.
+     */
+    void write(byte[] frame) throws IOException {
+        if (!fits(frame.length)) {
+            drain();
+        }
+        if (frame.length > buffer.length) {
+            buffer = new byte[frame.length];
+        }
+        System.arraycopy(frame, 0, buffer, count, frame.length);
+        count += frame.length;
+    }
+
+    /**
+     * Writes out all the buffered bytes and flushes the socket stream.
+     */
+    void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    /**
+     * Drops the buffered bytes, e.g. when they are going to be resent
+     * anyway.
+     */
+    void discard() {
+        count = 0;
+    }
+
+    private void drain() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package com.notnoop.apns.internal;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.ApnsNotification;
+
+/**
+ * A resend cache keeping only the marshalled frames of the sent
+ * notifications, packed into a direct buffer of a fixed number of bytes,
+ * so that large caches don't keep notification objects alive on the heap.
+ *
+ * After an error response the frames are resent as they are: runs of
+ * consecutive frames are replayed as a single {@link FrameBatch}, which
+ * is split up into its frames again when it is cached.  Besides the byte
+ * limit the cache also honours a maximum number of notifications like
+ * {@link NotificationRingBuffer}.
+ *
+ * Only the simple and the enhanced notification formats can be cached;
+ * other frames, and frames larger than the whole buffer, clear the cache
+ * instead.
+ *
+ * The notification objects themselves are only kept where they are
+ * needed: for asynchronous pushes, whose futures have to be completed,
+ * and for all notifications if the connection's delegate is told about
+ * the failed and resent ones.  {@link #get(int)} returns null for the
+ * others.
+ */
+public class DirectFrameCache implements ResendCache {
+    private static final Logger logger = LoggerFactory.getLogger(DirectFrameCache.class);
+
+    private static final byte SIMPLE = 0;
+    private static final byte ENHANCED = 1;
+    // the most bytes replayed by a single batch
+    private static final int BATCH_BYTES = 16 * 1024;
+
+    private final ByteBuffer arena;
+    private final boolean keepOriginals;
+    private int capacity;
+
+    // per notification, indexed by sequence number: [tail, head) are cached
+    private int[] offsets, lengths, ids;
+    private long[] addedAt;
+    private ApnsNotification[] originals;
+    private long bytes;
+    private int slotMask;
+    private long head, tail;
+    private IdentifierIndex index;
+
+    private int writeOffset;
+
+    public DirectFrameCache(int maxBytes, int capacity) {
+        this(maxBytes, capacity, false);
+    }
+
+    /**
+     * @param keepOriginals if true, every notification is kept along with
+     *                      its frame, so that lookups and resends return
+     *                      the very objects that were added
+     */
+    public DirectFrameCache(int maxBytes, int capacity, boolean keepOriginals) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        }
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must not be negative: " + capacity);
+        }
+        this.arena = ByteBuffer.allocateDirect(maxBytes);
+        this.keepOriginals = keepOriginals;
+        this.capacity = capacity;
+        allocateSlots(16);
+    }
+
+    private void allocateSlots(int count) {
+        offsets = new int[count];
+        lengths = new int[count];
+        ids = new int[count];
+        addedAt = new long[count];
+        originals = new ApnsNotification[count];
+        slotMask = count - 1;
+        index = new IdentifierIndex(count);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return (int) (head - tail);
+    }
+
+    public boolean isEmpty() {
+        return head == tail;
+    }
+
+    public long bytes() {
+        return bytes;
+    }
+
+    public int add(ApnsNotification notification) {
+        return add(notification, System.nanoTime());
+    }
+
+    int add(ApnsNotification notification, long now) {
+        if (notification instanceof FrameBatch) {
+            return addFrames(notification.marshall(), now);
+        }
+        byte[] frame = notification.marshall();
+        if (capacity > 0 && (frame.length > arena.capacity()
+                || (frame[0] != SIMPLE && frame[0] != ENHANCED))) {
+            logger.debug("Can't cache notification {}, clearing the cache", notification);
+            int evicted = size() + 1;
+            clear();
+            AsyncNotification.presumeDelivered(notification);
+            return evicted;
+        }
+        return addFrame(frame, 0, frame.length, notification.getIdentifier(),
+                keepOriginals || notification instanceof AsyncNotification ? notification : null, now);
+    }
+
+    // The frames of a batch were cached before, so they are known to fit
+    private int addFrames(byte[] frames, long now) {
+        int evicted = 0;
+        int offset = 0;
+        while (offset < frames.length) {
+            int length = frameLength(frames, offset);
+            evicted += addFrame(frames, offset, length, frameIdentifier(frames, offset), null, now);
+            offset += length;
+        }
+        return evicted;
+    }
+
+    private int addFrame(byte[] frame, int from, int length, int identifier,
+            ApnsNotification original, long now) {
+        if (capacity == 0) {
+            AsyncNotification.presumeDelivered(original);
+            return 1;
+        }
+        int evicted = 0;
+        if (size() == capacity) {
+            evictOldest();
+            evicted++;
+        }
+        int offset;
+        while ((offset = freeOffset(length)) < 0) {
+            evictOldest();
+            evicted++;
+        }
+        if (size() == offsets.length) {
+            growSlots();
+        }
+
+        // only ever written here, reads go through duplicates
+        arena.position(offset);
+        arena.put(frame, from, length);
+        writeOffset = offset + length;
+
+        int i = (int) (head & slotMask);
+        offsets[i] = offset;
+        lengths[i] = length;
+        ids[i] = identifier;
+        addedAt[i] = now;
+        bytes += length;
+        originals[i] = original;
+        index.put(ids[i], head);
+        head++;
+        return evicted;
+    }
+
+    // Frames are never split: if a frame doesn't fit before the end of
+    // the arena it goes to the start, provided the oldest frame has left.
+    private int freeOffset(int length) {
+        if (isEmpty()) {
+            writeOffset = 0;
+            return 0;
+        }
+        int oldest = offsets[(int) (tail & slotMask)];
+        int newest = offsets[(int) ((head - 1) & slotMask)];
+        if (newest >= oldest) {
+            if (arena.capacity() - writeOffset >= length) {
+                return writeOffset;
+            }
+            return oldest >= length ? 0 : -1;
+        }
+        return oldest - writeOffset >= length ? writeOffset : -1;
+    }
+
+    private void growSlots() {
+        int[] oldOffsets = offsets, oldLengths = lengths, oldIds = ids;
+        long[] oldAddedAt = addedAt;
+        ApnsNotification[] oldOriginals = originals;
+        int oldMask = slotMask;
+        allocateSlots(offsets.length * 2);
+        for (long s = tail; s < head; s++) {
+            int from = (int) (s & oldMask), to = (int) (s & slotMask);
+            offsets[to] = oldOffsets[from];
+            lengths[to] = oldLengths[from];
+            ids[to] = oldIds[from];
+            addedAt[to] = oldAddedAt[from];
+            originals[to] = oldOriginals[from];
+            index.put(ids[to], s);
+        }
+    }
+
+    private void evictOldest() {
+        int i = (int) (tail & slotMask);
+        index.remove(ids[i], tail);
+        AsyncNotification.presumeDelivered(originals[i]);
+        originals[i] = null;
+        bytes -= lengths[i];
+        tail++;
+    }
+
+    public ApnsNotification get(int identifier) {
+        long seq = index.get(identifier);
+        return seq == IdentifierIndex.NONE ? null : originals[(int) (seq & slotMask)];
+    }
+
+    public boolean contains(int identifier) {
+        return index.get(identifier) != IdentifierIndex.NONE;
+    }
+
+    public long addedAt(int identifier) {
+        long seq = index.get(identifier);
+        return seq == IdentifierIndex.NONE ? 0 : addedAt[(int) (seq & slotMask)];
+    }
+
+    public int expire(long addedBefore, long maxBytes) {
+        int evicted = 0;
+        while (!isEmpty() && (bytes > maxBytes
+                || addedAt[(int) (tail & slotMask)] - addedBefore < 0)) {
+            evictOldest();
+            evicted++;
+        }
+        return evicted;
+    }
+
+    public int drainAfter(int identifier, Collection<? super ApnsNotification> resend) {
+        long seq = index.get(identifier);
+        long from = seq == IdentifierIndex.NONE ? tail : seq + 1;
+        // the failed notification itself is reported by the caller
+        for (long s = tail; s < from - 1; s++) {
+            AsyncNotification.presumeDelivered(originals[(int) (s & slotMask)]);
+        }
+        long s = from;
+        while (s < head) {
+            ApnsNotification original = originals[(int) (s & slotMask)];
+            if (original != null) {
+                resend.add(original);
+                s++;
+            } else {
+                s = drainBatch(s, resend);
+            }
+        }
+        int moved = (int) (head - from);
+        reset();
+        return moved;
+    }
+
+    public void clear() {
+        for (long s = tail; s < head; s++) {
+            AsyncNotification.presumeDelivered(originals[(int) (s & slotMask)]);
+        }
+        reset();
+    }
+
+    private void reset() {
+        for (long s = tail; s < head; s++) {
+            originals[(int) (s & slotMask)] = null;
+        }
+        index.clear();
+        tail = head;
+        writeOffset = 0;
+        bytes = 0;
+    }
+
+    public void setCapacity(int newCapacity) {
+        if (newCapacity < 0) {
+            throw new IllegalArgumentException("capacity must not be negative: " + newCapacity);
+        }
+        capacity = newCapacity;
+        while (size() > capacity) {
+            evictOldest();
+        }
+    }
+
+    // Copies the frames from seq on that have no original into a single
+    // batch, returns the sequence number of the first one left out
+    private long drainBatch(long seq, Collection<? super ApnsNotification> resend) {
+        long end = seq;
+        int length = 0;
+        while (end < head && originals[(int) (end & slotMask)] == null
+                && (length == 0 || length + lengths[(int) (end & slotMask)] <= BATCH_BYTES)) {
+            length += lengths[(int) (end & slotMask)];
+            end++;
+        }
+        byte[] frames = new byte[length];
+        ByteBuffer src = arena.duplicate();
+        int copied = 0;
+        for (long s = seq; s < end; s++) {
+            int i = (int) (s & slotMask);
+            src.clear();
+            src.position(offsets[i]);
+            src.get(frames, copied, lengths[i]);
+            copied += lengths[i];
+        }
+        resend.add(new FrameBatch(frames));
+        return end;
+    }
+
+    private static int frameLength(byte[] frames, int offset) {
+        int tokenAt = offset + (frames[offset] == ENHANCED ? 9 : 1);
+        int tokenLength = readShort(frames, tokenAt);
+        int payloadLength = readShort(frames, tokenAt + 2 + tokenLength);
+        return tokenAt + 2 + tokenLength + 2 + payloadLength - offset;
+    }
+
+    // like the getIdentifier() of the simple and enhanced notifications
+    private static int frameIdentifier(byte[] frames, int offset) {
+        if (frames[offset] != ENHANCED) {
+            return -1;
+        }
+        return Utilities.parseBytes(frames[offset + 1], frames[offset + 2],
+                frames[offset + 3], frames[offset + 4]);
+    }
+
+    private static int readShort(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+
+    /**
+     * Consecutive cached frames, resent as they are.  The device token,
+     * payload, identifier and expiry are those of the first frame.
+     */
+    static final class FrameBatch implements ApnsNotification {
+        private final byte[] frames;
+
+        FrameBatch(byte[] frames) {
+            this.frames = frames;
+        }
+
+        public byte[] marshall() {
+            return frames;
+        }
+
+        public int getIdentifier() {
+            return frameIdentifier(frames, 0);
+        }
+
+        public int getExpiry() {
+            if (frames[0] != ENHANCED) {
+                return -1;
+            }
+            return Utilities.parseBytes(frames[5], frames[6], frames[7], frames[8]);
+        }
+
+        public byte[] getDeviceToken() {
+            int tokenAt = frames[0] == ENHANCED ? 9 : 1;
+            return Arrays.copyOfRange(frames, tokenAt + 2, tokenAt + 2 + readShort(frames, tokenAt));
+        }
+
+        public byte[] getPayload() {
+            int tokenAt = frames[0] == ENHANCED ? 9 : 1;
+            int payloadAt = tokenAt + 2 + readShort(frames, tokenAt);
+            return Arrays.copyOfRange(frames, payloadAt + 2, payloadAt + 2 + readShort(frames, payloadAt));
+        }
+
+        @Override
+        public String toString() {
+            return "Frames(" + frames.length + " bytes)";
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.notnoop.apns.internal;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.DeviceToken;
+import com.notnoop.apns.FeedbackListener;
+
+/**
+ * Queries the feedback service periodically and passes each inactive
+ * device on to a listener once.
+ *
+ * The polls run on a thread of their own, one at a time and apart from
+ * the gateway connections, so a slow feedback service never holds up
+ * sending.  Every poll is followed by the next after the interval, moved
+ * by a random jitter so that many services started together don't query
+ * the feedback service in lock step.
+ *
+ * For every token the newest timestamp passed on is kept, and a device
+ * is only passed on again if it is reported with a newer timestamp,
+ * i.e. after the application was reinstalled and removed again.  The
+ * timestamps more than {@link #RETENTION_SECONDS} older than the newest
+ * one seen are dropped.
+ */
+public class FeedbackPoller {
+    private static final Logger logger = LoggerFactory.getLogger(FeedbackPoller.class);
+
+    static final int RETENTION_SECONDS = (int) TimeUnit.DAYS.toSeconds(30);
+
+    private final ApnsFeedbackConnection feedback;
+    private final FeedbackListener listener;
+    private final long intervalNanos;
+    private final long jitterNanos;
+    private final Random random = new Random();
+
+    // keyed by DeviceToken, or by a ByteBuffer for tokens of other lengths
+    private final Map<Object, Integer> watermarks = new HashMap<Object, Integer>();
+    private int newest = Integer.MIN_VALUE;
+    private int delivered;
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param interval  the time between the end of a poll and the start of
+     *                  the next one
+     * @param jitter    the most the interval is randomly shortened or
+     *                  lengthened by, less than {@code interval}
+     */
+    public FeedbackPoller(ApnsFeedbackConnection feedback, FeedbackListener listener,
+            long interval, long jitter, TimeUnit unit) {
+        if (interval <= 0 || jitter < 0 || jitter >= interval) {
+            throw new IllegalArgumentException("interval must be positive and jitter between 0 and interval: "
+                    + interval + ", " + jitter);
+        }
+        this.feedback = feedback;
+        this.listener = listener;
+        this.intervalNanos = unit.toNanos(interval);
+        this.jitterNanos = unit.toNanos(jitter);
+    }
+
+    /**
+     * Starts polling; the first poll runs within the jitter.
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "apns-feedback-poller");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        schedule(executor, jitterNanos == 0 ? 0 : (long) (random.nextDouble() * jitterNanos));
+    }
+
+    /**
+     * Stops polling, interrupting a poll in progress.
+     */
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private void schedule(final ScheduledExecutorService executor, long delayInNanos) {
+        try {
+            executor.schedule(new Runnable() {
+                public void run() {
+                    poll();
+                    schedule(executor, nextDelayInNanos());
+                }
+            }, delayInNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // stopped
+        }
+    }
+
+    long nextDelayInNanos() {
+        return intervalNanos - jitterNanos + (long) (random.nextDouble() * 2 * jitterNanos);
+    }
+
+    /**
+     * Queries the feedback service once, and returns the number of
+     * devices passed on to the listener.  A failed query is logged and
+     * left to the next poll; the devices read before it failed are still
+     * passed on.
+     */
+    int poll() {
+        synchronized (watermarks) {
+            delivered = 0;
+            try {
+                feedback.getInactiveDevices(new FeedbackListener() {
+                    public void inactiveDevice(byte[] deviceToken, int timestamp) {
+                        deliver(deviceToken, timestamp);
+                    }
+                });
+            } catch (RuntimeException e) {
+                logger.warn("Feedback poll failed, retrying with the next one", e);
+            }
+            prune();
+            logger.debug("Feedback poll passed on {} inactive devices", delivered);
+            return delivered;
+        }
+    }
+
+    private void deliver(byte[] deviceToken, int timestamp) {
+        Object key = deviceToken.length == DeviceToken.LENGTH
+                ? DeviceToken.fromBytes(deviceToken) : ByteBuffer.wrap(deviceToken);
+        Integer watermark = watermarks.get(key);
+        if (watermark != null && timestamp <= watermark) {
+            return;
+        }
+        try {
+            listener.inactiveDevice(deviceToken, timestamp);
+        } catch (RuntimeException e) {
+            // the feedback service doesn't report the device again, so
+            // failing the query would lose the devices after it
+            logger.warn("Feedback listener failed on an inactive device", e);
+            return;
+        }
+        watermarks.put(key, timestamp);
+        newest = Math.max(newest, timestamp);
+        delivered++;
+    }
+
+    private void prune() {
+        if (newest < Integer.MIN_VALUE + RETENTION_SECONDS) {
+            return;
+        }
+        int oldest = newest - RETENTION_SECONDS;
+        for (Iterator<Integer> it = watermarks.values().iterator(); it.hasNext();) {
+            if (it.next() < oldest) {
+                it.remove();
+            }
+        }
+    }
+
+    int watermarkCount() {
+        synchronized (watermarks) {
+            return watermarks.size();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.notnoop.apns.internal;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.FeedbackListener;
+import com.notnoop.exceptions.NetworkIOException;
+
+/**
+ * Runs a {@link FeedbackPoller} for as long as the wrapped service is
+ * started; everything else is passed on to the wrapped service.
+ *
+ * Note that the feedback service reports every device only once, so the
+ * devices returned by the feedback queries of this service aren't seen
+ * by the poller.
+ */
+public class FeedbackPollingApnsService extends AbstractApnsService {
+    private final ApnsService service;
+    private final FeedbackPoller poller;
+
+    public FeedbackPollingApnsService(ApnsService service, FeedbackPoller poller) {
+        super(null);
+        this.service = service;
+        this.poller = poller;
+    }
+
+    @Override
+    public void push(ApnsNotification msg) throws NetworkIOException {
+        service.push(msg);
+    }
+
+    @Override
+    public void push(Iterable<? extends ApnsNotification> messages) throws NetworkIOException {
+        service.push(messages);
+    }
+
+    public void start() {
+        service.start();
+        poller.start();
+    }
+
+    public void stop() {
+        poller.stop();
+        service.stop();
+    }
+
+    @Override
+    public Map<String, Date> getInactiveDevices() throws NetworkIOException {
+        return service.getInactiveDevices();
+    }
+
+    @Override
+    public void getInactiveDevices(FeedbackListener listener) throws NetworkIOException {
+        service.getInactiveDevices(listener);
+    }
+
+    @Override
+    public Future<Map<String, Date>> getInactiveDevicesAsync() {
+        return service.getInactiveDevicesAsync();
+    }
+
+    public void flush() throws NetworkIOException {
+        service.flush();
+    }
+
+    public void testConnection() throws NetworkIOException {
+        service.testConnection();
+    }
+}
@@ -0,0 +1,45 @@
+package com.notnoop.apns.internal;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the notifications buffered by a connection are written
+ * out to the socket.
+ *
+ * Buffered bytes are flushed once {@code bufferSize} bytes are pending,
+ * once {@code linger} has passed since the first of them was buffered,
+ * or on an explicit {@link ApnsConnection#flush()}.
+ */
+public final class FlushPolicy {
+    /**
+     * Writes and flushes every notification on its own.
+     */
+    public static final FlushPolicy IMMEDIATE = new FlushPolicy(0, 0, TimeUnit.NANOSECONDS);
+
+    private final int bufferSize;
+    private final long lingerInNanos;
+
+    public FlushPolicy(int bufferSize, long linger, TimeUnit unit) {
+        if (bufferSize < 0 || linger < 0) {
+            throw new IllegalArgumentException("bufferSize and linger must not be negative");
+        }
+        this.bufferSize = bufferSize;
+        this.lingerInNanos = unit.toNanos(linger);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public long getLingerInNanos() {
+        return lingerInNanos;
+    }
+
+    /**
+     * Returns true if the {@code buffered} bytes should be written out
+     * right away rather than after the linger time.
+     */
+    public boolean shouldFlush(int buffered) {
+        return lingerInNanos == 0 || buffered >= bufferSize;
+    }
+}
@@ -0,0 +1,87 @@
+package com.notnoop.apns.internal;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.DeviceToken;
+
+/**
+ * Encodes notifications in the binary format of APNS straight into a
+ * buffer supplied by the caller, without allocating.
+ *
+ * A frame that doesn't fit into the remaining space of the buffer isn't
+ * written at all: a {@link BufferOverflowException} is thrown and the
+ * position of the buffer is left unchanged.
+ */
+public final class FrameEncoder {
+    public static final byte SIMPLE_COMMAND = 0;
+    public static final byte ENHANCED_COMMAND = 1;
+
+    private FrameEncoder() {
+    }
+
+    /**
+     * Returns the length of the simple frame of {@code deviceToken} and
+     * {@code payload}.
+     */
+    public static int length(byte[] deviceToken, byte[] payload) {
+        return 1 + 2 + deviceToken.length + 2 + payload.length;
+    }
+
+    /**
+     * Returns the length of the enhanced frame of {@code deviceToken} and
+     * {@code payload}.
+     */
+    public static int enhancedLength(byte[] deviceToken, byte[] payload) {
+        return 1 + 4 + 4 + 2 + deviceToken.length + 2 + payload.length;
+    }
+
+    public static void encode(ByteBuffer dst, byte[] deviceToken, byte[] payload) {
+        checkRemaining(dst, length(deviceToken, payload));
+        dst.put(SIMPLE_COMMAND);
+        putItems(dst, deviceToken, payload);
+    }
+
+    public static void encodeEnhanced(ByteBuffer dst, int identifier, int expiry,
+            byte[] deviceToken, byte[] payload) {
+        checkRemaining(dst, enhancedLength(deviceToken, payload));
+        dst.put(ENHANCED_COMMAND);
+        dst.putInt(identifier);
+        dst.putInt(expiry);
+        putItems(dst, deviceToken, payload);
+    }
+
+    public static void encodeEnhanced(ByteBuffer dst, int identifier, int expiry,
+            DeviceToken deviceToken, byte[] payload) {
+        checkRemaining(dst, 1 + 4 + 4 + 2 + DeviceToken.LENGTH + 2 + payload.length);
+        dst.put(ENHANCED_COMMAND);
+        dst.putInt(identifier);
+        dst.putInt(expiry);
+        dst.putShort((short) DeviceToken.LENGTH);
+        deviceToken.writeTo(dst);
+        dst.putShort((short) payload.length);
+        dst.put(payload);
+    }
+
+    /**
+     * Writes the frame of {@code notification}.  The notifications of
+     * this library keep their encoded frame, which is copied as is.
+     */
+    public static void encode(ByteBuffer dst, ApnsNotification notification) {
+        dst.put(notification.marshall());
+    }
+
+    private static void putItems(ByteBuffer dst, byte[] deviceToken, byte[] payload) {
+        dst.putShort((short) deviceToken.length);
+        dst.put(deviceToken);
+        dst.putShort((short) payload.length);
+        dst.put(payload);
+    }
+
+    private static void checkRemaining(ByteBuffer dst, int length) {
+        if (dst.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+    }
+}
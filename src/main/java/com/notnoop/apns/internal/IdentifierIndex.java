@@ -0,0 +1,97 @@
+package com.notnoop.apns.internal;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing table from notification identifier to the sequence
+ * number of the cached notification carrying it, using linear probing
+ * and backward shift deletion.  The table never resizes itself: it must
+ * be created for the maximum number of entries it will hold.
+ */
+final class IdentifierIndex {
+    static final long NONE = -1;
+
+    private final int[] ids;
+    private final long[] seqs;
+    private final int mask;
+
+    IdentifierIndex(int maxEntries) {
+        int size = 2;
+        while (size < maxEntries * 2) {
+            size <<= 1;
+        }
+        ids = new int[size];
+        seqs = new long[size];
+        mask = size - 1;
+        Arrays.fill(seqs, NONE);
+    }
+
+    private static int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Maps the identifier to the sequence number, replacing any earlier
+     * mapping.
+     */
+    void put(int id, long seq) {
+        int i = hash(id) & mask;
+        while (seqs[i] != NONE && ids[i] != id) {
+            i = (i + 1) & mask;
+        }
+        ids[i] = id;
+        seqs[i] = seq;
+    }
+
+    long get(int id) {
+        int i = hash(id) & mask;
+        while (seqs[i] != NONE) {
+            if (ids[i] == id) {
+                return seqs[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return NONE;
+    }
+
+    /**
+     * Removes the mapping only if it still points at the given sequence
+     * number, not at a newer notification with the same identifier.
+     */
+    void remove(int id, long seq) {
+        int i = hash(id) & mask;
+        while (seqs[i] != NONE) {
+            if (ids[i] == id) {
+                if (seqs[i] == seq) {
+                    delete(i);
+                }
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    void clear() {
+        Arrays.fill(seqs, NONE);
+    }
+
+    // Backward shift deletion, so that lookups never need tombstones
+    private void delete(int i) {
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (seqs[j] == NONE) {
+                break;
+            }
+            int k = hash(ids[j]) & mask;
+            boolean stays = (i <= j) ? (i < k && k <= j) : (i < k || k <= j);
+            if (!stays) {
+                ids[i] = ids[j];
+                seqs[i] = seqs[j];
+                i = j;
+            }
+        }
+        seqs[i] = NONE;
+    }
+}
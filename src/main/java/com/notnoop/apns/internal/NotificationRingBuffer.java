@@ -0,0 +1,174 @@
+package com.notnoop.apns.internal;
+
+import java.util.Collection;
+
+import com.notnoop.apns.ApnsNotification;
+
+/**
+ * A fixed-capacity cache of the most recently sent notifications, indexed
+ * by notification identifier.
+ *
+ * Adding (and evicting the oldest notification), looking up an identifier
+ * and locating the resend slice are all O(1).
+ *
+ * Notifications leaving the cache other than for a resend are presumed
+ * delivered, see {@link AsyncNotification#presumeDelivered}.
+ */
+public class NotificationRingBuffer implements ResendCache {
+    private int capacity;
+    private ApnsNotification[] slots;
+    private long[] addedAt;
+    private int[] sizes;
+    private int slotMask;
+    private IdentifierIndex index;
+    private long bytes;
+
+    // sequence numbers: [tail, head) are cached
+    private long head, tail;
+
+    public NotificationRingBuffer(int capacity) {
+        init(capacity);
+    }
+
+    private void init(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must not be negative: " + capacity);
+        }
+        this.capacity = capacity;
+        int slotCount = 1;
+        while (slotCount < capacity) {
+            slotCount <<= 1;
+        }
+        this.slots = new ApnsNotification[slotCount];
+        this.addedAt = new long[slotCount];
+        this.sizes = new int[slotCount];
+        this.slotMask = slotCount - 1;
+        this.index = new IdentifierIndex(slotCount);
+        head = tail = 0;
+        bytes = 0;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return (int) (head - tail);
+    }
+
+    public boolean isEmpty() {
+        return head == tail;
+    }
+
+    public long bytes() {
+        return bytes;
+    }
+
+    public int add(ApnsNotification notification) {
+        return add(notification, System.nanoTime());
+    }
+
+    int add(ApnsNotification notification, long now) {
+        if (capacity == 0) {
+            AsyncNotification.presumeDelivered(notification);
+            return 1;
+        }
+        int evicted = 0;
+        if (size() == capacity) {
+            evictOldest();
+            evicted++;
+        }
+        int i = (int) (head & slotMask);
+        slots[i] = notification;
+        addedAt[i] = now;
+        sizes[i] = notification.marshall().length;
+        bytes += sizes[i];
+        index.put(notification.getIdentifier(), head);
+        head++;
+        return evicted;
+    }
+
+    public ApnsNotification get(int identifier) {
+        long seq = index.get(identifier);
+        return seq == IdentifierIndex.NONE ? null : slots[(int) (seq & slotMask)];
+    }
+
+    public boolean contains(int identifier) {
+        return index.get(identifier) != IdentifierIndex.NONE;
+    }
+
+    public long addedAt(int identifier) {
+        long seq = index.get(identifier);
+        return seq == IdentifierIndex.NONE ? 0 : addedAt[(int) (seq & slotMask)];
+    }
+
+    public int expire(long addedBefore, long maxBytes) {
+        int evicted = 0;
+        while (!isEmpty() && (bytes > maxBytes
+                || addedAt[(int) (tail & slotMask)] - addedBefore < 0)) {
+            evictOldest();
+            evicted++;
+        }
+        return evicted;
+    }
+
+    public int drainAfter(int identifier, Collection<? super ApnsNotification> resend) {
+        long seq = index.get(identifier);
+        long from = seq == IdentifierIndex.NONE ? tail : seq + 1;
+        // the failed notification itself is reported by the caller
+        for (long s = tail; s < from - 1; s++) {
+            AsyncNotification.presumeDelivered(slots[(int) (s & slotMask)]);
+        }
+        for (long s = from; s < head; s++) {
+            resend.add(slots[(int) (s & slotMask)]);
+        }
+        int moved = (int) (head - from);
+        reset();
+        return moved;
+    }
+
+    public void clear() {
+        for (long s = tail; s < head; s++) {
+            AsyncNotification.presumeDelivered(slots[(int) (s & slotMask)]);
+        }
+        reset();
+    }
+
+    private void reset() {
+        for (long s = tail; s < head; s++) {
+            slots[(int) (s & slotMask)] = null;
+        }
+        index.clear();
+        tail = head;
+        bytes = 0;
+    }
+
+    public void setCapacity(int newCapacity) {
+        if (newCapacity == capacity) {
+            return;
+        }
+        ApnsNotification[] oldSlots = slots;
+        long[] oldAddedAt = addedAt;
+        int oldMask = slotMask;
+        long oldHead = head;
+        long from = Math.max(tail, head - newCapacity);
+        for (long s = tail; s < from; s++) {
+            AsyncNotification.presumeDelivered(oldSlots[(int) (s & oldMask)]);
+        }
+
+        init(newCapacity);
+        for (long s = from; s < oldHead; s++) {
+            int i = (int) (s & oldMask);
+            add(oldSlots[i], oldAddedAt[i]);
+        }
+    }
+
+    private void evictOldest() {
+        int i = (int) (tail & slotMask);
+        index.remove(slots[i].getIdentifier(), tail);
+        AsyncNotification.presumeDelivered(slots[i]);
+        slots[i] = null;
+        bytes -= sizes[i];
+        tail++;
+    }
+}
@@ -0,0 +1,115 @@
+package com.notnoop.apns.internal;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides the number of connections of an elastic pool.
+ *
+ * The pool is sampled periodically.  It grows by a connection when the
+ * notifications waiting to be written peaked at {@code growBacklog} per
+ * connection, or when writes took {@code growLatency} on average.  It
+ * shrinks by a connection only once it had a connection more than the
+ * peak backlog needed for {@code shrinkIdle}, and again after another
+ * such period, so that a short lull doesn't close connections that the
+ * next burst has to reopen.
+ *
+ * Each pool needs its own instance, see {@link #copy()}.
+ */
+public final class PoolSizing {
+    private final int min;
+    private final int max;
+    private final int growBacklog;
+    private final long growLatencyNanos;
+    private final long shrinkIdleNanos;
+
+    private long underusedSince = -1;
+
+    /**
+     * @param min           the fewest connections
+     * @param max           the most connections
+     * @param growBacklog   the peak backlog per connection that adds a
+     *                      connection
+     * @param growLatency   the average write latency that adds a connection
+     * @param shrinkIdle    how long a connection must have been unneeded
+     *                      to be closed
+     * @param unit          the time unit of {@code growLatency} and
+     *                      {@code shrinkIdle}
+     */
+    public PoolSizing(int min, int max, int growBacklog, long growLatency,
+            long shrinkIdle, TimeUnit unit) {
+        if (min <= 0 || max < min) {
+            throw new IllegalArgumentException("Pool bounds must satisfy 0 < min <= max: "
+                    + min + ", " + max);
+        }
+        if (growBacklog <= 0 || growLatency <= 0 || shrinkIdle <= 0) {
+            throw new IllegalArgumentException("growBacklog, growLatency and shrinkIdle must be positive");
+        }
+        this.min = min;
+        this.max = max;
+        this.growBacklog = growBacklog;
+        this.growLatencyNanos = unit.toNanos(growLatency);
+        this.shrinkIdleNanos = unit.toNanos(shrinkIdle);
+    }
+
+    /**
+     * Returns a sizing with the same settings, in its initial state.
+     */
+    public PoolSizing copy() {
+        return new PoolSizing(min, max, growBacklog, growLatencyNanos,
+                shrinkIdleNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public int min() {
+        return min;
+    }
+
+    public int max() {
+        return max;
+    }
+
+    /**
+     * Returns the period at which the pool should be sampled.
+     */
+    public long sampleNanos() {
+        return Math.max(TimeUnit.MILLISECONDS.toNanos(10),
+                Math.min(TimeUnit.SECONDS.toNanos(1), shrinkIdleNanos / 4));
+    }
+
+    /**
+     * Returns how long the pool has had a connection too many at
+     * {@code now}, or 0.
+     */
+    public synchronized long underusedNanos(long now) {
+        return underusedSince == -1 ? 0 : now - underusedSince;
+    }
+
+    /**
+     * Decides the size of the pool from a sample.
+     *
+     * @param size              the current number of connections
+     * @param peakOutstanding   the most notifications waiting to be
+     *                          written at once since the last sample
+     * @param latencyNanos      the average write latency
+     * @param now               the time of the sample, from
+     *                          {@link System#nanoTime()}
+     * @return  the new number of connections
+     */
+    public synchronized int resize(int size, int peakOutstanding, long latencyNanos, long now) {
+        if (peakOutstanding >= size * growBacklog || latencyNanos >= growLatencyNanos) {
+            underusedSince = -1;
+            return Math.min(max, size + 1);
+        }
+        if (size <= min || peakOutstanding >= size - 1) {
+            underusedSince = -1;
+            return size;
+        }
+        if (underusedSince == -1) {
+            underusedSince = now;
+        } else if (now - underusedSince >= shrinkIdleNanos) {
+            // the next shrink needs another full idle period
+            underusedSince = now;
+            return size - 1;
+        }
+        return size;
+    }
+}
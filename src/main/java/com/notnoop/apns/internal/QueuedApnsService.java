@@ -30,8 +30,13 @@
  */
 package com.notnoop.apns.internal;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -39,9 +44,14 @@ import java.util.concurrent.LinkedBlockingQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.notnoop.apns.ApnsDelegate;
 import com.notnoop.apns.ApnsNotification;
 import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.FeedbackListener;
+import com.notnoop.apns.QueueOverflowPolicy;
+import com.notnoop.apns.QueueWatermarkListener;
 import com.notnoop.exceptions.NetworkIOException;
+import com.notnoop.exceptions.QueueOverflowException;
 
 public class QueuedApnsService extends AbstractApnsService {
 
@@ -51,11 +61,74 @@ public class QueuedApnsService extends AbstractApnsService {
     private BlockingQueue<ApnsNotification> queue;
     private AtomicBoolean started = new AtomicBoolean(false);
 
+    private final int capacity;
+    private final QueueOverflowPolicy overflowPolicy;
+    private final long blockTimeoutNanos;
+    private final ApnsDelegate delegate;
+
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final QueueWatermarkListener watermarkListener;
+    private final AtomicBoolean paused = new AtomicBoolean(false);
+
+    private final int drainers;
+    private final int maxBatchSize;
+
     public QueuedApnsService(ApnsService service) {
+        this(service, Integer.MAX_VALUE, QueueOverflowPolicy.BLOCK, -1, null, 0, 0, null);
+    }
+
+    public QueuedApnsService(ApnsService service, int capacity,
+            QueueOverflowPolicy overflowPolicy, long blockTimeoutNanos,
+            ApnsDelegate delegate, int highWatermark, int lowWatermark,
+            QueueWatermarkListener watermarkListener) {
+        this(service, capacity, overflowPolicy, blockTimeoutNanos, delegate,
+                highWatermark, lowWatermark, watermarkListener, 1, 1);
+    }
+
+    /**
+     * @param capacity          the most notifications queued
+     * @param overflowPolicy    what to do with a push to a full queue
+     * @param blockTimeoutNanos how long {@link QueueOverflowPolicy#BLOCK}
+     *                          waits for room, or -1 to wait indefinitely
+     * @param delegate          notified of dropped notifications
+     * @param highWatermark     the queue size that pauses the producers
+     * @param lowWatermark      the queue size that resumes them
+     * @param watermarkListener notified of the watermarks, or {@code null}
+     * @param drainers          the number of threads taking notifications
+     *                          off the queue; more than one doesn't keep
+     *                          the order of the notifications
+     * @param maxBatchSize      the most notifications a thread takes off
+     *                          the queue at once, pushes and then flushes
+     */
+    public QueuedApnsService(ApnsService service, int capacity,
+            QueueOverflowPolicy overflowPolicy, long blockTimeoutNanos,
+            ApnsDelegate delegate, int highWatermark, int lowWatermark,
+            QueueWatermarkListener watermarkListener, int drainers, int maxBatchSize) {
         super(null);
+        if (drainers <= 0 || maxBatchSize <= 0) {
+            throw new IllegalArgumentException("drainers and maxBatchSize must be positive: "
+                    + drainers + ", " + maxBatchSize);
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        if (watermarkListener != null
+                && (lowWatermark < 0 || lowWatermark >= highWatermark || highWatermark > capacity)) {
+            throw new IllegalArgumentException("Watermarks must satisfy 0 <= low < high <= capacity: "
+                    + lowWatermark + ", " + highWatermark + ", " + capacity);
+        }
         this.service = service;
-        this.queue = new LinkedBlockingQueue<ApnsNotification>();
-        this.thread = null;
+        this.queue = new LinkedBlockingQueue<ApnsNotification>(capacity);
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeoutNanos = blockTimeoutNanos;
+        this.delegate = AsyncDelegate.wrap(delegate);
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.watermarkListener = watermarkListener;
+        this.drainers = drainers;
+        this.maxBatchSize = maxBatchSize;
     }
 
     @Override
@@ -63,10 +136,93 @@ public class QueuedApnsService extends AbstractApnsService {
         if (!started.get()) {
             throw new IllegalStateException("service hasn't be started or was closed");
         }
-        queue.add(msg);
+        if (!queue.offer(msg)) {
+            overflow(msg);
+        }
+        updateWatermarks();
+    }
+
+    private void overflow(ApnsNotification msg) {
+        switch (overflowPolicy) {
+        case BLOCK:
+            try {
+                if (blockTimeoutNanos < 0) {
+                    queue.put(msg);
+                    return;
+                }
+                if (queue.offer(msg, blockTimeoutNanos, TimeUnit.NANOSECONDS)) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new QueueOverflowException("Interrupted while waiting for room in the queue");
+            }
+            break;
+        case DROP_OLDEST:
+            do {
+                ApnsNotification oldest = queue.poll();
+                if (oldest != null) {
+                    dropped(oldest, "Dropped the oldest queued notification");
+                }
+            } while (!queue.offer(msg));
+            return;
+        case DROP_EXPIRED:
+            for (Iterator<ApnsNotification> it = queue.iterator(); it.hasNext();) {
+                ApnsNotification queued = it.next();
+                if (isExpired(queued)) {
+                    it.remove();
+                    dropped(queued, "Dropped an expired queued notification");
+                }
+            }
+            if (queue.offer(msg)) {
+                return;
+            }
+            break;
+        default:
+            break;
+        }
+        throw new QueueOverflowException("The queue is full: " + capacity + " notifications");
+    }
+
+    private void dropped(ApnsNotification msg, String reason) {
+        logger.debug("{}: {}", reason, msg);
+        delegate.messageSendFailed(msg, new QueueOverflowException(reason));
+    }
+
+    // an expiry of 0 asks APNS not to store the notification, rather
+    // than being in the past
+    private static boolean isExpired(ApnsNotification msg) {
+        int expiry = msg.getExpiry();
+        return expiry > 0 && expiry < System.currentTimeMillis() / 1000;
+    }
+
+    // Rechecks after every call, so that a producer and the consumer
+    // crossing the watermarks at the same time leave the right state
+    private void updateWatermarks() {
+        if (watermarkListener == null) {
+            return;
+        }
+        while (true) {
+            int size = queue.size();
+            if (size >= highWatermark && paused.compareAndSet(false, true)) {
+                try {
+                    watermarkListener.highWatermarkReached(size);
+                } catch (RuntimeException e) {
+                    logger.warn("Watermark listener failed", e);
+                }
+            } else if (size <= lowWatermark && paused.compareAndSet(true, false)) {
+                try {
+                    watermarkListener.lowWatermarkReached(size);
+                } catch (RuntimeException e) {
+                    logger.warn("Watermark listener failed", e);
+                }
+            } else {
+                return;
+            }
+        }
     }
 
-    private Thread thread;
+    private Thread[] threads;
     private volatile boolean shouldContinue;
 
     public void start() {
@@ -79,30 +235,68 @@ public class QueuedApnsService extends AbstractApnsService {
 
         service.start();
         shouldContinue = true;
-        thread = new Thread() {
-            public void run() {
-                while (shouldContinue) {
-                    try {
-                        ApnsNotification msg = queue.take();
-                        service.push(msg);
-                    } catch (InterruptedException e) {
-                    	// ignore
-                    } catch (NetworkIOException e) {
-                    	// ignore: failed connect...
-                    } catch (Exception e) {
-                    	// weird if we reached here - something wrong is happening, but we shouldn't stop the service anyway!
-                    	logger.warn("Unexpected message caught... Shouldn't be here", e);
+        threads = new Thread[drainers];
+        for (int i = 0; i < drainers; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    List<ApnsNotification> batch = new ArrayList<ApnsNotification>(maxBatchSize);
+                    while (shouldContinue) {
+                        try {
+                            batch.add(queue.take());
+                            queue.drainTo(batch, maxBatchSize - 1);
+                            updateWatermarks();
+                            pushBatch(batch);
+                        } catch (InterruptedException e) {
+                        	// ignore
+                        } finally {
+                            batch.clear();
+                        }
                     }
                 }
+            };
+            threads[i].start();
+        }
+    }
+
+    private void pushBatch(List<ApnsNotification> batch) {
+        if (overflowPolicy == QueueOverflowPolicy.DROP_EXPIRED) {
+            for (Iterator<ApnsNotification> it = batch.iterator(); it.hasNext();) {
+                ApnsNotification msg = it.next();
+                if (isExpired(msg)) {
+                    it.remove();
+                    dropped(msg, "Dropped an expired queued notification");
+                }
+            }
+        }
+        try {
+            if (batch.size() == 1) {
+                service.push(batch.get(0));
+            } else if (!batch.isEmpty()) {
+                service.push(batch);
+            }
+        } catch (NetworkIOException e) {
+        	// ignore: failed connect...
+        } catch (Exception e) {
+        	// weird if we reached here - something wrong is happening, but we shouldn't stop the service anyway!
+        	logger.warn("Unexpected message caught... Shouldn't be here", e);
+        }
+        if (maxBatchSize > 1) {
+            // write the batch out together, rather than waiting for the
+            // linger of the flush policy
+            try {
+                service.flush();
+            } catch (NetworkIOException e) {
+                // ignore: buffered notifications go out with the next write
             }
-        };
-        thread.start();
+        }
     }
 
     public void stop() {
         started.set(false);
         shouldContinue = false;
-        thread.interrupt();
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
         service.stop();
     }
 
@@ -111,6 +305,24 @@ public class QueuedApnsService extends AbstractApnsService {
         return service.getInactiveDevices();
     }
 
+    @Override
+    public void getInactiveDevices(FeedbackListener listener) throws NetworkIOException {
+        service.getInactiveDevices(listener);
+    }
+
+    @Override
+    public Future<Map<String, Date>> getInactiveDevicesAsync() {
+        return service.getInactiveDevicesAsync();
+    }
+
+    /**
+     * Flushes the underlying service; notifications still waiting in the
+     * queue are written as they get dequeued.
+     */
+    public void flush() throws NetworkIOException {
+        service.flush();
+    }
+
     public void testConnection() throws NetworkIOException {
         service.testConnection();
     }
@@ -0,0 +1,90 @@
+package com.notnoop.apns.internal;
+
+import java.util.Collection;
+
+import com.notnoop.apns.ApnsNotification;
+
+/**
+ * The cache of recently sent notifications a connection keeps to resend
+ * the ones that followed a notification rejected by an error response.
+ *
+ * Notifications that leave the cache other than to be resent, or as the
+ * rejected notification, are presumed delivered: implementations pass
+ * them to {@link AsyncNotification#presumeDelivered}.
+ *
+ * Implementations are not thread-safe.
+ */
+public interface ResendCache {
+
+    /**
+     * Caches the notification, evicting the oldest ones if there is no
+     * room left.
+     *
+     * @return the number of evicted notifications
+     */
+    int add(ApnsNotification notification);
+
+    /**
+     * Returns when the cached notification with the given identifier was
+     * added, as a {@link System#nanoTime()} value.  Only meaningful if
+     * {@link #get(int)} returns the notification.
+     */
+    long addedAt(int identifier);
+
+    /**
+     * Evicts the oldest notifications that were added before
+     * {@code addedBefore}, a {@link System#nanoTime()} value, or that
+     * don't fit into {@code maxBytes} along with the newer ones.
+     *
+     * @return the number of evicted notifications
+     */
+    int expire(long addedBefore, long maxBytes);
+
+    /**
+     * Returns the total size of the cached notifications, in bytes.
+     */
+    long bytes();
+
+    /**
+     * Returns the cached notification with the given identifier, or null.
+     * If several cached notifications share an identifier the most recent
+     * one is returned.  Caches that don't keep every notification object
+     * may return null for a cached notification too.
+     */
+    ApnsNotification get(int identifier);
+
+    /**
+     * Returns true if a notification with the given identifier is cached.
+     */
+    boolean contains(int identifier);
+
+    /**
+     * Moves the notifications cached after the one with the given
+     * identifier into {@code resend}, oldest first, and empties the
+     * cache.  If the identifier isn't cached (any more), all cached
+     * notifications are moved.
+     *
+     * @return the number of notifications moved
+     */
+    int drainAfter(int identifier, Collection<? super ApnsNotification> resend);
+
+    int size();
+
+    boolean isEmpty();
+
+    /**
+     * Empties the cache, presuming all cached notifications delivered.
+     */
+    void clear();
+
+    /**
+     * Returns the maximum number of notifications kept.
+     */
+    int capacity();
+
+    /**
+     * Changes the maximum number of notifications kept, keeping the most
+     * recent ones that fit.
+     */
+    void setCapacity(int capacity);
+}
@@ -0,0 +1,136 @@
+package com.notnoop.apns.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * How long, and up to how many bytes of, sent notifications a connection
+ * keeps for resending after an error response.
+ *
+ * APNS reports an error some time after the rejected notification was
+ * sent; a notification must stay cached at least that long for the
+ * error to be matched.  The window starts at a configured length and is
+ * then kept at a few times the measured latency between sending a
+ * notification and receiving its error response, within fixed bounds.
+ * An error for a notification that already left the window doubles it.
+ *
+ * Each connection needs its own instance, see {@link #copy()}.
+ */
+public final class ResendWindow {
+    private static final Logger logger = LoggerFactory.getLogger(ResendWindow.class);
+
+    // the window is kept at this multiple of the measured error latency
+    private static final int SAFETY_FACTOR = 4;
+    // and only changed when it moves by more than an eighth
+    private static final int HYSTERESIS_SHIFT = 3;
+    // lower latencies move the estimate by an eighth of the difference
+    private static final int DECAY_SHIFT = 3;
+
+    public static final long MIN_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    public static final long MAX_WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final long initialNanos;
+    private final long minNanos;
+    private final long maxNanos;
+    private final long maxBytes;
+
+    private long windowNanos;
+    private long latencyNanos;
+
+    /**
+     * @param initial   the window until the first error is measured
+     * @param unit      the time unit of {@code initial}
+     * @param maxBytes  the most bytes of notifications kept, regardless
+     *                  of their age
+     */
+    public ResendWindow(long initial, TimeUnit unit, long maxBytes) {
+        this(unit.toNanos(initial), Math.min(MIN_WINDOW_NANOS, unit.toNanos(initial)),
+                Math.max(MAX_WINDOW_NANOS, unit.toNanos(initial)), maxBytes);
+    }
+
+    private ResendWindow(long initialNanos, long minNanos, long maxNanos, long maxBytes) {
+        if (initialNanos <= 0) {
+            throw new IllegalArgumentException("window must be positive: " + initialNanos);
+        }
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        }
+        this.initialNanos = initialNanos;
+        this.minNanos = minNanos;
+        this.maxNanos = maxNanos;
+        this.maxBytes = maxBytes;
+        this.windowNanos = initialNanos;
+    }
+
+    /**
+     * Returns a window with the same settings, in its initial state.
+     */
+    public ResendWindow copy() {
+        return new ResendWindow(initialNanos, minNanos, maxNanos, maxBytes);
+    }
+
+    public synchronized long windowNanos() {
+        return windowNanos;
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Tunes the window after an error response.
+     *
+     * @param matched       whether the rejected notification was still cached
+     * @param latencyNanos  if matched, how long ago it was sent
+     * @param resent        the number of notifications resent after it
+     * @return  the number of notifications the adjusted window is
+     *          expected to hold, or -1 if the window wasn't adjusted
+     */
+    public synchronized int errorReceived(boolean matched, long latencyNanos, int resent) {
+        long before = windowNanos;
+        if (matched ? !errorMatched(latencyNanos) : !errorUnmatched()) {
+            return -1;
+        }
+        logger.debug("Adjusted resend window from {}ms to {}ms",
+                before / 1000000, windowNanos / 1000000);
+        // the rejected and the resent notifications were sent within the
+        // latency, or all the cached ones within the old window
+        return matched
+                ? expectedLength(resent + 1, latencyNanos)
+                : expectedLength(resent, before);
+    }
+
+    // Latencies above the estimate are taken at once, lower ones only
+    // lower it gradually
+    private boolean errorMatched(long latencyNanos) {
+        if (latencyNanos > this.latencyNanos) {
+            this.latencyNanos = latencyNanos;
+        } else {
+            this.latencyNanos -= (this.latencyNanos - latencyNanos) >> DECAY_SHIFT;
+        }
+        long target = this.latencyNanos > maxNanos / SAFETY_FACTOR
+                ? maxNanos : Math.max(minNanos, this.latencyNanos * SAFETY_FACTOR);
+        if (Math.abs(target - windowNanos) <= windowNanos >> HYSTERESIS_SHIFT) {
+            return false;
+        }
+        windowNanos = target;
+        return true;
+    }
+
+    private boolean errorUnmatched() {
+        long grown = Math.min(maxNanos, windowNanos * 2);
+        if (grown == windowNanos) {
+            return false;
+        }
+        windowNanos = grown;
+        latencyNanos = Math.max(latencyNanos, grown / SAFETY_FACTOR);
+        return true;
+    }
+
+    private int expectedLength(int count, long nanos) {
+        double length = (double) count * windowNanos / Math.max(1, nanos);
+        return (int) Math.min(Integer.MAX_VALUE, Math.ceil(length));
+    }
+}
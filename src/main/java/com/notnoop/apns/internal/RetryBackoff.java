@@ -0,0 +1,63 @@
+package com.notnoop.apns.internal;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How often and after which delays failed network operations are retried
+ * in the background: the delay doubles with every attempt up to a
+ * maximum, and is randomly shortened by up to a half so that connections
+ * failing together don't retry in lockstep.
+ */
+public final class RetryBackoff {
+    /**
+     * Five attempts, starting one second apart.
+     */
+    public static final RetryBackoff DEFAULT = new RetryBackoff(5, 1, 30, TimeUnit.SECONDS);
+
+    private final int attempts;
+    private final long initialDelayInNanos;
+    private final long maxDelayInNanos;
+    private final Random random = new Random();
+
+    /**
+     * @param attempts      total number of attempts, including the first
+     * @param initialDelay  delay before the first retry
+     * @param maxDelay      upper bound of the delay between attempts
+     * @param unit          the time unit of the delays
+     */
+    public RetryBackoff(int attempts, long initialDelay, long maxDelay, TimeUnit unit) {
+        if (attempts < 1) {
+            throw new IllegalArgumentException("attempts must be positive: " + attempts);
+        }
+        if (initialDelay < 0 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("invalid delays: " + initialDelay + ", " + maxDelay);
+        }
+        this.attempts = attempts;
+        this.initialDelayInNanos = unit.toNanos(initialDelay);
+        this.maxDelayInNanos = unit.toNanos(maxDelay);
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Returns the delay before the next attempt, after {@code failed}
+     * attempts failed.
+     */
+    public long delayInNanos(int failed) {
+        long delay = initialDelayInNanos;
+        for (int i = 1; i < failed && delay < maxDelayInNanos; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelayInNanos);
+        if (delay == 0) {
+            return 0;
+        }
+        long half = delay / 2;
+        synchronized (random) {
+            return half + (long) (random.nextDouble() * (delay - half));
+        }
+    }
+}
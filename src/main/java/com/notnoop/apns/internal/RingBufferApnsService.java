@@ -0,0 +1,280 @@
+package com.notnoop.apns.internal;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.FeedbackListener;
+import com.notnoop.exceptions.NetworkIOException;
+
+/**
+ * A queued service built on a pre-allocated ring buffer rather than a
+ * linked queue.
+ *
+ * Producers claim sequence numbers with a compare-and-set and publish
+ * the notification into the slot of their sequence; a single consumer
+ * thread takes the published notifications in batches, pushes them to
+ * the wrapped service and flushes it once per batch.  Enqueuing takes no
+ * lock and allocates no queue node.  A producer finding the ring full
+ * waits for the consumer to free a slot.  The notifications still in the
+ * ring when the service is stopped are reported as failed.
+ */
+public class RingBufferApnsService extends AbstractApnsService {
+    private static final Logger logger = LoggerFactory.getLogger(RingBufferApnsService.class);
+
+    // idle consumers and producers of a full ring spin this many times
+    // before yielding, and yield as many times before parking
+    private static final int SPINS = 100;
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final ApnsService service;
+    private final ApnsDelegate delegate;
+    private final ApnsNotification[] slots;
+    // the sequence last published into each slot
+    private final AtomicLongArray published;
+    private final int mask;
+    private final ApnsNotification[] batch;
+
+    // the next sequence to claim
+    private final AtomicLong claimed = new AtomicLong();
+    // the next sequence to consume; all before it are free
+    private volatile long consumed;
+
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private volatile boolean shouldContinue;
+    private volatile boolean consumerWaiting;
+    private Thread thread;
+
+    long STOP_TIMEOUT_IN_MS = 10000;
+
+    public RingBufferApnsService(ApnsService service, int ringSize, int maxBatchSize) {
+        this(service, ringSize, maxBatchSize, null);
+    }
+
+    /**
+     * @param ringSize      the number of slots, rounded up to a power of two
+     * @param maxBatchSize  the most notifications pushed before a flush
+     * @param delegate      notified of the notifications dropped on stop
+     */
+    public RingBufferApnsService(ApnsService service, int ringSize, int maxBatchSize,
+            ApnsDelegate delegate) {
+        super(null);
+        if (ringSize <= 0 || maxBatchSize <= 0) {
+            throw new IllegalArgumentException("ringSize and maxBatchSize must be positive: "
+                    + ringSize + ", " + maxBatchSize);
+        }
+        int size = 1;
+        while (size < ringSize) {
+            size <<= 1;
+        }
+        this.service = service;
+        this.delegate = AsyncDelegate.wrap(delegate);
+        this.slots = new ApnsNotification[size];
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+        this.mask = size - 1;
+        this.batch = new ApnsNotification[Math.min(size, maxBatchSize)];
+    }
+
+    public int ringSize() {
+        return slots.length;
+    }
+
+    @Override
+    public void push(ApnsNotification msg) {
+        if (!started.get()) {
+            throw new IllegalStateException("service hasn't be started or was closed");
+        }
+        long seq = claim();
+        int i = (int) (seq & mask);
+        slots[i] = msg;
+        // publishes the slot write to the consumer; a volatile write, so
+        // that it can't be reordered with the read of the flag below
+        published.set(i, seq);
+        if (consumerWaiting) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private long claim() {
+        int waits = 0;
+        while (true) {
+            long seq = claimed.get();
+            if (seq - consumed >= slots.length) {
+                if (!started.get()) {
+                    throw new IllegalStateException("service hasn't be started or was closed");
+                }
+                waits = backOff(waits, PARK_NANOS);
+            } else if (claimed.compareAndSet(seq, seq + 1)) {
+                return seq;
+            }
+        }
+    }
+
+    private static int backOff(int waits, long parkNanos) {
+        if (waits < SPINS) {
+            // spin
+        } else if (waits < 2 * SPINS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(parkNanos);
+        }
+        return waits + 1;
+    }
+
+    public void start() {
+        if (started.getAndSet(true)) {
+            return;
+        }
+
+        service.start();
+        shouldContinue = true;
+        thread = new Thread("apns-ring-consumer") {
+            public void run() {
+                consume();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void consume() {
+        long next = consumed;
+        int waits = 0;
+        while (shouldContinue) {
+            int count = 0;
+            while (count < batch.length && published.get((int) ((next + count) & mask)) == next + count) {
+                int i = (int) ((next + count) & mask);
+                batch[count++] = slots[i];
+                slots[i] = null;
+            }
+            if (count == 0) {
+                if (waits >= 2 * SPINS) {
+                    consumerWaiting = true;
+                    // producers publish before reading the flag, and the
+                    // flag is set here before rereading the slot: either
+                    // the producer sees the flag and unparks, or the
+                    // notification is seen here
+                    if (shouldContinue && published.get((int) (next & mask)) != next) {
+                        LockSupport.park(this);
+                    }
+                    consumerWaiting = false;
+                } else {
+                    waits = backOff(waits, PARK_NANOS);
+                }
+                continue;
+            }
+            waits = 0;
+            next += count;
+            // frees the slots for the producers
+            consumed = next;
+            pushBatch(count);
+        }
+    }
+
+    private void pushBatch(int count) {
+        try {
+            if (count == 1) {
+                service.push(batch[0]);
+            } else {
+                service.push(Arrays.asList(batch).subList(0, count));
+            }
+        } catch (NetworkIOException e) {
+            // ignore: failed connect...
+        } catch (Exception e) {
+            logger.warn("Unexpected message caught... Shouldn't be here", e);
+        }
+        Arrays.fill(batch, 0, count, null);
+        if (batch.length > 1) {
+            try {
+                service.flush();
+            } catch (NetworkIOException e) {
+                // ignore: buffered notifications go out with the next write
+            }
+        }
+    }
+
+    public void stop() {
+        if (!started.getAndSet(false)) {
+            return;
+        }
+        shouldContinue = false;
+        LockSupport.unpark(thread);
+        thread.interrupt();
+        try {
+            // a consumer stuck in a push has taken its batch already, and
+            // takes nothing after it
+            thread.join(STOP_TIMEOUT_IN_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        failUnconsumed();
+        service.stop();
+    }
+
+    /**
+     * Reports the notifications published but not consumed yet as failed.
+     */
+    private void failUnconsumed() {
+        // Claims the rest of the ring: producers find it full, and fail as
+        // the service was stopped
+        long end;
+        do {
+            end = claimed.get();
+        } while (!claimed.compareAndSet(end, end + slots.length));
+
+        NetworkIOException e = new NetworkIOException("Service stopped before the message could be sent");
+        for (long seq = consumed; seq < end; seq++) {
+            int i = (int) (seq & mask);
+            // a producer may have claimed the slot without publishing yet
+            int waits = 0;
+            while (published.get(i) != seq) {
+                waits = backOff(waits, PARK_NANOS);
+            }
+            ApnsNotification m = slots[i];
+            slots[i] = null;
+            delegate.messageSendFailed(m, e);
+        }
+    }
+
+    @Override
+    public Map<String, Date> getInactiveDevices() throws NetworkIOException {
+        return service.getInactiveDevices();
+    }
+
+    @Override
+    public void getInactiveDevices(FeedbackListener listener) throws NetworkIOException {
+        service.getInactiveDevices(listener);
+    }
+
+    @Override
+    public Future<Map<String, Date>> getInactiveDevicesAsync() {
+        return service.getInactiveDevicesAsync();
+    }
+
+    /**
+     * Flushes the underlying service; notifications still waiting in the
+     * ring are written as they get consumed.
+     */
+    public void flush() throws NetworkIOException {
+        service.flush();
+    }
+
+    public void testConnection() throws NetworkIOException {
+        service.testConnection();
+    }
+}
@@ -0,0 +1,176 @@
+package com.notnoop.apns.internal;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single selector thread multiplexing the I/O of many non-blocking
+ * gateway connections.
+ *
+ * All channel state owned by a connection is only touched from this
+ * thread; other threads hand work over through {@link #execute(Runnable)}.
+ */
+public class SelectorLoop implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(SelectorLoop.class);
+
+    /**
+     * Callback for channels registered with the loop.
+     */
+    public interface Handler {
+        /**
+         * Called on the loop thread whenever the channel is ready for
+         * any of its interest operations.
+         */
+        void ready(SelectionKey key);
+    }
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+    private volatile boolean running = true;
+
+    public SelectorLoop(String name) {
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Returns true if the calling thread is the loop thread.
+     */
+    public boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Runs the task on the loop thread, waking up the selector if needed.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs the task on the loop thread after the given delay.  This
+     * method may only be called from the loop thread.
+     */
+    public void schedule(Runnable task, long delayInMs) {
+        assert inLoop();
+        timers.add(new Timer(System.nanoTime() + delayInMs * 1000000L, task));
+    }
+
+    /**
+     * Registers the channel with this loop's selector.  This method may
+     * only be called from the loop thread.
+     */
+    public SelectionKey register(SelectableChannel channel, int ops, Handler handler)
+            throws ClosedChannelException {
+        assert inLoop();
+        return channel.register(selector, ops, handler);
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                long timeout = nextTimeout();
+                if (timeout < 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(timeout);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()) {
+                        ((Handler) key.attachment()).ready(key);
+                    }
+                }
+
+                runTasks();
+                runTimers();
+            } catch (Exception e) {
+                // A misbehaving handler must not take down every other
+                // connection sharing this loop
+                logger.warn("Unexpected exception in selector loop", e);
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            Utilities.close(key.channel());
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.debug("error while closing selector", e);
+        }
+    }
+
+    private long nextTimeout() {
+        if (!tasks.isEmpty()) {
+            return -1;
+        }
+        Timer timer = timers.peek();
+        if (timer == null) {
+            return 0;
+        }
+        long delayInMs = (timer.deadline - System.nanoTime()) / 1000000L;
+        return delayInMs <= 0 ? -1 : delayInMs;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                logger.warn("Unexpected exception in selector task", e);
+            }
+        }
+    }
+
+    private void runTimers() {
+        long now = System.nanoTime();
+        while (!timers.isEmpty() && timers.peek().deadline - now <= 0) {
+            execute(timers.poll().task);
+        }
+    }
+
+    private static class Timer implements Comparable<Timer> {
+        final long deadline;
+        final Runnable task;
+
+        Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        public int compareTo(Timer o) {
+            long diff = deadline - o.deadline;
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+    }
+}
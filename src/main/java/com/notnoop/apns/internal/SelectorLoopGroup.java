@@ -0,0 +1,48 @@
+package com.notnoop.apns.internal;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of {@link SelectorLoop}s that non-blocking connections are
+ * spread across in a round-robin fashion.
+ */
+public class SelectorLoopGroup {
+    private static final AtomicInteger groupCount = new AtomicInteger();
+    private static SelectorLoopGroup shared;
+
+    private final SelectorLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public SelectorLoopGroup(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one selector thread is required");
+        }
+        int group = groupCount.incrementAndGet();
+        this.loops = new SelectorLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new SelectorLoop("apns-selector-" + group + "-" + i);
+        }
+    }
+
+    /**
+     * Returns the group shared by all non-blocking services that didn't
+     * ask for a dedicated one.  Its threads are daemons and are never
+     * shut down.
+     */
+    public static synchronized SelectorLoopGroup shared() {
+        if (shared == null) {
+            shared = new SelectorLoopGroup(Runtime.getRuntime().availableProcessors());
+        }
+        return shared;
+    }
+
+    public SelectorLoop next() {
+        return loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+
+    public void shutdown() {
+        for (SelectorLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.notnoop.apns.internal;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs tasks one at a time, in the order they were submitted, on the
+ * threads of a shared executor.  Only one task of the lane is handed to
+ * the executor at a time, which runs the queued tasks until the lane is
+ * empty.
+ */
+class SerialExecutor implements Executor {
+    private final Executor executor;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private final Runnable drain = new Runnable() {
+        public void run() {
+            do {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                scheduled.set(false);
+                // a task queued after the last poll but before the flag
+                // was cleared would otherwise be stranded
+            } while (!tasks.isEmpty() && scheduled.compareAndSet(false, true));
+        }
+    };
+
+    SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(drain);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.notnoop.apns.internal;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A {@link Future} completed explicitly by whoever produces the result,
+ * for results that aren't computed by a single task.
+ */
+public class SettableFuture<V> implements Future<V> {
+    private final CountDownLatch done = new CountDownLatch(1);
+    private V value;
+    private Throwable failure;
+    private boolean cancelled;
+
+    /**
+     * Completes the future with the given value.
+     *
+     * @return false if the future was already completed
+     */
+    public boolean set(V value) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            this.value = value;
+            done.countDown();
+        }
+        completed();
+        return true;
+    }
+
+    /**
+     * Completes the future with the given failure.
+     *
+     * @return false if the future was already completed
+     */
+    public boolean setException(Throwable failure) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            this.failure = failure;
+            done.countDown();
+        }
+        completed();
+        return true;
+    }
+
+    /**
+     * Called once the future is completed, by the completing thread.
+     */
+    protected void completed() {
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            cancelled = true;
+            done.countDown();
+        }
+        completed();
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    public V get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    public V get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private synchronized V result() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,53 @@
+package com.notnoop.apns.internal;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single daemon timer thread shared by all the connections of the
+ * process, for short housekeeping tasks such as delayed flushes.
+ *
+ * Tasks run one at a time, so they should be short and must not retry
+ * or sleep.  Retries that block on the network go to {@link #retries()}.
+ */
+public final class SharedScheduler {
+    private static ScheduledExecutorService scheduler;
+    private static ScheduledExecutorService retries;
+
+    private SharedScheduler() { throw new AssertionError("Uninstantiable class"); }
+
+    public static synchronized ScheduledExecutorService get() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "apns-scheduler");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return scheduler;
+    }
+
+    /**
+     * Returns the daemon pool running delayed retries of failed network
+     * operations, whose tasks may block on connects and handshakes.
+     */
+    public static synchronized ScheduledExecutorService retries() {
+        if (retries == null) {
+            final AtomicInteger count = new AtomicInteger();
+            retries = Executors.newScheduledThreadPool(
+                    Math.max(2, Runtime.getRuntime().availableProcessors()),
+                    new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "apns-retry-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return retries;
+    }
+}
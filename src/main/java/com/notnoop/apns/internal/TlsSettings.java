@@ -0,0 +1,108 @@
+package com.notnoop.apns.internal;
+
+import java.io.IOException;
+import java.net.Socket;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import com.notnoop.apns.HandshakeStatistics;
+
+/**
+ * The protocols and cipher suites the connections offer, in order of
+ * preference, and where their handshakes are recorded.  Unset values
+ * keep the defaults of the {@code SSLContext}.
+ *
+ * Sessions are cached by the client session context of the
+ * {@code SSLContext}, keyed by host and port, so every connection created
+ * from the same context resumes the sessions of the others.
+ */
+public final class TlsSettings {
+    public static final TlsSettings DEFAULT = new TlsSettings(null, null, null);
+
+    private final String[] protocols;
+    private final String[] cipherSuites;
+    private final HandshakeStatistics statistics;
+
+    public TlsSettings(String[] protocols, String[] cipherSuites, HandshakeStatistics statistics) {
+        this.protocols = protocols == null ? null : protocols.clone();
+        this.cipherSuites = cipherSuites == null ? null : cipherSuites.clone();
+        this.statistics = statistics;
+    }
+
+    /**
+     * Returns a factory creating sockets configured by these settings, or
+     * the given factory if there is nothing to configure.
+     */
+    public SSLSocketFactory wrap(SSLSocketFactory factory) {
+        if (protocols == null && cipherSuites == null && statistics == null) {
+            return factory;
+        }
+        return new TlsSocketFactory(factory, this);
+    }
+
+    /**
+     * Configures a socket before its handshake.
+     */
+    public void configure(SSLSocket socket) {
+        if (protocols != null) {
+            socket.setEnabledProtocols(protocols);
+        }
+        if (cipherSuites != null) {
+            socket.setEnabledCipherSuites(cipherSuites);
+        }
+    }
+
+    /**
+     * Configures an engine before its handshake.
+     */
+    public void configure(SSLEngine engine) {
+        if (protocols != null) {
+            engine.setEnabledProtocols(protocols);
+        }
+        if (cipherSuites != null) {
+            engine.setEnabledCipherSuites(cipherSuites);
+        }
+    }
+
+    /**
+     * Runs the handshake of a socket created by {@code factory}, and
+     * records it if the factory was configured by {@link #wrap}.  Timed
+     * here rather than by a {@code HandshakeCompletedListener}, whose
+     * events are delivered on a new thread each.
+     *
+     * @return the duration of the handshake, 0 for a plain socket
+     */
+    public static long handshake(SocketFactory factory, Socket socket) throws IOException {
+        if (!(socket instanceof SSLSocket)) {
+            return 0;
+        }
+        SSLSocket sslSocket = (SSLSocket) socket;
+        long startedMillis = System.currentTimeMillis();
+        long started = System.nanoTime();
+        sslSocket.startHandshake();
+        long nanos = System.nanoTime() - started;
+        if (factory instanceof TlsSocketFactory) {
+            ((TlsSocketFactory) factory).settings().handshakeCompleted(sslSocket.getSession(),
+                    startedMillis, nanos);
+        }
+        return nanos;
+    }
+
+    /**
+     * Records a completed handshake.  A session created before the
+     * handshake started was resumed from the cache.
+     *
+     * @param session       the session negotiated by the handshake
+     * @param startedMillis when the handshake started, in wall clock time
+     * @param nanos         the duration of the handshake
+     */
+    public void handshakeCompleted(SSLSession session, long startedMillis, long nanos) {
+        if (statistics != null) {
+            statistics.handshakeCompleted(nanos, session.getCreationTime() < startedMillis);
+        }
+    }
+}
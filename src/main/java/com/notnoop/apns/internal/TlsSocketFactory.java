@@ -0,0 +1,75 @@
+package com.notnoop.apns.internal;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Configures the sockets of another factory with the given
+ * {@link TlsSettings}.
+ */
+class TlsSocketFactory extends SSLSocketFactory {
+    private final SSLSocketFactory factory;
+    private final TlsSettings settings;
+
+    TlsSocketFactory(SSLSocketFactory factory, TlsSettings settings) {
+        this.factory = factory;
+        this.settings = settings;
+    }
+
+    TlsSettings settings() {
+        return settings;
+    }
+
+    private Socket configure(Socket socket) {
+        if (socket instanceof SSLSocket) {
+            settings.configure((SSLSocket) socket);
+        }
+        return socket;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return factory.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return factory.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return configure(factory.createSocket());
+    }
+
+    @Override
+    public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+        return configure(factory.createSocket(s, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return configure(factory.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+            throws IOException {
+        return configure(factory.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return configure(factory.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+            throws IOException {
+        return configure(factory.createSocket(address, port, localAddress, localPort));
+    }
+}
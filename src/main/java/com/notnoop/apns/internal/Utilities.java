@@ -30,26 +30,27 @@
  */
 package com.notnoop.apns.internal;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
 import java.io.Closeable;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.security.KeyStore;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.regex.Pattern;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.notnoop.apns.FeedbackListener;
 import com.notnoop.exceptions.InvalidSSLConfig;
 import com.notnoop.exceptions.NetworkIOException;
 
@@ -110,27 +111,65 @@ public final class Utilities {
            }
        }
 
-    private static final Pattern pattern = Pattern.compile("[ -]");
+    // the value of each hex digit, -1 for other characters
+    private static final byte[] HEX_VALUES = new byte['f' + 1];
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['a' + i] = (byte) (10 + i);
+            HEX_VALUES['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    /**
+     * Decodes the hex digits of {@code deviceToken}, skipping spaces and
+     * dashes.
+     */
     public static byte[] decodeHex(final String deviceToken) {
-        final String hex = pattern.matcher(deviceToken).replaceAll("");
+        final int length = deviceToken.length();
+        int digits = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = deviceToken.charAt(i);
+            if (c != ' ' && c != '-') {
+                digits++;
+            }
+        }
 
-        final byte[] bts = new byte[hex.length() / 2];
-        for (int i = 0; i < bts.length; i++) {
-            bts[i] = (byte) (charval(hex.charAt(2*i)) * 16 + charval(hex.charAt(2*i + 1)));
+        final byte[] bts = new byte[digits / 2];
+        if (digits == length) {
+            for (int i = 0; i < bts.length; i++) {
+                bts[i] = (byte) (hexValue(deviceToken.charAt(2*i)) << 4 | hexValue(deviceToken.charAt(2*i + 1)));
+            }
+            return bts;
+        }
+        int high = -1;
+        for (int i = 0, j = 0; j < bts.length; i++) {
+            final char c = deviceToken.charAt(i);
+            if (c == ' ' || c == '-') {
+                continue;
+            }
+            if (high < 0) {
+                high = hexValue(c);
+            } else {
+                bts[j++] = (byte) (high << 4 | hexValue(c));
+                high = -1;
+            }
         }
         return bts;
     }
 
-    private static int charval(final char a) {
-        if ('0' <= a && a <= '9') {
-            return (a - '0');
-        } else if ('a' <= a && a <= 'f') {
-            return (a - 'a') + 10;
-        } else if ('A' <= a && a <= 'F') {
-            return (a - 'A') + 10;
-        } else {
+    /**
+     * Returns the value of the hex digit {@code a}.
+     */
+    public static int hexValue(final char a) {
+        final int value = a < HEX_VALUES.length ? HEX_VALUES[a] : -1;
+        if (value < 0) {
             throw new RuntimeException("Invalid hex character: " + a);
         }
+        return value;
     }
 
     private static final char base[] = {'0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'};
@@ -156,79 +195,79 @@ public final class Utilities {
     }
 
     public static byte[] marshall(final byte command, final byte[] deviceToken, final byte[] payload) {
-        final ByteArrayOutputStream boas = new ByteArrayOutputStream();
-        final DataOutputStream dos = new DataOutputStream(boas);
-
-        try {
-            dos.writeByte(command);
-            dos.writeShort(deviceToken.length);
-            dos.write(deviceToken);
-            dos.writeShort(payload.length);
-            dos.write(payload);
-            return boas.toByteArray();
-        } catch (final IOException e) {
-            throw new AssertionError();
-        }
+        final byte[] frame = new byte[FrameEncoder.length(deviceToken, payload)];
+        final ByteBuffer dst = ByteBuffer.wrap(frame);
+        FrameEncoder.encode(dst, deviceToken, payload);
+        frame[0] = command;
+        return frame;
     }
 
     public static byte[] marshallEnhanced(final byte command, final int identifier,
             final int expiryTime, final byte[] deviceToken, final byte[] payload) {
-        final ByteArrayOutputStream boas = new ByteArrayOutputStream();
-        final DataOutputStream dos = new DataOutputStream(boas);
-
-        try {
-            dos.writeByte(command);
-            dos.writeInt(identifier);
-            dos.writeInt(expiryTime);
-            dos.writeShort(deviceToken.length);
-            dos.write(deviceToken);
-            dos.writeShort(payload.length);
-            dos.write(payload);
-            return boas.toByteArray();
-        } catch (final IOException e) {
-            throw new AssertionError();
-        }
+        final byte[] frame = new byte[FrameEncoder.enhancedLength(deviceToken, payload)];
+        final ByteBuffer dst = ByteBuffer.wrap(frame);
+        FrameEncoder.encodeEnhanced(dst, identifier, expiryTime, deviceToken, payload);
+        frame[0] = command;
+        return frame;
     }
 
-    public static Map<byte[], Integer> parseFeedbackStreamRaw(final InputStream in) {
-        final Map<byte[], Integer> result = new HashMap<byte[], Integer>();
+    // the feedback stream is read in blocks of this size rather than
+    // a few bytes per read
+    private static final int FEEDBACK_BUFFER_SIZE = 16 * 1024;
 
-        final DataInputStream data = new DataInputStream(in);
+    /**
+     * Passes each device of the feedback stream on to {@code listener} as
+     * soon as it is read, until the end of the stream.  If reading fails
+     * the devices read so far were passed on already.
+     */
+    public static void parseFeedbackStream(final InputStream in, final FeedbackListener listener) {
+        final DataInputStream data = new DataInputStream(new BufferedInputStream(in, FEEDBACK_BUFFER_SIZE));
 
         while (true) {
+            final int time;
+            final byte[] deviceToken;
             try {
-                final int time = data.readInt();
+                time = data.readInt();
                 final int dtLength = data.readUnsignedShort();
-                final byte[] deviceToken = new byte[dtLength];
+                deviceToken = new byte[dtLength];
                 data.readFully(deviceToken);
-
-                result.put(deviceToken, time);
             } catch (final EOFException e) {
                 break;
             } catch (final IOException e) {
                 throw new RuntimeException(e);
             }
+            listener.inactiveDevice(deviceToken, time);
         }
+    }
 
+    public static Map<byte[], Integer> parseFeedbackStreamRaw(final InputStream in) {
+        final Map<byte[], Integer> result = new HashMap<byte[], Integer>();
+        parseFeedbackStream(in, new FeedbackListener() {
+            public void inactiveDevice(final byte[] deviceToken, final int timestamp) {
+                result.put(deviceToken, timestamp);
+            }
+        });
         return result;
     }
 
     public static Map<String, Date> parseFeedbackStream(final InputStream in) {
         final Map<String, Date> result = new HashMap<String, Date>();
-
-        final Map<byte[], Integer> raw = parseFeedbackStreamRaw(in);
-        for (final Map.Entry<byte[], Integer> entry : raw.entrySet()) {
-            final byte[] dtArray = entry.getKey();
-            final int time = entry.getValue(); // in seconds
-
-            final Date date = new Date(time * 1000L);    // in ms
-            final String dtString = encodeHex(dtArray);
-            result.put(dtString, date);
-        }
-
+        parseFeedbackStream(in, inactiveDevicesCollector(result));
         return result;
     }
 
+    /**
+     * Returns a listener putting the devices into {@code result}, keyed
+     * by their hex token.
+     */
+    public static FeedbackListener inactiveDevicesCollector(final Map<String, Date> result) {
+        return new FeedbackListener() {
+            public void inactiveDevice(final byte[] deviceToken, final int timestamp) {
+                result.put(encodeHex(deviceToken), new Date(timestamp * 1000L));
+            }
+        };
+    }
+
     public static void close(final Closeable closeable) {
         try {
             if (closeable != null) {
@@ -0,0 +1,12 @@
+package com.notnoop.exceptions;
+
+/**
+ * Thrown to indicate that a notification didn't fit in the bounded queue
+ * of a queued service, and was rejected or dropped according to its
+ * {@link com.notnoop.apns.QueueOverflowPolicy}.
+ */
+public class QueueOverflowException extends ApnsException {
+    private static final long serialVersionUID = -4311578367471302545L;
+
+    public QueueOverflowException(String message) { super(message); }
+}
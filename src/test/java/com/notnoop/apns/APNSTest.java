@@ -1,8 +1,11 @@
 package com.notnoop.apns;
 
+import java.util.concurrent.TimeUnit;
+
 import org.junit.Test;
 import static org.junit.Assert.*;
 import static org.hamcrest.CoreMatchers.*;
+import static com.notnoop.apns.utils.FixedCertificates.*;
 
 /**
  * Silly Tests
@@ -24,4 +27,22 @@ public class APNSTest {
     public void newServiceGetNewInstances() {
         assertNotSame(APNS.newService(), APNS.newService());
     }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonBlockingRejectsPools() {
+        APNS.newService().withSSLContext(clientContext())
+                .withGatewayDestination(TEST_HOST, TEST_GATEWAY_PORT)
+                .asPool(2)
+                .asNonBlocking(1)
+                .build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonBlockingRejectsWriteCoalescing() {
+        APNS.newService().withSSLContext(clientContext())
+                .withGatewayDestination(TEST_HOST, TEST_GATEWAY_PORT)
+                .withWriteCoalescing(4096, 1, TimeUnit.MILLISECONDS)
+                .asNonBlocking(1)
+                .build();
+    }
 }
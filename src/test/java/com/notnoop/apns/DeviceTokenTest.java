@@ -0,0 +1,64 @@
+package com.notnoop.apns;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.notnoop.apns.internal.Utilities;
+
+public class DeviceTokenTest {
+    String hex = "0123456789ABCDEF" + "FEDCBA9876543210" + "00112233445566778899AABBCCDDEEFF".toLowerCase();
+
+    @Test
+    public void parsesHexAndBytesAlike() {
+        byte[] bytes = Utilities.decodeHex(hex);
+        DeviceToken token = DeviceToken.fromHex(hex);
+
+        assertArrayEquals(bytes, token.toBytes());
+        assertEquals(token, DeviceToken.fromBytes(bytes));
+        assertEquals(hex.toUpperCase(), token.toString());
+    }
+
+    @Test
+    public void skipsSeparators() {
+        String spaced = hex.substring(0, 8) + " " + hex.substring(8, 20) + "-" + hex.substring(20);
+        assertEquals(DeviceToken.fromHex(hex), DeviceToken.fromHex(spaced));
+    }
+
+    @Test
+    public void usableAsMapKey() {
+        Map<DeviceToken, String> map = new HashMap<DeviceToken, String>();
+        map.put(DeviceToken.fromHex(hex), "first");
+
+        DeviceToken same = DeviceToken.fromBytes(Utilities.decodeHex(hex));
+        assertEquals(DeviceToken.fromHex(hex).hashCode(), same.hashCode());
+        assertEquals("first", map.get(same));
+        assertNull(map.get(DeviceToken.fromHex(hex.replace('0', '1'))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsShortToken() {
+        DeviceToken.fromHex(hex.substring(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsLongToken() {
+        DeviceToken.fromHex(hex + "00");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonHex() {
+        DeviceToken.fromHex(hex.replace('a', 'x'));
+    }
+
+    @Test
+    public void notificationFrameMatchesByteToken() {
+        byte[] payload = Utilities.toUTF8Bytes("{\"aps\":{}}");
+        EnhancedApnsNotification expected = new EnhancedApnsNotification(3, 60, Utilities.decodeHex(hex), payload);
+
+        assertEquals(expected, new EnhancedApnsNotification(3, 60, DeviceToken.fromHex(hex), payload));
+    }
+}
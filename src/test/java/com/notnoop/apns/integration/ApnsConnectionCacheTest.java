@@ -4,17 +4,24 @@ import org.junit.*;
 
 import com.notnoop.apns.APNS;
 import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsDelegateAdapter;
 import com.notnoop.apns.ApnsNotification;
 import com.notnoop.apns.ApnsService;
 import com.notnoop.apns.DeliveryError;
+import com.notnoop.apns.ApnsServiceBuilder;
 import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.PushFuture;
 import com.notnoop.apns.SimpleApnsNotification;
 import com.notnoop.apns.utils.ApnsServerStub;
 import com.notnoop.apns.utils.FixedCertificates;
 import static com.notnoop.apns.utils.FixedCertificates.*;
+import com.notnoop.exceptions.ApnsDeliveryErrorException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ApnsConnectionCacheTest {
 
@@ -220,6 +227,155 @@ public class ApnsConnectionCacheTest {
         Assert.assertEquals(EXPECTED_ERROR_COUNT, numError.get());
     }
 
+    /**
+     * Test to make sure single rejected notifications are returned
+     * by non-blocking connections
+     *
+     * @throws InterruptedException
+     */
+    @Test(timeout = 5000)
+    public void handleReTransmissionError1BadNonBlocking() throws InterruptedException {
+
+        server = new ApnsServerStub(
+                FixedCertificates.serverContext().getServerSocketFactory(),
+                TEST_GATEWAY_PORT, TEST_FEEDBACK_PORT);
+        final CountDownLatch sync = new CountDownLatch(1);
+        final AtomicInteger numError = new AtomicInteger();
+        int EXPECTED_ERROR_COUNT = 1;
+        server.waitForError.acquire();
+        server.start();
+        ApnsService service =
+                APNS.newService().withSSLContext(clientContext())
+                .withGatewayDestination(TEST_HOST, TEST_GATEWAY_PORT)
+                .asNonBlocking(1)
+                .withDelegate(new ApnsDelegateAdapter() {
+            public void messageSendFailed(ApnsNotification message, Throwable e) {
+                if (message == eMsg1) {
+                    numError.incrementAndGet();
+                }
+                sync.countDown();
+            }
+        })
+                .build();
+        server.stopAt(eMsg1.length());
+        service.push(eMsg1);
+
+        server.sendError(8, eMsg1.getIdentifier());
+        server.waitForError.release();
+        server.messages.acquire();
+
+        sync.await();
+
+        Assert.assertEquals(EXPECTED_ERROR_COUNT, numError.get());
+    }
+
+    /**
+     * Test to make sure the future of a rejected notification fails with
+     * the delivery error, while the delegate still sees the notification
+     *
+     * @throws Exception
+     */
+    @Test(timeout = 5000)
+    public void pushAsyncFailsWithDeliveryError() throws Exception {
+        pushAsyncFailsWithDeliveryError(false);
+    }
+
+    @Test(timeout = 5000)
+    public void pushAsyncFailsWithDeliveryErrorNonBlocking() throws Exception {
+        pushAsyncFailsWithDeliveryError(true);
+    }
+
+    private void pushAsyncFailsWithDeliveryError(boolean nonBlocking) throws Exception {
+        server = new ApnsServerStub(
+                FixedCertificates.serverContext().getServerSocketFactory(),
+                TEST_GATEWAY_PORT, TEST_FEEDBACK_PORT);
+        final AtomicReference<ApnsNotification> failed = new AtomicReference<ApnsNotification>();
+        server.waitForError.acquire();
+        server.start();
+        ApnsServiceBuilder builder =
+                APNS.newService().withSSLContext(clientContext())
+                .withGatewayDestination(TEST_HOST, TEST_GATEWAY_PORT)
+                .withDelegate(new ApnsDelegateAdapter() {
+            public void messageSendFailed(ApnsNotification message, Throwable e) {
+                failed.set(message);
+            }
+        });
+        if (nonBlocking) {
+            builder.asNonBlocking(1);
+        }
+        ApnsService service = builder.build();
+        server.stopAt(eMsg1.length());
+        PushFuture future = service.pushAsync(eMsg1);
+        final CountDownLatch completed = new CountDownLatch(1);
+        future.addListener(new Runnable() {
+            public void run() {
+                completed.countDown();
+            }
+        }, new Executor() {
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+
+        server.sendError(8, eMsg1.getIdentifier());
+        server.waitForError.release();
+        server.messages.acquire();
+
+        completed.await();
+        try {
+            future.get();
+            Assert.fail("the notification was rejected");
+        } catch (ExecutionException e) {
+            ApnsDeliveryErrorException error = (ApnsDeliveryErrorException) e.getCause();
+            Assert.assertEquals(DeliveryError.INVALID_TOKEN, error.getDeliveryError());
+        }
+        Assert.assertSame(eMsg1, failed.get());
+        Assert.assertSame(eMsg1, future.getNotification());
+        service.stop();
+    }
+
+    /**
+     * Test to make sure rejected notifications are rebuilt from an
+     * off-heap cache
+     *
+     * @throws InterruptedException
+     */
+    @Test(timeout = 5000)
+    public void handleReTransmissionError1BadOffHeap() throws InterruptedException {
+
+        server = new ApnsServerStub(
+                FixedCertificates.serverContext().getServerSocketFactory(),
+                TEST_GATEWAY_PORT, TEST_FEEDBACK_PORT);
+        final CountDownLatch sync = new CountDownLatch(1);
+        final AtomicInteger numError = new AtomicInteger();
+        int EXPECTED_ERROR_COUNT = 1;
+        server.waitForError.acquire();
+        server.start();
+        ApnsService service =
+                APNS.newService().withSSLContext(clientContext())
+                .withGatewayDestination(TEST_HOST, TEST_GATEWAY_PORT)
+                .withOffHeapCache(4096)
+                .withDelegate(new ApnsDelegateAdapter() {
+            public void messageSendFailed(ApnsNotification message, Throwable e) {
+                if (eMsg1.equals(message)) {
+                    numError.incrementAndGet();
+                }
+                sync.countDown();
+            }
+        })
+                .build();
+        server.stopAt(eMsg1.length());
+        service.push(eMsg1);
+
+        server.sendError(8, eMsg1.getIdentifier());
+        server.waitForError.release();
+        server.messages.acquire();
+
+        sync.await();
+
+        Assert.assertEquals(EXPECTED_ERROR_COUNT, numError.get());
+    }
+
     /**
      * Test to make sure that after rejected notification
      * in-flight notifications are re-transmitted with a queued connection
@@ -350,4 +506,65 @@ public class ApnsConnectionCacheTest {
         Assert.assertTrue(ORIGINAL_CACHE_LENGTH < modifiedCacheLength.get());
     }
 
+    /**
+     * Test to make sure that a time based resend window keeps the
+     * notifications a count based cache would have evicted, and reports
+     * its adjustment
+     *
+     * @throws InterruptedException
+     */
+    @Test(timeout = 5000)
+    public void resendWindowKeepsNotificationsByTime() throws InterruptedException {
+
+        // the resent notifications must not reach the servers of later tests
+        int gatewayPort = TEST_GATEWAY_PORT + 1;
+        server = new ApnsServerStub(
+                FixedCertificates.serverContext().getServerSocketFactory(),
+                gatewayPort, TEST_FEEDBACK_PORT + 1);
+        final CountDownLatch sync = new CountDownLatch(2);
+        final AtomicInteger adjustedCacheLength = new AtomicInteger();
+        final AtomicReference<ApnsNotification> failed = new AtomicReference<ApnsNotification>();
+        server.waitForError.acquire();
+        server.start();
+        ApnsService service =
+                APNS.newService().withSSLContext(clientContext())
+                .withGatewayDestination(TEST_HOST, gatewayPort)
+                .withCacheLength(10)
+                .withResendWindow(30, TimeUnit.SECONDS, 1 << 20)
+                .withDelegate(new ApnsDelegateAdapter() {
+            public void messageSendFailed(ApnsNotification message, Throwable e) {
+                failed.set(message);
+                sync.countDown();
+            }
+
+            public void cacheLengthExceeded(int newCacheLength) {
+                adjustedCacheLength.set(newCacheLength);
+                sync.countDown();
+            }
+        })
+                .build();
+        server.stopAt(eMsg1.length() * 5 + eMsg2.length() + eMsg3.length() * 14);
+        for (int i = 0; i < 5; ++i) {
+            service.push(eMsg1);
+        }
+
+        service.push(eMsg2);
+
+        for (int i = 0; i < 101; ++i) {
+            service.push(eMsg3);
+        }
+
+        server.sendError(8, eMsg2.getIdentifier());
+
+        server.waitForError.release();
+        server.messages.acquire();
+
+        sync.await();
+
+        Assert.assertSame(eMsg2, failed.get());
+        // the window shrank to the measured latency
+        Assert.assertTrue(adjustedCacheLength.get() > 0);
+        service.stop();
+    }
+
 }
@@ -3,8 +3,16 @@ package com.notnoop.apns.integration;
 import org.junit.*;
 import static org.junit.Assert.*;
 
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import com.notnoop.apns.APNS;
+import com.notnoop.apns.ApnsDelegateAdapter;
+import com.notnoop.apns.ApnsNotification;
 import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.ApnsServiceBuilder;
 import com.notnoop.apns.EnhancedApnsNotification;
 import com.notnoop.apns.SimpleApnsNotification;
 import com.notnoop.apns.utils.ApnsServerStub;
@@ -63,4 +71,84 @@ public class ApnsConnectionTest {
         assertArrayEquals(msg1.marshall(), server.received.toByteArray());
     }
 
+    @Test(timeout = 2000)
+    public void sendOneNonBlocking() throws InterruptedException {
+
+        server = ApnsServerStub.prepareAndStartServer(TEST_GATEWAY_PORT, TEST_FEEDBACK_PORT);
+        ApnsService service =
+                APNS.newService().withSSLContext(clientContext())
+                .withGatewayDestination(TEST_HOST, TEST_GATEWAY_PORT)
+                .asNonBlocking(1)
+                .build();
+        server.stopAt(msg1.length() + eMsg1.length());
+        service.push(msg1);
+        service.push(eMsg1);
+        server.messages.acquire();
+
+        byte[] expected = new byte[msg1.length() + eMsg1.length()];
+        System.arraycopy(msg1.marshall(), 0, expected, 0, msg1.length());
+        System.arraycopy(eMsg1.marshall(), 0, expected, msg1.length(), eMsg1.length());
+        assertArrayEquals(expected, server.received.toByteArray());
+        service.stop();
+    }
+
+    @Test(timeout = 10000)
+    public void unresolvedHostFailsNonBlocking() throws InterruptedException {
+        server = ApnsServerStub.prepareAndStartServer(TEST_GATEWAY_PORT, TEST_FEEDBACK_PORT);
+        final CountDownLatch failed = new CountDownLatch(1);
+        ApnsService service =
+                APNS.newService().withSSLContext(clientContext())
+                .withGatewayDestination("gateway.invalid", TEST_GATEWAY_PORT)
+                .asNonBlocking(1)
+                .withDelegate(new ApnsDelegateAdapter() {
+                    public void messageSendFailed(ApnsNotification message, Throwable e) {
+                        if (message == msg1 && e instanceof UnknownHostException) {
+                            failed.countDown();
+                        }
+                    }
+                })
+                .build();
+        service.push(msg1);
+        failed.await();
+        service.stop();
+    }
+
+    @Test(timeout = 2000)
+    public void warmUpAtStart() throws InterruptedException {
+        warmUpAtStart(false);
+    }
+
+    @Test(timeout = 2000)
+    public void warmUpAtStartNonBlocking() throws InterruptedException {
+        warmUpAtStart(true);
+    }
+
+    private void warmUpAtStart(boolean nonBlocking) throws InterruptedException {
+        server = ApnsServerStub.prepareAndStartServer(TEST_GATEWAY_PORT, TEST_FEEDBACK_PORT);
+        server.stopAt(msg1.length());
+        final AtomicInteger established = new AtomicInteger();
+        final AtomicLong handshake = new AtomicLong();
+        ApnsServiceBuilder builder = APNS.newService().withSSLContext(clientContext())
+                .withGatewayDestination(TEST_HOST, TEST_GATEWAY_PORT)
+                .withWarmUp()
+                .withDelegate(new ApnsDelegateAdapter() {
+                    public void connectionEstablished(long connectNanos, long handshakeNanos) {
+                        established.incrementAndGet();
+                        handshake.set(handshakeNanos);
+                    }
+                });
+        if (nonBlocking) {
+            builder.asNonBlocking(1);
+        }
+        ApnsService service = builder.build();
+        assertEquals(1, established.get());
+        assertTrue(handshake.get() > 0);
+
+        service.push(msg1);
+        server.messages.acquire();
+        assertArrayEquals(msg1.marshall(), server.received.toByteArray());
+        assertEquals(1, established.get());
+        service.stop();
+    }
+
 }
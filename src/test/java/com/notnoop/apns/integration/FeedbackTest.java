@@ -3,15 +3,30 @@ package com.notnoop.apns.integration;
 import static com.notnoop.apns.utils.FixedCertificates.*;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import static org.junit.Assert.*;
 
 import com.notnoop.apns.APNS;
 import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.ApnsServiceBuilder;
+import com.notnoop.apns.FeedbackListener;
+import com.notnoop.apns.HandshakeStatistics;
+import com.notnoop.apns.internal.Utilities;
 import static com.notnoop.apns.internal.ApnsFeedbackParsingUtils.*;
 import com.notnoop.apns.utils.ApnsServerStub;
 
@@ -86,4 +101,96 @@ public class FeedbackTest {
         checkParsedThree(service.getInactiveDevices());
     }
 
+    @Test(timeout = 5000)
+    public void polledFeedback() throws Exception {
+        server.toSend.write(three);
+
+        final CountDownLatch polled = new CountDownLatch(3);
+        final Map<String, Date> devices = new ConcurrentHashMap<String, Date>();
+        final FeedbackListener collector = Utilities.inactiveDevicesCollector(devices);
+        ApnsService service =
+            APNS.newService().withSSLContext(clientContext)
+            .withGatewayDestination(TEST_HOST, TEST_GATEWAY_PORT)
+            .withFeedbackDestination(TEST_HOST, TEST_FEEDBACK_PORT)
+            .withFeedbackPolling(1, 0, TimeUnit.HOURS, new FeedbackListener() {
+                public void inactiveDevice(byte[] deviceToken, int timestamp) {
+                    collector.inactiveDevice(deviceToken, timestamp);
+                    polled.countDown();
+                }
+            })
+            .build();
+        try {
+            polled.await();
+            checkParsedThree(devices);
+        } finally {
+            service.stop();
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void feedbackResumesTlsSession() throws Exception {
+        feedbackResumesTlsSession(null);
+    }
+
+    @Test(timeout = 5000)
+    public void feedbackResumesTlsSessionWithProtocol() throws Exception {
+        feedbackResumesTlsSession("TLSv1.2");
+    }
+
+    private void feedbackResumesTlsSession(String protocol) throws Exception {
+        final SSLServerSocket serverSocket = (SSLServerSocket) serverContext()
+                .getServerSocketFactory().createServerSocket(0);
+        final List<String> protocols = new CopyOnWriteArrayList<String>();
+        Thread acceptor = new Thread() {
+            public void run() {
+                try {
+                    while (true) {
+                        SSLSocket socket = (SSLSocket) serverSocket.accept();
+                        socket.startHandshake();
+                        protocols.add(socket.getSession().getProtocol());
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        };
+        acceptor.start();
+
+        HandshakeStatistics statistics = new HandshakeStatistics();
+        ApnsServiceBuilder builder = APNS.newService().withSSLContext(clientContext())
+            .withGatewayDestination(TEST_HOST, TEST_GATEWAY_PORT)
+            .withFeedbackDestination(TEST_HOST, serverSocket.getLocalPort())
+            .withTlsSessionCache(10, 1, TimeUnit.HOURS)
+            .withHandshakeStatistics(statistics);
+        if (protocol != null) {
+            builder.withTlsProtocols(protocol);
+        }
+        ApnsService service = builder.build();
+        try {
+            assertTrue(service.getInactiveDevices().isEmpty());
+            assertTrue(service.getInactiveDevices().isEmpty());
+            // recorded by the querying thread, before the query returns
+            assertEquals(2, statistics.getHandshakes());
+            assertEquals(1, statistics.getFullHandshakes());
+            assertEquals(1, statistics.getResumedHandshakes());
+            assertTrue(statistics.getFullHandshakeNanos() > 0);
+            if (protocol != null) {
+                assertEquals(Arrays.asList(protocol, protocol), protocols);
+            }
+        } finally {
+            serverSocket.close();
+            service.stop();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedTlsProtocol() {
+        APNS.newService().withSSLContext(clientContext)
+            .withGatewayDestination(TEST_HOST, TEST_GATEWAY_PORT)
+            .withFeedbackDestination(TEST_HOST, TEST_FEEDBACK_PORT)
+            .withTlsProtocols("SSLv1")
+            .build();
+    }
+
 }
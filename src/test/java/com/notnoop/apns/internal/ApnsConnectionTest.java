@@ -3,14 +3,39 @@ package com.notnoop.apns.internal;
 import static com.notnoop.apns.internal.MockingUtils.*;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.SocketFactory;
 
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 import org.junit.Ignore;
+import org.slf4j.LoggerFactory;
 
+import ch.qos.logback.classic.Level;
+
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsDelegateAdapter;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.ReconnectPolicy;
 import com.notnoop.apns.SimpleApnsNotification;
+import com.notnoop.apns.internal.ReconnectPolicies;
+import com.notnoop.exceptions.NetworkIOException;
 
 
 public class ApnsConnectionTest {
@@ -62,4 +87,630 @@ public class ApnsConnectionTest {
         Assert.assertArrayEquals(msg.marshall(), baos.toByteArray());
         connection.close();
     }
+
+    @Test(timeout = 2000)
+    public void asyncRetriesDoNotBlockSender() throws InterruptedException {
+        asyncRetries(new ReconnectPolicies.Never());
+    }
+
+    /**
+     * Reconnecting by policy doesn't fail the notifications being retried
+     */
+    @Test(timeout = 2000)
+    public void asyncRetriesSurviveReconnectPolicy() throws InterruptedException {
+        asyncRetries(new ReconnectPolicies.Always());
+    }
+
+    private void asyncRetries(ReconnectPolicy policy) throws InterruptedException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        SocketFactory factory = mockClosedThenOpenSocket(baos, null, false, 3);
+        final CountDownLatch sent = new CountDownLatch(2);
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(factory, "localhost", 80, null,
+                policy, new ApnsDelegateAdapter() {
+                    public void messageSent(ApnsNotification message, boolean resent) {
+                        sent.countDown();
+                    }
+                }, false, ApnsConnection.DEFAULT_CACHE_LENGTH, false,
+                FlushPolicy.IMMEDIATE, 0, new RetryBackoff(5, 100, 100, TimeUnit.MILLISECONDS));
+
+        connection.sendMessage(msg);
+        connection.sendMessage(msg);
+        Assert.assertEquals(0, baos.size());
+
+        sent.await();
+        Assert.assertArrayEquals(concat(msg.marshall(), 2), baos.toByteArray());
+        connection.close();
+    }
+
+    /**
+     * A bulk push hands its failed chunk off to the retries too, rather
+     * than sleeping between attempts
+     */
+    @Test(timeout = 2000)
+    public void asyncRetriesDoNotBlockBulkSender() throws InterruptedException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        SocketFactory factory = mockClosedThenOpenSocket(baos, null, false, 3);
+        final CountDownLatch sent = new CountDownLatch(3);
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(factory, "localhost", 80, null,
+                new ReconnectPolicies.Never(), new ApnsDelegateAdapter() {
+                    public void messageSent(ApnsNotification message, boolean resent) {
+                        sent.countDown();
+                    }
+                }, false, ApnsConnection.DEFAULT_CACHE_LENGTH, false,
+                FlushPolicy.IMMEDIATE, 0, new RetryBackoff(5, 100, 100, TimeUnit.MILLISECONDS));
+        // a sleep between attempts would outlast the test
+        connection.DELAY_IN_MS = 10000;
+        ApnsServiceImpl service = new ApnsServiceImpl(connection, null);
+
+        service.push(Arrays.asList(msg, msg, msg));
+        service.flush();
+        Assert.assertEquals(0, baos.size());
+
+        sent.await();
+        Assert.assertArrayEquals(concat(msg.marshall(), 3), baos.toByteArray());
+        service.stop();
+    }
+
+    /**
+     * Even the reconnect after the first failure happens in the background
+     */
+    @Test(timeout = 2000)
+    public void asyncRetriesNeverReconnectInSender() throws Exception {
+        final SocketFactory sockets = mockClosedThenOpenSocket(new ByteArrayOutputStream(), null, false, 1);
+        final List<Thread> connecting = Collections.synchronizedList(new ArrayList<Thread>());
+        SocketFactory factory = new SocketFactory() {
+            public Socket createSocket(String host, int port) throws IOException {
+                connecting.add(Thread.currentThread());
+                return sockets.createSocket(host, port);
+            }
+            public Socket createSocket(String host, int port, InetAddress localHost, int localPort) {
+                throw new UnsupportedOperationException();
+            }
+            public Socket createSocket(InetAddress host, int port) {
+                throw new UnsupportedOperationException();
+            }
+            public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) {
+                throw new UnsupportedOperationException();
+            }
+        };
+        final CountDownLatch sent = new CountDownLatch(1);
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(factory, "localhost", 80, null,
+                new ReconnectPolicies.Never(), new ApnsDelegateAdapter() {
+                    public void messageSent(ApnsNotification message, boolean resent) {
+                        sent.countDown();
+                    }
+                }, false, ApnsConnection.DEFAULT_CACHE_LENGTH, false,
+                FlushPolicy.IMMEDIATE, 0, new RetryBackoff(5, 1, 1, TimeUnit.HOURS));
+
+        connection.sendMessage(msg);
+        sent.await();
+        Assert.assertEquals(2, connecting.size());
+        Assert.assertSame(Thread.currentThread(), connecting.get(0));
+        Assert.assertNotSame(Thread.currentThread(), connecting.get(1));
+        connection.close();
+    }
+
+    @Test(timeout = 2000)
+    public void poolWarmsUpEveryConnection() throws Exception {
+        final AtomicInteger established = new AtomicInteger();
+        SocketFactory factory = mockSocketFactory(new ByteArrayOutputStream(), null);
+        ApnsConnectionImpl prototype = new ApnsConnectionImpl(factory, "localhost", 80,
+                new ReconnectPolicies.Never(), new ApnsDelegateAdapter() {
+                    public void connectionEstablished(long connectNanos, long handshakeNanos) {
+                        established.incrementAndGet();
+                    }
+                });
+        ApnsPooledConnection pool = new ApnsPooledConnection(prototype, 3);
+
+        pool.warmUp();
+        Assert.assertEquals(3, established.get());
+        pool.close();
+    }
+
+    @Test
+    public void coalescedUntilFlush() {
+        CountingOutputStream out = new CountingOutputStream();
+        ApnsConnectionImpl connection = coalescingConnection(out, 1024, 1, TimeUnit.HOURS);
+
+        connection.sendMessage(msg);
+        connection.sendMessage(msg);
+        connection.sendMessage(msg);
+        Assert.assertEquals(0, out.size());
+
+        connection.flush();
+        Assert.assertArrayEquals(concat(msg.marshall(), 3), out.toByteArray());
+        Assert.assertEquals(1, out.writes);
+        connection.close();
+    }
+
+    @Test
+    public void coalescedUntilThreshold() {
+        CountingOutputStream out = new CountingOutputStream();
+        ApnsConnectionImpl connection =
+                coalescingConnection(out, 2 * msg.length(), 1, TimeUnit.HOURS);
+
+        connection.sendMessage(msg);
+        Assert.assertEquals(0, out.size());
+        connection.sendMessage(msg);
+        Assert.assertArrayEquals(concat(msg.marshall(), 2), out.toByteArray());
+        Assert.assertEquals(1, out.writes);
+        connection.close();
+    }
+
+    @Test
+    public void bulkSendIsOneWrite() {
+        CountingOutputStream out = new CountingOutputStream();
+        ApnsConnectionImpl connection = coalescingConnection(out, 1, 1, TimeUnit.HOURS);
+
+        connection.sendMessages(Arrays.asList(msg, msg, msg));
+        Assert.assertArrayEquals(concat(msg.marshall(), 3), out.toByteArray());
+        Assert.assertEquals(1, out.writes);
+        connection.close();
+    }
+
+    @Test(timeout = 2000)
+    public void coalescedUntilLinger() throws InterruptedException {
+        CountingOutputStream out = new CountingOutputStream();
+        ApnsConnectionImpl connection = coalescingConnection(out, 1024, 500, TimeUnit.MICROSECONDS);
+
+        synchronized (connection) {
+            connection.sendMessage(msg);
+            connection.sendMessage(msg);
+        }
+        while (out.size() == 0) {
+            Thread.sleep(1);
+        }
+        synchronized (connection) {
+            Assert.assertArrayEquals(concat(msg.marshall(), 2), out.toByteArray());
+        }
+        connection.close();
+    }
+
+    @Test(timeout = 5000)
+    public void writerThreadDrainsAllProducers() throws Exception {
+        CountingOutputStream out = new CountingOutputStream();
+        final ApnsConnection connection = new ApnsWriterConnection(
+                coalescingConnection(out, 1024, 1, TimeUnit.HOURS));
+
+        Thread[] producers = new Thread[4];
+        for (int i = 0; i < producers.length; i++) {
+            producers[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 25; j++) {
+                        connection.sendMessage(msg);
+                    }
+                }
+            };
+            producers[i].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        connection.close();
+
+        Assert.assertArrayEquals(concat(msg.marshall(), 100), out.toByteArray());
+    }
+
+    @Test(timeout = 5000)
+    public void writerThreadDoesNotBlockSenders() throws Exception {
+        CountingOutputStream out = new CountingOutputStream();
+        ApnsConnectionImpl inner = coalescingConnection(out, 1024, 1, TimeUnit.HOURS);
+        ApnsConnection connection = new ApnsWriterConnection(inner);
+
+        synchronized (inner) {
+            // the writer is stuck on the connection lock
+            connection.sendMessage(msg);
+            connection.sendMessage(msg);
+            Assert.assertEquals(0, out.size());
+        }
+        connection.close();
+        Assert.assertArrayEquals(concat(msg.marshall(), 2), out.toByteArray());
+    }
+
+    /**
+     * Closing doesn't wait forever for a stuck writer, and reports the
+     * notifications it didn't get to as failed
+     */
+    @Test(timeout = 5000)
+    public void writerCloseFailsQueuedNotifications() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ApnsConnectionImpl inner = new ApnsConnectionImpl(mockSocketFactory(new CountingOutputStream(), null),
+                "localhost", 80) {
+            @Override
+            public void sendMessages(Iterable<? extends ApnsNotification> messages) {
+                entered.countDown();
+                // like a blocking socket write, deaf to interrupts
+                while (true) {
+                    try {
+                        release.await();
+                        return;
+                    } catch (InterruptedException e) {
+                        // keep waiting
+                    }
+                }
+            }
+        };
+        final List<ApnsNotification> failed = new ArrayList<ApnsNotification>();
+        ApnsWriterConnection connection = new ApnsWriterConnection(inner, new ApnsDelegateAdapter() {
+            public void messageSendFailed(ApnsNotification message, Throwable e) {
+                failed.add(message);
+            }
+        });
+        connection.CLOSE_TIMEOUT_IN_MS = 50;
+        SimpleApnsNotification second = new SimpleApnsNotification("a87d8878d878a88", "{\"aps\":{}}");
+        SimpleApnsNotification third = new SimpleApnsNotification("a87d8878d878a89", "{\"aps\":{}}");
+
+        connection.sendMessage(msg);
+        entered.await();
+        connection.sendMessage(second);
+        connection.sendMessage(third);
+        connection.close();
+        Assert.assertEquals(2, failed.size());
+        Assert.assertSame(second, failed.get(0));
+        Assert.assertSame(third, failed.get(1));
+        release.countDown();
+    }
+
+    @Test(timeout = 5000)
+    public void resendIsWrittenInBulk() throws Exception {
+        final int count = 3000;
+        final CountDownLatch error = new CountDownLatch(1);
+        final CountDownLatch resent = new CountDownLatch(count);
+        final AtomicInteger resentEvents = new AtomicInteger();
+
+        CountingOutputStream first = new CountingOutputStream();
+        CountingOutputStream second = new CountingOutputStream();
+        SocketFactory factory = mockSequentialSocketFactory(
+                mockSocket(first, new ErrorResponseStream(error, 1)),
+                mockSocket(second, new ErrorResponseStream(new CountDownLatch(1), 0)));
+
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(factory, "localhost", 80, null,
+                new ReconnectPolicies.Never(), new ApnsDelegateAdapter() {
+                    public void messageSent(ApnsNotification message, boolean resend) {
+                        if (resend) {
+                            resent.countDown();
+                        }
+                    }
+
+                    public void notificationsResent(int resendCount) {
+                        resentEvents.incrementAndGet();
+                    }
+                }, true, count + 1, false);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i <= count; i++) {
+            ApnsNotification m = new EnhancedApnsNotification(i + 1, 0, msg.getDeviceToken(), msg.getPayload());
+            connection.sendMessage(m);
+            if (i > 0) {
+                expected.write(m.marshall());
+            }
+        }
+        error.countDown();
+        resent.await();
+
+        Assert.assertArrayEquals(expected.toByteArray(), second.toByteArray());
+        Assert.assertTrue(second.writes < 10);
+        Assert.assertEquals(1, resentEvents.get());
+    }
+
+    /**
+     * The connection dropping without an error response doesn't lose the
+     * notifications still buffered
+     */
+    @Test(timeout = 5000)
+    public void bufferSurvivesDroppedConnection() throws Exception {
+        CountDownLatch dropped = new CountDownLatch(1);
+        CountingOutputStream second = new CountingOutputStream();
+        Socket first = mockSocket(new CountingOutputStream(), new ErrorResponseStream(dropped, 0));
+        SocketFactory factory = mockSequentialSocketFactory(first,
+                mockSocket(second, new ErrorResponseStream(new CountDownLatch(1), 0)));
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(factory, "localhost", 80, null,
+                new ReconnectPolicies.Never(), ApnsDelegate.EMPTY, true,
+                ApnsConnection.DEFAULT_CACHE_LENGTH, false,
+                new FlushPolicy(1024, 1, TimeUnit.HOURS));
+
+        connection.sendMessage(msg);
+        dropped.countDown();
+        while (!first.isClosed()) {
+            Thread.sleep(1);
+        }
+        connection.flush();
+        Assert.assertArrayEquals(msg.marshall(), second.toByteArray());
+    }
+
+    @Test(timeout = 10000)
+    public void closeGivesUpOnStalledFlush() {
+        final Socket[] stalled = new Socket[1];
+        stalled[0] = mockSocket(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                // like a peer that stopped reading: blocks until closed
+                while (!stalled[0].isClosed()) {
+                    Thread.yield();
+                }
+                throw new IOException("Socket closed");
+            }
+        }, null);
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(mockSequentialSocketFactory(stalled[0]),
+                "localhost", 80, null, new ReconnectPolicies.Never(), ApnsDelegate.EMPTY, false,
+                ApnsConnection.DEFAULT_CACHE_LENGTH, false, new FlushPolicy(1024, 1, TimeUnit.HOURS));
+
+        connection.sendMessage(msg);
+        connection.close();
+        Assert.assertTrue(stalled[0].isClosed());
+    }
+
+    /**
+     * The notifications still buffered when the socket fails for good are
+     * reported as failed rather than dropped
+     */
+    @Test(timeout = 2000)
+    public void failedFlushFailsBufferedNotifications() {
+        List<ApnsNotification> sent = new ArrayList<ApnsNotification>();
+        List<ApnsNotification> failed = new ArrayList<ApnsNotification>();
+        ApnsConnectionImpl connection = failingCoalescingConnection(sent, failed);
+        SimpleApnsNotification other = new SimpleApnsNotification("a87d8878d878a88", "{\"aps\":{}}");
+
+        connection.sendMessage(msg);
+        connection.sendMessage(other);
+        try {
+            connection.flush();
+            Assert.fail("flush should have failed");
+        } catch (NetworkIOException e) {
+            // expected
+        }
+        Assert.assertTrue(sent.isEmpty());
+        Assert.assertEquals(2, failed.size());
+        Assert.assertSame(msg, failed.get(0));
+        Assert.assertSame(other, failed.get(1));
+    }
+
+    @Test(timeout = 2000)
+    public void failedFlushOnCloseFailsBufferedNotifications() {
+        List<ApnsNotification> sent = new ArrayList<ApnsNotification>();
+        List<ApnsNotification> failed = new ArrayList<ApnsNotification>();
+        ApnsConnectionImpl connection = failingCoalescingConnection(sent, failed);
+
+        connection.sendMessage(msg);
+        connection.close();
+        Assert.assertTrue(sent.isEmpty());
+        Assert.assertEquals(1, failed.size());
+        Assert.assertSame(msg, failed.get(0));
+    }
+
+    /**
+     * Reconnecting by policy doesn't presume the cached notifications
+     * delivered: an error response may still arrive for them
+     */
+    @Test(timeout = 2000)
+    public void reconnectPolicyKeepsResendCache() {
+        CountDownLatch never = new CountDownLatch(1);
+        SocketFactory factory = mockSequentialSocketFactory(
+                mockSocket(new ByteArrayOutputStream(), new ErrorResponseStream(never, 0)));
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(factory, "localhost", 80, null,
+                new ReconnectPolicies.Always(), ApnsDelegate.EMPTY, true,
+                ApnsConnection.DEFAULT_CACHE_LENGTH, false);
+        AsyncNotification first = new AsyncNotification(msg);
+        AsyncNotification second = new AsyncNotification(msg);
+
+        connection.sendMessages(Arrays.asList(first, second));
+        Assert.assertFalse(first.isDone());
+        Assert.assertFalse(second.isDone());
+
+        connection.close();
+        Assert.assertTrue(first.isDone());
+        Assert.assertTrue(second.isDone());
+        never.countDown();
+    }
+
+    @Test
+    public void presumedDeliveredWithoutErrorDetection() {
+        ApnsConnectionImpl connection = coalescingConnection(new CountingOutputStream(), 1, 1, TimeUnit.HOURS);
+        AsyncNotification pushed = new AsyncNotification(msg);
+
+        connection.sendMessage(pushed);
+        Assert.assertTrue(pushed.isDone());
+        connection.close();
+    }
+
+    @Test
+    public void bulkSendDoesNotAllocatePerMessage() {
+        bulkSendDoesNotAllocatePerMessage(false);
+    }
+
+    /**
+     * Caching the notifications for resends doesn't allocate either
+     */
+    @Test
+    public void bulkSendWithErrorDetectionDoesNotAllocatePerMessage() {
+        bulkSendDoesNotAllocatePerMessage(true);
+    }
+
+    private void bulkSendDoesNotAllocatePerMessage(boolean errorDetection) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        // debug logging builds an event per notification
+        ch.qos.logback.classic.Logger logger = (ch.qos.logback.classic.Logger)
+                LoggerFactory.getLogger(ApnsConnectionImpl.class);
+        Level level = logger.getLevel();
+        logger.setLevel(Level.INFO);
+
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(new DiscardingSocketFactory(),
+                "localhost", 80, null, new ReconnectPolicies.Never(), ApnsDelegate.EMPTY,
+                errorDetection, ApnsConnection.DEFAULT_CACHE_LENGTH, false);
+        List<ApnsNotification> batch = new ArrayList<ApnsNotification>();
+        for (int i = 0; i < 1000; i++) {
+            batch.add(new EnhancedApnsNotification(i, 0, msg.getDeviceToken(), msg.getPayload()));
+        }
+        for (int i = 0; i < 200; i++) {
+            connection.sendMessages(batch);
+        }
+
+        long thread = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 100; i++) {
+            connection.sendMessages(batch);
+        }
+        long allocated = allocations.getThreadAllocatedBytes(thread) - before;
+        connection.close();
+        logger.setLevel(level);
+
+        // an iterator or so per batch, but nothing per notification
+        Assert.assertTrue("allocated " + allocated + " bytes for 100000 notifications",
+                allocated < 100 * 1000);
+    }
+
+    /**
+     * Blocks until released, then returns an error response for the
+     * given identifier (if any) and the end of the stream.
+     */
+    static class ErrorResponseStream extends InputStream {
+        private final CountDownLatch release;
+        private final int identifier;
+        private boolean sent;
+
+        ErrorResponseStream(CountDownLatch release, int identifier) {
+            this.release = release;
+            this.identifier = identifier;
+        }
+
+        @Override
+        public int read() throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e.toString());
+            }
+            if (sent || identifier == 0) {
+                return -1;
+            }
+            sent = true;
+            byte[] response = {8, 8, 0, 0, 0, (byte) identifier};
+            System.arraycopy(response, 0, b, off, response.length);
+            return response.length;
+        }
+    }
+
+    private ApnsConnectionImpl coalescingConnection(CountingOutputStream out,
+            int bufferSize, long linger, TimeUnit unit) {
+        SocketFactory factory = mockSocketFactory(out, null);
+        return new ApnsConnectionImpl(factory, "localhost", 80, null,
+                new ReconnectPolicies.Never(), ApnsDelegate.EMPTY, false,
+                ApnsConnection.DEFAULT_CACHE_LENGTH, false,
+                new FlushPolicy(bufferSize, linger, unit));
+    }
+
+    // every write fails, but the notifications stay buffered until flushed
+    private ApnsConnectionImpl failingCoalescingConnection(final List<ApnsNotification> sent,
+            final List<ApnsNotification> failed) {
+        Socket socket = mockSocket(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Connection reset");
+            }
+        }, null);
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(mockSequentialSocketFactory(socket),
+                "localhost", 80, null, new ReconnectPolicies.Never(), new ApnsDelegateAdapter() {
+                    public void messageSent(ApnsNotification message, boolean resent) {
+                        sent.add(message);
+                    }
+
+                    public void messageSendFailed(ApnsNotification message, Throwable e) {
+                        failed.add(message);
+                    }
+                }, false, ApnsConnection.DEFAULT_CACHE_LENGTH, false,
+                new FlushPolicy(1024, 1, TimeUnit.HOURS));
+        connection.DELAY_IN_MS = 0;
+        return connection;
+    }
+
+    private static byte[] concat(byte[] bytes, int times) {
+        byte[] result = new byte[bytes.length * times];
+        for (int i = 0; i < times; i++) {
+            System.arraycopy(bytes, 0, result, i * bytes.length, bytes.length);
+        }
+        return result;
+    }
+
+    static class DiscardingSocketFactory extends SocketFactory {
+        @Override
+        public Socket createSocket(String host, int port) {
+            return new Socket() {
+                private final OutputStream out = new OutputStream() {
+                    @Override
+                    public void write(int b) {
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                    }
+                };
+
+                // no error response: blocks the monitor until closed
+                private final CountDownLatch closed = new CountDownLatch(1);
+                private final InputStream in = new InputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        try {
+                            closed.await();
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                        return -1;
+                    }
+                };
+
+                @Override
+                public OutputStream getOutputStream() {
+                    return out;
+                }
+
+                @Override
+                public InputStream getInputStream() {
+                    return in;
+                }
+
+                @Override
+                public synchronized void close() throws IOException {
+                    closed.countDown();
+                    super.close();
+                }
+            };
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) {
+            return createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) {
+            return createSocket(host.getHostName(), port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) {
+            return createSocket(address.getHostName(), port);
+        }
+    }
+
+    static class CountingOutputStream extends ByteArrayOutputStream {
+        int writes;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes++;
+            super.write(b, off, len);
+        }
+    }
 }
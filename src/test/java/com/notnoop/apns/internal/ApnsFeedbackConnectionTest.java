@@ -1,12 +1,25 @@
 package com.notnoop.apns.internal;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.SocketFactory;
 
 import org.junit.Test;
 
+import com.notnoop.apns.FeedbackListener;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.verify;
+
 import static com.notnoop.apns.internal.ApnsFeedbackParsingUtils.*;
 import static com.notnoop.apns.internal.MockingUtils.mockClosedThenOpenSocket;
 
@@ -36,6 +49,13 @@ public class ApnsFeedbackConnectionTest {
         checkParsedThree(Utilities.parseFeedbackStream(threeStream));
     }
 
+    @Test
+    public void streamedThreeInOrder() {
+        RecordingListener listener = new RecordingListener();
+        Utilities.parseFeedbackStream(threeStream, listener);
+        listener.checkThree();
+    }
+
     /** With Connection **/
     @Test
     public void connectionParsedOne() {
@@ -51,6 +71,15 @@ public class ApnsFeedbackConnectionTest {
         checkParsedThree(connection.getInactiveDevices());
     }
 
+    @Test
+    public void connectionStreamedThree() {
+        SocketFactory sf = MockingUtils.mockSocketFactory(null, threeStream);
+        ApnsFeedbackConnection connection = new ApnsFeedbackConnection(sf, "localhost", 80);
+        RecordingListener listener = new RecordingListener();
+        connection.getInactiveDevices(listener);
+        listener.checkThree();
+    }
+
     /** Check error recover **/
     @Test
     public void feedbackWithclosedSocket() {
@@ -79,4 +108,76 @@ public class ApnsFeedbackConnectionTest {
         checkParsedSimple(connection.getInactiveDevices());
     }
 
+    @Test
+    public void feedbackSetsReadTimeout() throws Exception {
+        SocketFactory sf = MockingUtils.mockSocketFactory(null, simpleStream);
+        ApnsFeedbackConnection connection = new ApnsFeedbackConnection(sf, "localhost", 80, null,
+                RetryBackoff.DEFAULT, 1500);
+        checkParsedSimple(connection.getInactiveDevices());
+        verify(sf.createSocket("localhost", 80)).setSoTimeout(1500);
+    }
+
+    /**
+     * Devices read before the connection stalls aren't reported again,
+     * so they are returned even though every attempt fails
+     */
+    @Test
+    public void feedbackKeepsDevicesReadBeforeFailure() {
+        SocketFactory sf = MockingUtils.mockSocketFactory(null, stallingAfter(simple));
+        ApnsFeedbackConnection connection = new ApnsFeedbackConnection(sf, "localhost", 80);
+        connection.DELAY_IN_MS = 0;
+        checkParsedSimple(connection.getInactiveDevices());
+    }
+
+    @Test(timeout = 2000)
+    public void feedbackAsyncKeepsDevicesReadBeforeFailure() throws Exception {
+        SocketFactory sf = MockingUtils.mockSocketFactory(null, stallingAfter(simple));
+        ApnsFeedbackConnection connection = new ApnsFeedbackConnection(sf, "localhost", 80, null,
+                new RetryBackoff(3, 1, 10, TimeUnit.MILLISECONDS));
+        checkParsedSimple(connection.getInactiveDevicesAsync().get());
+    }
+
+    @Test(timeout = 2000)
+    public void feedbackAsyncRetries() throws Exception {
+        SocketFactory sf = mockClosedThenOpenSocket(null, simpleStream, true, 2);
+        ApnsFeedbackConnection connection = new ApnsFeedbackConnection(sf, "localhost", 80, null,
+                new RetryBackoff(3, 1, 10, TimeUnit.MILLISECONDS));
+        checkParsedSimple(connection.getInactiveDevicesAsync().get());
+    }
+
+    @Test(timeout = 2000, expected = ExecutionException.class)
+    public void feedbackAsyncGivesUp() throws Exception {
+        SocketFactory sf = mockClosedThenOpenSocket(null, simpleStream, true, 3);
+        ApnsFeedbackConnection connection = new ApnsFeedbackConnection(sf, "localhost", 80, null,
+                new RetryBackoff(3, 1, 10, TimeUnit.MILLISECONDS));
+        connection.getInactiveDevicesAsync().get();
+    }
+
+    // returns the bytes, then times out on every read
+    private static InputStream stallingAfter(byte[] bytes) {
+        return new SequenceInputStream(new ByteArrayInputStream(bytes), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new SocketTimeoutException("Read timed out");
+            }
+        });
+    }
+
+    static class RecordingListener implements FeedbackListener {
+        final List<byte[]> devices = new ArrayList<byte[]>();
+        final List<Integer> timestamps = new ArrayList<Integer>();
+
+        public void inactiveDevice(byte[] deviceToken, int timestamp) {
+            devices.add(deviceToken);
+            timestamps.add(timestamp);
+        }
+
+        void checkThree() {
+            assertEquals(3, devices.size());
+            assertArrayEquals(firstDevice, devices.get(0));
+            assertArrayEquals(secondDevice, devices.get(1));
+            assertArrayEquals(thirdDevice, devices.get(2));
+            assertEquals(Arrays.asList(firstDate, secondDate, thirdDate), timestamps);
+        }
+    }
 }
@@ -0,0 +1,276 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import static org.mockito.Mockito.*;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.PoolBalancing;
+import com.notnoop.apns.PoolSizeListener;
+import com.notnoop.exceptions.NetworkIOException;
+
+public class ApnsPooledConnectionTest {
+
+    EnhancedApnsNotification notification = new EnhancedApnsNotification(1,
+            EnhancedApnsNotification.MAXIMUM_EXPIRY, "2342", "{}");
+
+    @Test
+    public void roundRobinSpreadsEvenly() throws InterruptedException {
+        StubConnection prototype = new StubConnection();
+        ApnsPooledConnection pool = new ApnsPooledConnection(prototype, 3,
+                Executors.newFixedThreadPool(2), PoolBalancing.ROUND_ROBIN);
+
+        for (int i = 0; i < 9; i++) {
+            pool.sendMessage(notification);
+        }
+        assertTrue(prototype.sent.tryAcquire(9, 5, TimeUnit.SECONDS));
+
+        assertEquals(3, prototype.copies.size());
+        for (StubConnection copy : prototype.copies) {
+            assertEquals(3, copy.count);
+        }
+        pool.close();
+    }
+
+    @Test
+    public void leastOutstandingAvoidsBusyConnection() throws InterruptedException {
+        StubConnection prototype = new StubConnection();
+        ApnsPooledConnection pool = new ApnsPooledConnection(prototype, 2,
+                Executors.newFixedThreadPool(4), PoolBalancing.LEAST_OUTSTANDING);
+        StubConnection busy = prototype.copies.get(0);
+        StubConnection idle = prototype.copies.get(1);
+        busy.gate = new CountDownLatch(1);
+
+        // lands on the first member, and blocks it
+        pool.sendMessage(notification);
+        busy.entered.await();
+        for (int i = 0; i < 5; i++) {
+            pool.sendMessage(notification);
+            assertTrue(prototype.sent.tryAcquire(5, TimeUnit.SECONDS));
+            // the write is counted as done just after the stub returns
+            while (pool.getOutstanding()[1] != 0) {
+                Thread.yield();
+            }
+        }
+        assertEquals(5, idle.count);
+        assertArrayEquals(new int[] { 1, 0 }, pool.getOutstanding());
+
+        busy.gate.countDown();
+        assertTrue(prototype.sent.tryAcquire(5, TimeUnit.SECONDS));
+        pool.close();
+    }
+
+    @Test
+    public void replacesFailedConnection() throws InterruptedException {
+        StubConnection prototype = new StubConnection();
+        ApnsPooledConnection pool = new ApnsPooledConnection(prototype, 2,
+                Executors.newFixedThreadPool(2), PoolBalancing.ROUND_ROBIN);
+        StubConnection broken = prototype.copies.get(0);
+        broken.broken = true;
+
+        pool.sendMessage(notification);
+        assertTrue(broken.closed.await(5, TimeUnit.SECONDS));
+        assertEquals(1, pool.getReplacements());
+        assertEquals(3, prototype.copies.size());
+
+        for (int i = 0; i < 4; i++) {
+            pool.sendMessage(notification);
+        }
+        assertTrue(prototype.sent.tryAcquire(4, 5, TimeUnit.SECONDS));
+        assertEquals(0, broken.count);
+        assertEquals(2, prototype.copies.get(2).count);
+        pool.close();
+    }
+
+    @Test
+    public void bulkSendIsSplitAcrossMembers() throws InterruptedException {
+        StubConnection prototype = new StubConnection();
+        ApnsPooledConnection pool = new ApnsPooledConnection(prototype, 3,
+                Executors.newFixedThreadPool(3), PoolBalancing.ROUND_ROBIN);
+
+        pool.sendMessages(Collections.nCopies(9, notification));
+        assertTrue(prototype.sent.tryAcquire(9, 5, TimeUnit.SECONDS));
+
+        for (StubConnection copy : prototype.copies) {
+            assertEquals(1, copy.batches);
+            assertEquals(3, copy.count);
+        }
+        pool.close();
+    }
+
+    @Test
+    public void cacheLengthOfAllMembers() {
+        StubConnection prototype = new StubConnection();
+        ApnsPooledConnection pool = new ApnsPooledConnection(prototype, 2);
+        prototype.copies.get(1).cacheLength = 300;
+
+        assertEquals(300, pool.getCacheLength());
+        pool.setCacheLength(500);
+        assertEquals(500, prototype.copies.get(0).cacheLength);
+        assertEquals(500, pool.getCacheLength());
+        pool.close();
+    }
+
+    @Test(timeout = 10000)
+    public void elasticPoolGrowsAndShrinks() throws InterruptedException {
+        StubConnection prototype = new StubConnection();
+        PoolSizeListener listener = mock(PoolSizeListener.class);
+        ApnsPooledConnection pool = new ApnsPooledConnection(prototype, 3,
+                Executors.newFixedThreadPool(3), PoolBalancing.LEAST_OUTSTANDING,
+                new PoolSizing(1, 3, 2, 1, 1, TimeUnit.HOURS), listener);
+        assertEquals(1, pool.size());
+
+        StubConnection first = prototype.copies.get(0);
+        first.gate = new CountDownLatch(1);
+        pool.sendMessage(notification);
+        pool.sendMessage(notification);
+        first.entered.await();
+        pool.sample(0);
+        assertEquals(2, pool.size());
+        verify(listener).poolGrown(eq(2), eq(2), anyLong());
+
+        first.gate.countDown();
+        assertTrue(prototype.sent.tryAcquire(2, 5, TimeUnit.SECONDS));
+        while (pool.getOutstanding()[0] != 0) {
+            Thread.yield();
+        }
+        // the first sample still sees the backlog of the previous one
+        pool.sample(1);
+        pool.sample(2);
+        assertEquals(2, pool.size());
+        // a slow close doesn't hold up the sampling
+        StubConnection second = prototype.copies.get(1);
+        second.closeGate = new CountDownLatch(1);
+        pool.sample(TimeUnit.HOURS.toNanos(1) + 2);
+        assertEquals(1, pool.size());
+        verify(listener).poolShrunk(1, TimeUnit.HOURS.toNanos(1));
+        assertTrue(second.closed.await(5, TimeUnit.SECONDS));
+        second.closeGate.countDown();
+        pool.close();
+    }
+
+    @Test
+    public void tokenHashKeepsOrderPerDevice() throws InterruptedException {
+        final int devices = 16;
+        final int perDevice = 200;
+        StubConnection prototype = new StubConnection();
+        ApnsPooledConnection pool = new ApnsPooledConnection(prototype, 4,
+                Executors.newFixedThreadPool(8), PoolBalancing.TOKEN_HASH);
+
+        for (int i = 0; i < perDevice; i++) {
+            for (int d = 0; d < devices; d++) {
+                pool.sendMessage(new EnhancedApnsNotification(i,
+                        EnhancedApnsNotification.MAXIMUM_EXPIRY, new byte[] { (byte) d }, new byte[0]));
+            }
+        }
+        assertTrue(prototype.sent.tryAcquire(devices * perDevice, 5, TimeUnit.SECONDS));
+
+        int used = 0;
+        int[] last = new int[devices];
+        Arrays.fill(last, -1);
+        for (StubConnection copy : prototype.copies) {
+            if (copy.count > 0) {
+                used++;
+            }
+            for (ApnsNotification m : copy.received) {
+                int device = m.getDeviceToken()[0];
+                assertEquals(last[device] + 1, m.getIdentifier());
+                last[device] = m.getIdentifier();
+            }
+        }
+        assertTrue("devices spread over " + used + " connections", used > 1);
+        pool.close();
+    }
+
+    static class StubConnection implements ApnsConnection {
+        final List<StubConnection> copies;
+        final Semaphore sent;
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        volatile CountDownLatch gate;
+        volatile CountDownLatch closeGate;
+        volatile boolean broken;
+        volatile int count;
+        volatile int cacheLength = 100;
+        volatile int batches;
+        final List<ApnsNotification> received = new ArrayList<ApnsNotification>();
+
+        StubConnection() {
+            this(Collections.synchronizedList(new ArrayList<StubConnection>()), new Semaphore(0));
+        }
+
+        private StubConnection(List<StubConnection> copies, Semaphore sent) {
+            this.copies = copies;
+            this.sent = sent;
+        }
+
+        public synchronized void sendMessage(ApnsNotification m) throws NetworkIOException {
+            entered.countDown();
+            if (broken) {
+                throw new NetworkIOException("broken");
+            }
+            if (gate != null) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            count++;
+            received.add(m);
+            sent.release();
+        }
+
+        public synchronized void sendMessages(Iterable<? extends ApnsNotification> messages) {
+            batches++;
+            for (ApnsNotification m : messages) {
+                sendMessage(m);
+            }
+        }
+
+        public void flush() {
+        }
+
+        public void testConnection() {
+        }
+
+        public void warmUp() {
+        }
+
+        public ApnsConnection copy() {
+            StubConnection copy = new StubConnection(copies, sent);
+            copies.add(copy);
+            return copy;
+        }
+
+        public void setCacheLength(int cacheLength) {
+            this.cacheLength = cacheLength;
+        }
+
+        public int getCacheLength() {
+            return cacheLength;
+        }
+
+        public void close() {
+            closed.countDown();
+            if (closeGate != null) {
+                try {
+                    closeGate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
@@ -1,17 +1,27 @@
 package com.notnoop.apns.internal;
 
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyListOf;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Test;
 
 import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.internal.ApnsPooledConnectionTest.StubConnection;
 
 public class BatchApnsServiceTest {
 
@@ -110,4 +120,84 @@ public class BatchApnsServiceTest {
 		verify(prototype, times(1)).close();
 	}
 
+	@Test
+	public void persistent_sendsFullBatchAcrossConnections() throws IOException {
+		ApnsConnection first = mock(ApnsConnection.class);
+		ApnsConnection second = mock(ApnsConnection.class);
+		when(prototype.copy()).thenReturn(first, second);
+		BatchApnsService batched = new BatchApnsService(prototype, null, 4, TimeUnit.HOURS.toMillis(1), 2, Executors.defaultThreadFactory());
+
+		for (int i = 0; i < 3; i++) {
+			batched.push("1234", "{}");
+		}
+		verify(first, times(0)).sendMessage(any(ApnsNotification.class));
+		batched.push("1234", "{}");
+
+		verify(first, timeout(1000)).sendMessages(anyListOf(ApnsNotification.class));
+		verify(second, timeout(1000)).sendMessages(anyListOf(ApnsNotification.class));
+		verify(first, timeout(1000)).flush();
+		verify(second, timeout(1000)).flush();
+		verify(first, never()).close();
+		batched.stop();
+	}
+
+	@Test
+	public void persistent_sendsAfterLingerOnSameConnection() throws IOException {
+		ApnsConnection connection = mock(ApnsConnection.class);
+		when(prototype.copy()).thenReturn(connection);
+		BatchApnsService batched = new BatchApnsService(prototype, null, 100, 200, 1, Executors.defaultThreadFactory());
+
+		ApnsNotification message1 = batched.push("1234", "{}");
+		verify(connection, times(0)).sendMessages(Collections.singletonList(message1));
+		verify(connection, timeout(1000)).sendMessages(Collections.singletonList(message1));
+
+		ApnsNotification message2 = batched.push("4321", "{}");
+		verify(connection, timeout(1000)).sendMessages(Collections.singletonList(message2));
+		verify(prototype, times(1)).copy();
+		verify(connection, never()).close();
+
+		batched.stop();
+		verify(connection).close();
+	}
+
+	@Test
+	public void persistent_warmsUpEveryConnection() {
+		ApnsConnection first = mock(ApnsConnection.class);
+		ApnsConnection second = mock(ApnsConnection.class);
+		when(prototype.copy()).thenReturn(first, second);
+		BatchApnsService batched = new BatchApnsService(prototype, null, 4, TimeUnit.HOURS.toMillis(1), 2, Executors.defaultThreadFactory(), true);
+
+		batched.start();
+		verify(first).warmUp();
+		verify(second).warmUp();
+		verify(prototype, never()).warmUp();
+		batched.stop();
+	}
+
+	@Test
+	public void persistent_concurrentProducers() throws InterruptedException {
+		StubConnection stub = new StubConnection();
+		final BatchApnsService batched = new BatchApnsService(stub, null, 16, 50, 3, Executors.defaultThreadFactory());
+
+		List<Thread> producers = new ArrayList<Thread>();
+		for (int p = 0; p < 4; p++) {
+			Thread t = new Thread() {
+				public void run() {
+					for (int i = 0; i < 250; i++) {
+						batched.push("1234", "{}");
+					}
+				}
+			};
+			producers.add(t);
+			t.start();
+		}
+		for (Thread t : producers) {
+			t.join();
+		}
+		batched.flush();
+
+		assertEquals(1000, stub.sent.availablePermits());
+		assertEquals(3, stub.copies.size());
+		batched.stop();
+	}
 }
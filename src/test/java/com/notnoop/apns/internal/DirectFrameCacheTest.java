@@ -0,0 +1,162 @@
+package com.notnoop.apns.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.SimpleApnsNotification;
+
+import static org.junit.Assert.*;
+
+public class DirectFrameCacheTest {
+
+    // 1 + 4 + 4 + 2 + 32 + 2 + 10 bytes
+    private static final int FRAME_LENGTH = 55;
+
+    private static ApnsNotification notification(int id) {
+        byte[] token = new byte[32];
+        Arrays.fill(token, (byte) id);
+        return new EnhancedApnsNotification(id, id * 10, token, "0123456789".getBytes());
+    }
+
+    private static byte[] frames(ApnsNotification... notifications) {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        for (ApnsNotification n : notifications) {
+            frames.write(n.marshall(), 0, n.marshall().length);
+        }
+        return frames.toByteArray();
+    }
+
+    private static byte[] frames(List<ApnsNotification> notifications) {
+        return frames(notifications.toArray(new ApnsNotification[notifications.size()]));
+    }
+
+    @Test
+    public void replaysFramesInBatches() {
+        DirectFrameCache cache = new DirectFrameCache(1024, 100);
+        ApnsNotification enhanced = notification(3);
+        ApnsNotification simple = new SimpleApnsNotification(new byte[] {1, 2}, new byte[] {3});
+        cache.add(notification(2));
+        cache.add(enhanced);
+        cache.add(simple);
+        cache.add(notification(4));
+
+        assertTrue(cache.contains(3));
+        assertNull(cache.get(3));
+        List<ApnsNotification> resend = new ArrayList<ApnsNotification>();
+        assertEquals(2, cache.drainAfter(3, resend));
+        assertEquals(1, resend.size());
+        assertArrayEquals(frames(simple, notification(4)), resend.get(0).marshall());
+        assertArrayEquals(simple.getDeviceToken(), resend.get(0).getDeviceToken());
+        assertTrue(cache.isEmpty());
+
+        // a resent batch is cached frame by frame again
+        cache.add(resend.get(0));
+        assertEquals(2, cache.size());
+        assertTrue(cache.contains(4));
+        resend.clear();
+        assertEquals(1, cache.drainAfter(-1, resend));
+        assertArrayEquals(notification(4).marshall(), resend.get(0).marshall());
+    }
+
+    @Test
+    public void keepsOriginalsWhenAsked() {
+        DirectFrameCache cache = new DirectFrameCache(1024, 100, true);
+        ApnsNotification first = notification(1);
+        ApnsNotification second = notification(2);
+        cache.add(first);
+        cache.add(second);
+
+        assertSame(first, cache.get(1));
+        List<ApnsNotification> resend = new ArrayList<ApnsNotification>();
+        assertEquals(1, cache.drainAfter(1, resend));
+        assertSame(second, resend.get(0));
+    }
+
+    @Test
+    public void capsBatchSize() {
+        DirectFrameCache cache = new DirectFrameCache(64 * 1024, 1000);
+        for (int i = 1; i <= 600; i++) {
+            cache.add(notification(i));
+        }
+        List<ApnsNotification> resend = new ArrayList<ApnsNotification>();
+        assertEquals(600, cache.drainAfter(0, resend));
+        assertEquals(3, resend.size());
+        for (ApnsNotification batch : resend) {
+            assertTrue(batch.marshall().length <= 16 * 1024);
+        }
+        assertEquals(600 * FRAME_LENGTH, frames(resend).length);
+    }
+
+    @Test
+    public void evictsOldestWhenBytesRunOut() {
+        DirectFrameCache cache = new DirectFrameCache(FRAME_LENGTH * 3, 100);
+        for (int i = 1; i <= 3; i++) {
+            assertEquals(0, cache.add(notification(i)));
+        }
+        assertEquals(1, cache.add(notification(4)));
+        assertFalse(cache.contains(1));
+        assertTrue(cache.contains(2));
+        assertTrue(cache.contains(4));
+    }
+
+    @Test
+    public void wrapsAroundWithoutSplittingFrames() {
+        // room for two and a half frames
+        DirectFrameCache cache = new DirectFrameCache(FRAME_LENGTH * 5 / 2, 100);
+        for (int i = 1; i <= 50; i++) {
+            cache.add(notification(i));
+            assertTrue(cache.contains(i));
+        }
+        assertEquals(2, cache.size());
+        List<ApnsNotification> resend = new ArrayList<ApnsNotification>();
+        cache.drainAfter(0, resend);
+        assertArrayEquals(frames(notification(49), notification(50)), frames(resend));
+    }
+
+    @Test
+    public void honoursCacheLength() {
+        DirectFrameCache cache = new DirectFrameCache(64 * 1024, 2);
+        for (int i = 1; i <= 40; i++) {
+            cache.add(notification(i));
+        }
+        assertEquals(2, cache.size());
+        cache.setCapacity(40);
+        for (int i = 41; i <= 78; i++) {
+            assertEquals(0, cache.add(notification(i)));
+        }
+        assertEquals(1, cache.add(notification(79)));
+        List<ApnsNotification> resend = new ArrayList<ApnsNotification>();
+        assertEquals(38, cache.drainAfter(41, resend));
+        assertEquals(42, resend.get(0).getIdentifier());
+        assertEquals(38 * FRAME_LENGTH, frames(resend).length);
+    }
+
+    @Test
+    public void oversizedFrameClearsCache() {
+        DirectFrameCache cache = new DirectFrameCache(FRAME_LENGTH, 100);
+        cache.add(notification(1));
+        ApnsNotification large = new EnhancedApnsNotification(2, 0, new byte[32], new byte[100]);
+        assertEquals(2, cache.add(large));
+        assertTrue(cache.isEmpty());
+    }
+
+    @Test
+    public void keepsAsyncNotifications() throws Exception {
+        DirectFrameCache cache = new DirectFrameCache(FRAME_LENGTH * 2, 100);
+        ApnsNotification first = notification(1);
+        AsyncNotification async = new AsyncNotification(first);
+        cache.add(async);
+        assertSame(async, cache.get(1));
+
+        cache.add(notification(2));
+        cache.add(notification(3));
+        assertTrue(async.isDone());
+        assertSame(first, async.get());
+    }
+}
@@ -0,0 +1,77 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+import org.junit.experimental.theories.*;
+import org.junit.runner.RunWith;
+
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.PayloadBuilder;
+
+import static com.notnoop.apns.PayloadBuilder.*;
+import static com.notnoop.apns.internal.Utilities.*;
+
+@RunWith(Theories.class)
+public class EnhancedApnsNotificationTest {
+
+    // Device Tokens
+    @DataPoints public static String[] deviceTokens =
+    {
+        "298893742908AB98C",
+        "98234098203BACCCC93284092"
+    };
+
+    // Messages
+    @DataPoints public static PayloadBuilder[] payloaders =
+    {
+        newPayload().alertBody("test").sound("default"),
+        newPayload().sound("chimes").actionKey("Cancel"),
+        newPayload().customField("notice", "this")
+    };
+
+    @Theory
+    public void framedParts(String deviceToken, PayloadBuilder payload) {
+        String payloadString = payload.build();
+        EnhancedApnsNotification msg =
+            new EnhancedApnsNotification(7, 300, deviceToken, payloadString);
+        byte[] bytes = msg.marshall();
+
+        byte[] dt = decodeHex(deviceToken);
+        byte[] pl = toUTF8Bytes(payloadString);
+        assertEquals(1, bytes[0]);
+        assertEquals(7, parseBytes(bytes[1], bytes[2], bytes[3], bytes[4]));
+        assertEquals(300, parseBytes(bytes[5], bytes[6], bytes[7], bytes[8]));
+        assertArrayEquals(dt, copyOfRange(bytes, 11, 11 + dt.length));
+        assertArrayEquals(pl, copyOfRange(bytes, bytes.length - pl.length, bytes.length));
+        assertEquals(1 + 4 + 4 + 2 + dt.length + 2 + pl.length, msg.length());
+    }
+
+    @Theory
+    public void viewsMatchCopies(String deviceToken, PayloadBuilder payload) {
+        EnhancedApnsNotification msg =
+            new EnhancedApnsNotification(1, 0, deviceToken, payload.build());
+
+        assertEquals(ByteBuffer.wrap(msg.getDeviceToken()), msg.getDeviceTokenView());
+        assertEquals(ByteBuffer.wrap(msg.getPayload()), msg.getPayloadView());
+        assertArrayEquals(decodeHex(deviceToken), msg.getDeviceToken());
+    }
+
+    @Theory
+    public void frameIsNotCopied(String deviceToken, PayloadBuilder payload) {
+        EnhancedApnsNotification msg =
+            new EnhancedApnsNotification(1, 0, deviceToken, payload.build());
+
+        assertSame(msg.marshall(), msg.marshall());
+        msg.getDeviceToken()[0]++;
+        assertArrayEquals(decodeHex(deviceToken), msg.getDeviceToken());
+        try {
+            msg.getPayloadView().put(0, (byte) 0);
+            fail("the payload view must be read-only");
+        } catch (ReadOnlyBufferException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.notnoop.apns.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.notnoop.apns.FeedbackListener;
+import com.notnoop.apns.internal.ApnsFeedbackConnectionTest.RecordingListener;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+import static com.notnoop.apns.internal.ApnsFeedbackParsingUtils.*;
+
+public class FeedbackPollerTest {
+
+    /**
+     * Returns a feedback connection reporting the given devices and
+     * timestamps on every query.
+     */
+    private static ApnsFeedbackConnection reporting(final Object... devicesAndTimestamps) {
+        ApnsFeedbackConnection feedback = mock(ApnsFeedbackConnection.class);
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) {
+                FeedbackListener listener = (FeedbackListener) invocation.getArguments()[0];
+                for (int i = 0; i < devicesAndTimestamps.length; i += 2) {
+                    listener.inactiveDevice((byte[]) devicesAndTimestamps[i],
+                            (Integer) devicesAndTimestamps[i + 1]);
+                }
+                return null;
+            }
+        }).when(feedback).getInactiveDevices(any(FeedbackListener.class));
+        return feedback;
+    }
+
+    private static FeedbackPoller poller(ApnsFeedbackConnection feedback, FeedbackListener listener) {
+        return new FeedbackPoller(feedback, listener, 1, 0, TimeUnit.HOURS);
+    }
+
+    @Test
+    public void passesDevicesOnOnce() {
+        RecordingListener listener = new RecordingListener();
+        FeedbackPoller poller = poller(reporting(firstDevice, firstDate,
+                secondDevice, secondDate, thirdDevice, thirdDate), listener);
+
+        assertEquals(3, poller.poll());
+        assertEquals(0, poller.poll());
+        listener.checkThree();
+    }
+
+    @Test
+    public void passesNewerTimestampsOn() {
+        RecordingListener listener = new RecordingListener();
+        FeedbackPoller poller = poller(reporting(firstDevice, firstDate, firstDevice, firstDate - 1,
+                firstDevice, firstDate + 1, firstDevice, firstDate + 1), listener);
+
+        assertEquals(2, poller.poll());
+        assertEquals(1, poller.watermarkCount());
+        assertEquals(firstDate + 1, (int) listener.timestamps.get(1));
+    }
+
+    @Test
+    public void keepsTokensOfOtherLengthsApart() {
+        RecordingListener listener = new RecordingListener();
+        byte[] shortDevice = {1, 2, 3};
+        FeedbackPoller poller = poller(reporting(shortDevice, firstDate,
+                new byte[] {1, 2, 3}, firstDate, new byte[] {1, 2}, firstDate), listener);
+
+        assertEquals(2, poller.poll());
+    }
+
+    @Test
+    public void dropsOldWatermarks() {
+        RecordingListener listener = new RecordingListener();
+        int later = firstDate + FeedbackPoller.RETENTION_SECONDS + 1;
+        FeedbackPoller poller = poller(reporting(firstDevice, firstDate, secondDevice, later), listener);
+
+        assertEquals(2, poller.poll());
+        assertEquals(1, poller.watermarkCount());
+    }
+
+    @Test
+    public void failedPollKeepsDevicesRead() {
+        RecordingListener listener = new RecordingListener();
+        final ApnsFeedbackConnection feedback = mock(ApnsFeedbackConnection.class);
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) {
+                ((FeedbackListener) invocation.getArguments()[0]).inactiveDevice(firstDevice, firstDate);
+                throw new RuntimeException("simulated failure");
+            }
+        }).when(feedback).getInactiveDevices(any(FeedbackListener.class));
+        FeedbackPoller poller = poller(feedback, listener);
+
+        assertEquals(1, poller.poll());
+        assertEquals(0, poller.poll());
+        assertEquals(1, listener.devices.size());
+    }
+
+    @Test
+    public void failingListenerDoesNotFailPoll() {
+        final List<byte[]> devices = new ArrayList<byte[]>();
+        FeedbackPoller poller = poller(reporting(firstDevice, firstDate, secondDevice, secondDate),
+                new FeedbackListener() {
+            public void inactiveDevice(byte[] deviceToken, int timestamp) {
+                if (devices.isEmpty()) {
+                    devices.add(deviceToken);
+                    throw new RuntimeException("simulated failure");
+                }
+                devices.add(deviceToken);
+            }
+        });
+
+        assertEquals(1, poller.poll());
+        assertEquals(2, devices.size());
+    }
+
+    @Test
+    public void jitterStaysWithinBounds() {
+        FeedbackPoller poller = new FeedbackPoller(mock(ApnsFeedbackConnection.class),
+                new RecordingListener(), 10, 2, TimeUnit.SECONDS);
+        for (int i = 0; i < 1000; i++) {
+            long delay = poller.nextDelayInNanos();
+            assertTrue(delay >= TimeUnit.SECONDS.toNanos(8));
+            assertTrue(delay <= TimeUnit.SECONDS.toNanos(12));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsJitterOfWholeInterval() {
+        new FeedbackPoller(mock(ApnsFeedbackConnection.class), new RecordingListener(),
+                10, 10, TimeUnit.SECONDS);
+    }
+
+    @Test(timeout = 2000)
+    public void pollsInTheBackgroundUntilStopped() throws Exception {
+        final CountDownLatch polled = new CountDownLatch(3);
+        FeedbackPoller poller = new FeedbackPoller(reporting(firstDevice, firstDate),
+                new FeedbackListener() {
+            public void inactiveDevice(byte[] deviceToken, int timestamp) {
+            }
+        }, 10, 5, TimeUnit.MILLISECONDS) {
+            @Override
+            int poll() {
+                polled.countDown();
+                return super.poll();
+            }
+        };
+        poller.start();
+        polled.await();
+        poller.stop();
+        assertEquals(1, poller.watermarkCount());
+    }
+}
@@ -0,0 +1,48 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.*;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.SimpleApnsNotification;
+
+public class FrameEncoderTest {
+    byte[] token = Utilities.decodeHex("a87d8878d878a79");
+    byte[] payload = Utilities.toUTF8Bytes("{\"aps\":{}}");
+
+    @Test
+    public void encodesIntoCallersBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256);
+        buffer.put((byte) 42);
+        FrameEncoder.encodeEnhanced(buffer, 7, 300, token, payload);
+        FrameEncoder.encode(buffer, token, payload);
+
+        byte[] enhanced = new EnhancedApnsNotification(7, 300, token, payload).marshall();
+        byte[] simple = new SimpleApnsNotification(token, payload).marshall();
+        assertEquals(1 + enhanced.length + simple.length, buffer.position());
+
+        buffer.flip();
+        assertEquals(42, buffer.get());
+        byte[] written = new byte[enhanced.length];
+        buffer.get(written);
+        assertArrayEquals(enhanced, written);
+        written = new byte[simple.length];
+        buffer.get(written);
+        assertArrayEquals(simple, written);
+    }
+
+    @Test
+    public void overflowLeavesBufferUnchanged() {
+        ByteBuffer buffer = ByteBuffer.allocate(FrameEncoder.enhancedLength(token, payload) - 1);
+        try {
+            FrameEncoder.encodeEnhanced(buffer, 7, 300, token, payload);
+            fail("the frame doesn't fit");
+        } catch (BufferOverflowException e) {
+            assertEquals(0, buffer.position());
+        }
+    }
+}
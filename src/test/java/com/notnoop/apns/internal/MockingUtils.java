@@ -2,6 +2,7 @@ package com.notnoop.apns.internal;
 
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -11,9 +12,12 @@ import java.io.OutputStream;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.net.SocketFactory;
 
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.mockito.stubbing.OngoingStubbing;
 
 public class MockingUtils {
@@ -71,4 +75,42 @@ public class MockingUtils {
         }
     }
 
+    static Socket mockSocket(OutputStream out, InputStream in) {
+        try {
+            final AtomicBoolean closed = new AtomicBoolean();
+            Socket socket = mock(Socket.class);
+            when(socket.getOutputStream()).thenReturn(out);
+            when(socket.getInputStream()).thenReturn(in);
+            when(socket.isConnected()).thenReturn(true);
+            when(socket.isClosed()).thenAnswer(new Answer<Boolean>() {
+                public Boolean answer(InvocationOnMock invocation) {
+                    return closed.get();
+                }
+            });
+            doAnswer(new Answer<Void>() {
+                public Void answer(InvocationOnMock invocation) {
+                    closed.set(true);
+                    return null;
+                }
+            }).when(socket).close();
+            return socket;
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new AssertionError("Cannot be here!");
+        }
+    }
+
+    static SocketFactory mockSequentialSocketFactory(Socket... sockets) {
+        try {
+            SocketFactory factory = mock(SocketFactory.class);
+            OngoingStubbing<Socket> stubbing = when(factory.createSocket(anyString(), anyInt()));
+            for (Socket t : sockets)
+                stubbing = stubbing.thenReturn(t);
+
+            return factory;
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new AssertionError("Cannot be here!");
+        }
+    }
 }
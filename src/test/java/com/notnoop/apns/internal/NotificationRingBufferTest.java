@@ -0,0 +1,159 @@
+package com.notnoop.apns.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.EnhancedApnsNotification;
+
+import static org.junit.Assert.*;
+
+public class NotificationRingBufferTest {
+
+    private static ApnsNotification notification(int id) {
+        return new EnhancedApnsNotification(id, 1, new byte[] {1}, new byte[] {2});
+    }
+
+    private static List<Integer> ids(List<ApnsNotification> notifications) {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (ApnsNotification n : notifications) {
+            ids.add(n.getIdentifier());
+        }
+        return ids;
+    }
+
+    @Test
+    public void evictsOldestWhenFull() {
+        NotificationRingBuffer buffer = new NotificationRingBuffer(3);
+        for (int i = 1; i <= 3; i++) {
+            assertEquals(0, buffer.add(notification(i)));
+        }
+        assertEquals(1, buffer.add(notification(4)));
+        assertEquals(3, buffer.size());
+        assertNull(buffer.get(1));
+        assertEquals(4, buffer.get(4).getIdentifier());
+    }
+
+    @Test
+    public void drainsEverythingAfterFailedNotification() {
+        NotificationRingBuffer buffer = new NotificationRingBuffer(10);
+        for (int i = 1; i <= 6; i++) {
+            buffer.add(notification(i));
+        }
+        List<ApnsNotification> resend = new ArrayList<ApnsNotification>();
+        assertEquals(3, buffer.drainAfter(3, resend));
+        assertEquals(Arrays.asList(4, 5, 6), ids(resend));
+        assertTrue(buffer.isEmpty());
+        assertNull(buffer.get(4));
+    }
+
+    @Test
+    public void drainsEverythingForUnknownIdentifier() {
+        NotificationRingBuffer buffer = new NotificationRingBuffer(2);
+        for (int i = 1; i <= 4; i++) {
+            buffer.add(notification(i));
+        }
+        List<ApnsNotification> resend = new ArrayList<ApnsNotification>();
+        assertEquals(2, buffer.drainAfter(1, resend));
+        assertEquals(Arrays.asList(3, 4), ids(resend));
+    }
+
+    @Test
+    public void duplicateIdentifiersUseMostRecent() {
+        NotificationRingBuffer buffer = new NotificationRingBuffer(3);
+        buffer.add(notification(7));
+        buffer.add(notification(8));
+        buffer.add(notification(7));
+        // evicting the first 7 must keep the second one indexed
+        buffer.add(notification(9));
+        List<ApnsNotification> resend = new ArrayList<ApnsNotification>();
+        assertEquals(1, buffer.drainAfter(7, resend));
+        assertEquals(9, resend.get(0).getIdentifier());
+    }
+
+    @Test
+    public void lookupsSurviveManyEvictions() {
+        NotificationRingBuffer buffer = new NotificationRingBuffer(100);
+        for (int i = 0; i < 100000; i++) {
+            buffer.add(notification(i * 31));
+        }
+        for (int i = 99900; i < 100000; i++) {
+            assertEquals(i * 31, buffer.get(i * 31).getIdentifier());
+        }
+        assertNull(buffer.get(99899 * 31));
+    }
+
+    @Test
+    public void resizeKeepsMostRecent() {
+        NotificationRingBuffer buffer = new NotificationRingBuffer(5);
+        for (int i = 1; i <= 5; i++) {
+            buffer.add(notification(i));
+        }
+        buffer.setCapacity(2);
+        assertEquals(2, buffer.size());
+        assertNull(buffer.get(3));
+        buffer.setCapacity(8);
+        for (int i = 6; i <= 11; i++) {
+            assertEquals(0, buffer.add(notification(i)));
+        }
+        List<ApnsNotification> resend = new ArrayList<ApnsNotification>();
+        buffer.drainAfter(0, resend);
+        assertEquals(Arrays.asList(4, 5, 6, 7, 8, 9, 10, 11), ids(resend));
+    }
+
+    @Test
+    public void zeroCapacityCachesNothing() {
+        NotificationRingBuffer buffer = new NotificationRingBuffer(0);
+        assertEquals(1, buffer.add(notification(1)));
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void asyncNotificationsArePresumedDeliveredWhenLeavingTheWindow() {
+        NotificationRingBuffer buffer = new NotificationRingBuffer(3);
+        AsyncNotification[] pushes = new AsyncNotification[6];
+        for (int i = 1; i <= 5; i++) {
+            pushes[i] = new AsyncNotification(notification(i));
+            buffer.add(pushes[i]);
+        }
+        // 1 and 2 were evicted
+        assertTrue(pushes[1].isDone());
+        assertTrue(pushes[2].isDone());
+        assertFalse(pushes[3].isDone());
+
+        List<ApnsNotification> resend = new ArrayList<ApnsNotification>();
+        buffer.drainAfter(4, resend);
+        // 3 preceded the failed notification, 5 is resent
+        assertTrue(pushes[3].isDone());
+        assertFalse(pushes[4].isDone());
+        assertFalse(pushes[5].isDone());
+        assertSame(pushes[5], resend.get(0));
+
+        buffer.add(pushes[5]);
+        buffer.clear();
+        assertTrue(pushes[5].isDone());
+    }
+
+    @Test
+    public void expiresByAgeAndBytes() {
+        NotificationRingBuffer buffer = new NotificationRingBuffer(10);
+        int frame = notification(1).marshall().length;
+        for (int i = 1; i <= 5; i++) {
+            buffer.add(notification(i), i * 100);
+        }
+        assertEquals(5 * frame, buffer.bytes());
+        assertEquals(100, buffer.addedAt(1));
+
+        // 1 and 2 were added before 250
+        assertEquals(2, buffer.expire(250, Long.MAX_VALUE));
+        assertNull(buffer.get(2));
+        // only two frames fit
+        assertEquals(1, buffer.expire(0, 2 * frame));
+        assertNull(buffer.get(3));
+        assertEquals(2 * frame, buffer.bytes());
+        assertEquals(500, buffer.addedAt(5));
+    }
+}
@@ -0,0 +1,52 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PoolSizingTest {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    PoolSizing sizing = new PoolSizing(2, 4, 3, 50, 1000, TimeUnit.MILLISECONDS);
+
+    @Test
+    public void growsOnBacklogUpToMax() {
+        assertEquals(3, sizing.resize(2, 6, 0, 0));
+        assertEquals(4, sizing.resize(3, 9, 0, 10 * MS));
+        assertEquals(4, sizing.resize(4, 100, 0, 20 * MS));
+    }
+
+    @Test
+    public void growsOnLatency() {
+        assertEquals(2, sizing.resize(2, 1, 49 * MS, 0));
+        assertEquals(3, sizing.resize(2, 1, 50 * MS, 0));
+    }
+
+    @Test
+    public void shrinksAfterSustainedIdlenessOnly() {
+        assertEquals(4, sizing.resize(4, 0, 0, 0));
+        assertEquals(4, sizing.resize(4, 0, 0, 999 * MS));
+        assertEquals(3, sizing.resize(4, 0, 0, 1000 * MS));
+        // the next connection needs another idle period
+        assertEquals(3, sizing.resize(3, 0, 0, 1500 * MS));
+        assertEquals(2, sizing.resize(3, 0, 0, 2000 * MS));
+        assertEquals(2, sizing.resize(2, 0, 0, 5000 * MS));
+    }
+
+    @Test
+    public void busySampleRestartsIdlePeriod() {
+        assertEquals(4, sizing.resize(4, 0, 0, 0));
+        // every connection needed
+        assertEquals(4, sizing.resize(4, 3, 0, 600 * MS));
+        assertEquals(4, sizing.resize(4, 0, 0, 1200 * MS));
+        assertEquals(4, sizing.resize(4, 0, 0, 2100 * MS));
+        assertEquals(3, sizing.resize(4, 0, 0, 2200 * MS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvertedBounds() {
+        new PoolSizing(3, 2, 1, 1, 1, TimeUnit.SECONDS);
+    }
+}
@@ -3,15 +3,25 @@ package com.notnoop.apns.internal;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 import static org.mockito.Mockito.*;
 
+import com.notnoop.apns.ApnsDelegate;
 import com.notnoop.apns.ApnsNotification;
 import com.notnoop.apns.ApnsService;
 import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.QueueOverflowPolicy;
+import com.notnoop.apns.QueueWatermarkListener;
 import com.notnoop.exceptions.NetworkIOException;
+import com.notnoop.exceptions.QueueOverflowException;
 
 public class QueuedApnsServiceTest {
 
@@ -65,6 +75,199 @@ public class QueuedApnsServiceTest {
         queued.stop();
     }
 
+    @Test
+    public void rejectWhenFull() throws InterruptedException {
+        GatedConnection connection = new GatedConnection();
+        QueuedApnsService queued = newBoundedService(connection, 2, QueueOverflowPolicy.REJECT, null);
+
+        queued.push(notification(1));
+        connection.entered.await();
+        queued.push(notification(2));
+        queued.push(notification(3));
+        try {
+            queued.push(notification(4));
+            fail("pushed to a full queue");
+        } catch (QueueOverflowException e) {
+            // expected
+        }
+
+        connection.open(3);
+        assertEquals(ids(1, 2, 3), connection.sentIds());
+        queued.stop();
+    }
+
+    @Test
+    public void blockWithTimeout() throws InterruptedException {
+        GatedConnection connection = new GatedConnection();
+        QueuedApnsService queued = new QueuedApnsService(new ApnsServiceImpl(connection, null),
+                1, QueueOverflowPolicy.BLOCK, TimeUnit.MILLISECONDS.toNanos(100), null, 0, 0, null);
+        queued.start();
+
+        queued.push(notification(1));
+        connection.entered.await();
+        queued.push(notification(2));
+        long started = System.nanoTime();
+        try {
+            queued.push(notification(3));
+            fail("pushed to a full queue");
+        } catch (QueueOverflowException e) {
+            assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(100));
+        }
+
+        connection.open(2);
+        assertEquals(ids(1, 2), connection.sentIds());
+        queued.stop();
+    }
+
+    @Test
+    public void dropOldestWhenFull() throws InterruptedException {
+        GatedConnection connection = new GatedConnection();
+        ApnsDelegate delegate = mock(ApnsDelegate.class);
+        QueuedApnsService queued = newBoundedService(connection, 2, QueueOverflowPolicy.DROP_OLDEST, delegate);
+
+        queued.push(notification(1));
+        connection.entered.await();
+        queued.push(notification(2));
+        queued.push(notification(3));
+        queued.push(notification(4));
+
+        connection.open(3);
+        assertEquals(ids(1, 3, 4), connection.sentIds());
+        verify(delegate).messageSendFailed(eq(notification(2)), any(QueueOverflowException.class));
+        queued.stop();
+    }
+
+    @Test
+    public void dropExpiredWhenFull() throws InterruptedException {
+        GatedConnection connection = new GatedConnection();
+        ApnsDelegate delegate = mock(ApnsDelegate.class);
+        QueuedApnsService queued = newBoundedService(connection, 2, QueueOverflowPolicy.DROP_EXPIRED, delegate);
+        EnhancedApnsNotification expired = new EnhancedApnsNotification(3,
+                (int) (System.currentTimeMillis() / 1000) - 60, "2342", "{}");
+
+        queued.push(notification(1));
+        connection.entered.await();
+        queued.push(notification(2));
+        queued.push(expired);
+        queued.push(notification(4));
+        try {
+            queued.push(notification(5));
+            fail("pushed to a full queue without expired notifications");
+        } catch (QueueOverflowException e) {
+            // expected
+        }
+
+        connection.open(3);
+        assertEquals(ids(1, 2, 4), connection.sentIds());
+        verify(delegate).messageSendFailed(eq(expired), any(QueueOverflowException.class));
+        queued.stop();
+    }
+
+    @Test
+    public void watermarks() throws InterruptedException {
+        GatedConnection connection = new GatedConnection();
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch resumed = new CountDownLatch(1);
+        QueuedApnsService queued = new QueuedApnsService(new ApnsServiceImpl(connection, null),
+                10, QueueOverflowPolicy.REJECT, -1, null, 3, 1, new QueueWatermarkListener() {
+                    public void highWatermarkReached(int size) {
+                        events.add("high");
+                    }
+                    public void lowWatermarkReached(int size) {
+                        events.add("low");
+                        resumed.countDown();
+                    }
+                });
+        queued.start();
+
+        queued.push(notification(1));
+        connection.entered.await();
+        queued.push(notification(2));
+        queued.push(notification(3));
+        assertTrue(events.isEmpty());
+        queued.push(notification(4));
+        queued.push(notification(5));
+        assertEquals(Collections.singletonList("high"), events);
+
+        connection.open(5);
+        assertTrue(resumed.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("high", "low"), events);
+        queued.stop();
+    }
+
+    @Test
+    public void drainInBatches() throws InterruptedException {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final List<Integer> pushed = Collections.synchronizedList(new ArrayList<Integer>());
+        final Semaphore flushed = new Semaphore(0);
+        ApnsService service = new ApnsServiceImpl(new ConnectionStub(0, 1) {
+            @Override
+            public void sendMessage(ApnsNotification m) {
+                entered.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                pushed.add(m.getIdentifier());
+            }
+
+            @Override
+            public void flush() {
+                flushed.release();
+            }
+        }, null);
+        QueuedApnsService queued = new QueuedApnsService(service, 100,
+                QueueOverflowPolicy.REJECT, -1, null, 0, 0, null, 1, 16);
+        queued.start();
+
+        queued.push(notification(1));
+        entered.await();
+        for (int i = 2; i <= 6; i++) {
+            queued.push(notification(i));
+        }
+        gate.countDown();
+
+        // one flush for the first notification, one for the other five
+        assertTrue(flushed.tryAcquire(2, 5, TimeUnit.SECONDS));
+        assertEquals(ids(1, 2, 3, 4, 5, 6), pushed);
+        queued.stop();
+    }
+
+    @Test
+    public void severalDrainers() throws InterruptedException {
+        final int count = 1000;
+        ConnectionStub connection = new ConnectionStub(0, count);
+        QueuedApnsService queued = new QueuedApnsService(new ApnsServiceImpl(connection, null),
+                Integer.MAX_VALUE, QueueOverflowPolicy.BLOCK, -1, null, 0, 0, null, 4, 32);
+        queued.start();
+
+        for (int i = 0; i < count; i++) {
+            queued.push(notification(i));
+        }
+
+        assertTrue(connection.semaphor.tryAcquire(5, TimeUnit.SECONDS));
+        queued.stop();
+    }
+
+    private static EnhancedApnsNotification notification(int id) {
+        return new EnhancedApnsNotification(id,
+                EnhancedApnsNotification.MAXIMUM_EXPIRY, "2342", "{}");
+    }
+
+    private static List<Integer> ids(Integer... ids) {
+        return Arrays.asList(ids);
+    }
+
+    private static QueuedApnsService newBoundedService(ApnsConnection connection, int capacity,
+            QueueOverflowPolicy policy, ApnsDelegate delegate) {
+        QueuedApnsService queued = new QueuedApnsService(new ApnsServiceImpl(connection, null),
+                capacity, policy, -1, delegate, 0, 0, null);
+        queued.start();
+        return queued;
+    }
+
     protected ApnsService newService(ApnsConnection connection, ApnsFeedbackConnection feedback) {
         ApnsService service = new ApnsServiceImpl(connection, null);
         ApnsService queued = new QueuedApnsService(service);
@@ -89,6 +292,18 @@ public class QueuedApnsServiceTest {
             semaphor.release();
         }
 
+        public void sendMessages(Iterable<? extends ApnsNotification> messages) {
+            for (ApnsNotification m : messages) {
+                sendMessage(m);
+            }
+        }
+
+        public void flush() {
+        }
+
+        public void warmUp() {
+        }
+
         protected void interrupt() {
             stop = true;
         }
@@ -110,4 +325,38 @@ public class QueuedApnsServiceTest {
             return -1;
         }
     }
+
+    /**
+     * Holds the first notification until opened, keeping the queue full.
+     */
+    static class GatedConnection extends ConnectionStub {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final List<Integer> sent = Collections.synchronizedList(new ArrayList<Integer>());
+
+        GatedConnection() {
+            super(0, 1);
+        }
+
+        @Override
+        public void sendMessage(ApnsNotification m) {
+            entered.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sent.add(m.getIdentifier());
+            semaphor.release();
+        }
+
+        void open(int expectedCalls) throws InterruptedException {
+            gate.countDown();
+            assertTrue(semaphor.tryAcquire(expectedCalls, 5, TimeUnit.SECONDS));
+        }
+
+        List<Integer> sentIds() {
+            return new ArrayList<Integer>(sent);
+        }
+    }
 }
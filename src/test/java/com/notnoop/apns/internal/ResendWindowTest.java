@@ -0,0 +1,52 @@
+package com.notnoop.apns.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ResendWindowTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void tunesToMeasuredLatency() {
+        ResendWindow window = new ResendWindow(10, TimeUnit.SECONDS, 1 << 20);
+        // 10 notifications within 200ms, the window becomes 800ms
+        assertEquals(40, window.errorReceived(true, 200 * MS, 9));
+        assertEquals(800 * MS, window.windowNanos());
+        // small changes are ignored
+        assertEquals(-1, window.errorReceived(true, 210 * MS, 9));
+        assertEquals(800 * MS, window.windowNanos());
+    }
+
+    @Test
+    public void shrinksGraduallyAndWithinBounds() {
+        ResendWindow window = new ResendWindow(10, TimeUnit.SECONDS, 1 << 20);
+        window.errorReceived(true, 200 * MS, 0);
+        for (int i = 0; i < 100; i++) {
+            window.errorReceived(true, MS, 0);
+        }
+        assertEquals(ResendWindow.MIN_WINDOW_NANOS, window.windowNanos());
+        window.errorReceived(true, TimeUnit.MINUTES.toNanos(5), 0);
+        assertEquals(ResendWindow.MAX_WINDOW_NANOS, window.windowNanos());
+    }
+
+    @Test
+    public void doublesWhenErrorIsNotMatched() {
+        ResendWindow window = new ResendWindow(1, TimeUnit.SECONDS, 1 << 20);
+        // 50 cached notifications covered the old window
+        assertEquals(100, window.errorReceived(false, 0, 50));
+        assertEquals(2000 * MS, window.windowNanos());
+        // a lower latency doesn't shrink it right away
+        assertEquals(-1, window.errorReceived(true, 400 * MS, 0));
+    }
+
+    @Test
+    public void copiesStartOver() {
+        ResendWindow window = new ResendWindow(1, TimeUnit.SECONDS, 1 << 20);
+        window.errorReceived(false, 0, 1);
+        assertEquals(1000 * MS, window.copy().windowNanos());
+    }
+}
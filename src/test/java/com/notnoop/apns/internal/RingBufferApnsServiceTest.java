@@ -0,0 +1,163 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.notnoop.apns.ApnsDelegateAdapter;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.internal.QueuedApnsServiceTest.ConnectionStub;
+
+public class RingBufferApnsServiceTest {
+
+    @Test(expected = IllegalStateException.class)
+    public void sendWithoutStarting() {
+        RingBufferApnsService service = new RingBufferApnsService(null, 8, 4);
+        service.push(notification(1));
+    }
+
+    @Test
+    public void roundsUpToPowerOfTwo() {
+        assertEquals(8, new RingBufferApnsService(null, 5, 4).ringSize());
+        assertEquals(1, new RingBufferApnsService(null, 1, 4).ringSize());
+    }
+
+    @Test
+    public void keepsOrderOfEachProducerAcrossWraps() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 5000;
+        RecordingConnection connection = new RecordingConnection(producers * perProducer);
+        final RingBufferApnsService service =
+                new RingBufferApnsService(new ApnsServiceImpl(connection, null), 16, 8);
+        service.start();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            Thread t = new Thread() {
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        service.push(notification(producer * perProducer + i));
+                    }
+                }
+            };
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertTrue(connection.done.await(10, TimeUnit.SECONDS));
+        int[] last = new int[producers];
+        for (int p = 0; p < producers; p++) {
+            last[p] = p * perProducer - 1;
+        }
+        for (int id : connection.sentIds()) {
+            int producer = id / perProducer;
+            assertEquals(last[producer] + 1, id);
+            last[producer] = id;
+        }
+        assertTrue(connection.flushes > 0);
+        service.stop();
+    }
+
+    @Test(timeout = 5000)
+    public void wakesParkedConsumer() throws InterruptedException {
+        final int pushes = 20;
+        RecordingConnection connection = new RecordingConnection(pushes);
+        RingBufferApnsService service =
+                new RingBufferApnsService(new ApnsServiceImpl(connection, null), 16, 8);
+        service.start();
+
+        // idle long enough between pushes for the consumer to park; it
+        // has no timeout to fall back on, so a lost wake up hangs here
+        for (int i = 0; i < pushes; i++) {
+            Thread.sleep(10);
+            service.push(notification(i));
+            while (connection.sentIds().size() <= i) {
+                Thread.sleep(1);
+            }
+        }
+        assertTrue(connection.done.await(1, TimeUnit.SECONDS));
+        service.stop();
+    }
+
+    @Test(timeout = 5000)
+    public void stopFailsUnconsumedNotifications() throws InterruptedException {
+        final CountDownLatch taken = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ConnectionStub stuck = new ConnectionStub(0, 1) {
+            @Override
+            public void sendMessage(ApnsNotification m) {
+                taken.countDown();
+                while (true) {
+                    try {
+                        release.await();
+                        return;
+                    } catch (InterruptedException e) {
+                        // ignored: a writer stuck in a blocking write
+                    }
+                }
+            }
+        };
+        final List<Integer> failed = Collections.synchronizedList(new ArrayList<Integer>());
+        RingBufferApnsService service = new RingBufferApnsService(new ApnsServiceImpl(stuck, null), 8, 1,
+                new ApnsDelegateAdapter() {
+                    public void messageSendFailed(ApnsNotification message, Throwable e) {
+                        failed.add(message.getIdentifier());
+                    }
+                });
+        service.STOP_TIMEOUT_IN_MS = 50;
+        service.start();
+
+        service.push(notification(0));
+        taken.await();
+        for (int i = 1; i <= 3; i++) {
+            service.push(notification(i));
+        }
+        service.stop();
+        release.countDown();
+
+        assertEquals(Arrays.asList(1, 2, 3), failed);
+    }
+
+    private static EnhancedApnsNotification notification(int id) {
+        return new EnhancedApnsNotification(id,
+                EnhancedApnsNotification.MAXIMUM_EXPIRY, "2342", "{}");
+    }
+
+    static class RecordingConnection extends ConnectionStub {
+        final CountDownLatch done;
+        final List<Integer> sent = Collections.synchronizedList(new ArrayList<Integer>());
+        volatile int flushes;
+
+        RecordingConnection(int expectedCalls) {
+            super(0, 1);
+            this.done = new CountDownLatch(expectedCalls);
+        }
+
+        @Override
+        public void sendMessage(ApnsNotification m) {
+            sent.add(m.getIdentifier());
+            done.countDown();
+        }
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+
+        List<Integer> sentIds() {
+            return new ArrayList<Integer>(sent);
+        }
+    }
+}
@@ -45,6 +45,17 @@ public class UtilitiesTest {
         Assert.assertEquals(encodedHex.toLowerCase(), encoded.toLowerCase());
     }
 
+    @Test
+    public void testDecodeSkipsSeparators() {
+        Assert.assertArrayEquals(new byte[] { (byte) 0xA1, (byte) 0xB2, (byte) 0xD4, 0x0F },
+                Utilities.decodeHex("a1 b2-D4 0f"));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testDecodeRejectsNonHex() {
+        Utilities.decodeHex("a1g2");
+    }
+
     @Test
     public void testParsingBytes() {
         Assert.assertEquals(0xFF00FF00, Utilities.parseBytes(0xFF, 0, 0xFF, 0));